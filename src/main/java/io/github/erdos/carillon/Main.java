@@ -3,45 +3,58 @@ package io.github.erdos.carillon;
 import io.github.erdos.carillon.eval.EvaluationException;
 import io.github.erdos.carillon.eval.RT;
 import io.github.erdos.carillon.objects.Expression;
+import io.github.erdos.carillon.objects.Printer;
+import io.github.erdos.carillon.reader.BackgroundReader;
 import io.github.erdos.carillon.reader.Reader;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PushbackReader;
+import java.io.Writer;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
 
 public class Main {
 
 	public static void main(String[] args) throws IOException {
-		Arrays.stream(args).filter(x -> !x.startsWith("-")).forEach(fname -> {
+		if (Arrays.stream(args).anyMatch(x -> x.equals("--compile"))) {
+			RT.setCompilerEnabled(true);
+		}
+
+		List<Path> files = Arrays.stream(args).filter(x -> !x.startsWith("-")).map(Paths::get).collect(Collectors.toList());
+		BackgroundReader next = files.isEmpty() ? null : BackgroundReader.start(files.get(0));
+		for (int i = 0; i < files.size(); i++) {
+			BackgroundReader current = next;
+
+			// the next file is read while this one is evaluated.
+			next = i + 1 < files.size() ? BackgroundReader.start(files.get(i + 1)) : null;
+
 			try {
-				runFile(new File(fname));
-			} catch (FileNotFoundException e) {
-				System.err.println(e.getMessage());
+				runFile(current);
+			} catch (NoSuchFileException e) {
+				System.err.println("File not found: " + e.getMessage());
 				System.exit(1);
 			} catch (IOException e) {
 				e.printStackTrace();
 				System.exit(1);
 			}
-		});
+		}
 
 		if (Arrays.stream(args).anyMatch(x -> x.equals("--repl"))) {
 			repl();
 		}
 	}
 
-	private static void runFile(File file) throws IOException {
-		try (FileReader fr = new FileReader(file);
-		     PushbackReader reader = new PushbackReader(fr)) {
-			while (true) {
-				Expression expression = Reader.read(reader);
-
-				if (expression == null) return;
-
-				Expression result = RT.eval(expression);
+	private static void runFile(BackgroundReader reader) throws IOException {
+		try (BackgroundReader r = reader) {
+			for (Expression expression; (expression = r.next()) != null; ) {
+				RT.eval(expression);
 			}
 		}
 	}
@@ -49,6 +62,7 @@ public class Main {
 	private static void repl() throws IOException {
 		System.out.println("BEL REPL. Press ^D to exit.");
 		PushbackReader reader = new PushbackReader(new InputStreamReader(System.in));
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
 		while (true) {
 			System.out.print("> ");
 			System.out.flush();
@@ -56,7 +70,9 @@ public class Main {
 
 			try {
 				Expression result = RT.eval(expression);
-				System.out.println(result.toString());
+				Printer.print(result, out);
+				out.write(System.lineSeparator());
+				out.flush();
 
 			} catch (EvaluationException e) {
 				System.err.println("ERROR.");
@@ -0,0 +1,621 @@
+package io.github.erdos.carillon.eval;
+
+import io.github.erdos.carillon.objects.Channel;
+import io.github.erdos.carillon.objects.Character;
+import io.github.erdos.carillon.objects.Expression;
+import io.github.erdos.carillon.objects.ExpressionVisitor;
+import io.github.erdos.carillon.objects.Pair;
+import io.github.erdos.carillon.objects.Stream;
+import io.github.erdos.carillon.objects.Symbol;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import static io.github.erdos.carillon.objects.Symbol.APPLY;
+import static io.github.erdos.carillon.objects.Symbol.NIL;
+import static io.github.erdos.carillon.objects.Symbol.O;
+import static io.github.erdos.carillon.objects.Symbol.T;
+
+/**
+ * Turns expressions into trees of executable nodes.
+ *
+ * The meaning of a form only depends on its head symbol and the lexical scope it is evaluated in, so it is enough to
+ * find it out once. Local variables are resolved to frame and slot indices. The resulting node is cached on the
+ * source pair and it is dropped when the pair is modified with xar or xdr. The other pairs of the form point to the
+ * result too, and so do the forms inside, so a change anywhere in a form also drops the forms around it.
+ */
+final class Analyzer implements ExpressionVisitor<Node> {
+
+	private final Scope scope;
+
+	// form being analyzed, null on top level.
+	private final Analyzed owner;
+
+	private Analyzer(Scope scope, Analyzed owner) {
+		this.scope = scope;
+		this.owner = owner;
+	}
+
+	// result of the analysis of a form in a given scope, attached to the source pair.
+	static final class Analyzed implements Pair.Dependent {
+		final Expression form;
+		final Scope scope;
+		volatile Node node;
+
+		// form that this one is part of, it is dropped together with this one.
+		volatile Analyzed parent;
+		private volatile boolean dropped;
+
+		// calls of the closure body, -1 when it is already handed to the compiler.
+		private int calls;
+
+		// frame of a finished call that the next call can reuse.
+		private volatile Frame spare;
+
+		private static final AtomicReferenceFieldUpdater<Analyzed, Frame> SPARE =
+				AtomicReferenceFieldUpdater.newUpdater(Analyzed.class, Frame.class, "spare");
+
+		Analyzed(Expression form, Scope scope, Analyzed parent) {
+			this.form = form;
+			this.scope = scope;
+			this.parent = parent;
+		}
+
+		// a pair of the form changed, the forms around it are analyzed again too.
+		@Override
+		public void invalidate() {
+			for (Analyzed a = this; a != null && !a.dropped; a = a.parent) {
+				a.dropped = true;
+				if (a.form instanceof Pair && ((Pair) a.form).getAnalyzed() == a) {
+					((Pair) a.form).setAnalyzed(null);
+				}
+			}
+		}
+
+		/**
+		 * Lets a pair of the form that is not a form itself drop this one when it changes. False when the pair does so
+		 * already, or when it is a form or holds other data.
+		 */
+		boolean own(Pair pair) {
+			Object analyzed = pair.getAnalyzed();
+			boolean other = analyzed instanceof Analyzed
+					? analyzed != this && ((Analyzed) analyzed).form != pair
+					: analyzed instanceof Pair.Dependent;
+			if (analyzed == null || other) {
+				attach(pair, this);
+				return true;
+			} else {
+				return false;
+			}
+		}
+
+		// puts the analysis on the pair. Another kind of dependent, like the mark a forked runtime puts on its copies, is
+		// told first, the pair does not tell it about changes anymore.
+		static void attach(Pair pair, Analyzed analyzed) {
+			Object old = pair.getAnalyzed();
+			if (old instanceof Pair.Dependent && !(old instanceof Analyzed)) {
+				((Pair.Dependent) old).invalidate();
+			}
+			pair.setAnalyzed(analyzed);
+		}
+
+		// owns every pair of a tree, for the arguments of macro calls that are not analyzed as forms.
+		void ownAll(Expression tree) {
+			Set<Pair> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+			Deque<Expression> stack = new ArrayDeque<>();
+			stack.push(tree);
+			while (!stack.isEmpty()) {
+				Expression e = stack.pop();
+				if (isPlainPair(e) && seen.add((Pair) e)) {
+					own((Pair) e);
+					stack.push(((Pair) e).cdr());
+					stack.push(((Pair) e).car());
+				}
+			}
+		}
+
+		// node of a closure body, compiled to bytecode once it is called often enough. Compiler is only loaded then.
+		Node body() {
+			if (CompilerOptions.enabled && calls >= 0 && ++calls >= CompilerOptions.threshold) {
+				calls = -1;
+				node = Compiler.compile(node);
+			}
+			return node;
+		}
+
+		// frame for a new call of the closure body.
+		Frame frame(Frame parent) {
+			Frame frame = spare == null ? null : SPARE.getAndSet(this, null);
+			if (frame == null) {
+				return new Frame(this, parent);
+			} else {
+				frame.parent = parent;
+				return frame;
+			}
+		}
+
+		// gives back the frame of a finished call. Only frames of simple parameter lists are reused, these have all
+		// their slots bound on every call.
+		void release(Frame frame) {
+			if (!frame.captured && scope.arity >= 0) {
+				spare = frame;
+			}
+		}
+	}
+
+	static Node analyze(Expression expression, Scope scope) {
+		if (expression instanceof Pair) {
+			Node cached = cached((Pair) expression, scope, null);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		return expression.apply(new Analyzer(scope, null));
+	}
+
+	/**
+	 * Body of a closure analyzed in the scope of its parameters. The result is cached on the body, or on the parameter
+	 * list when the body is an atom, so closures made by the same fn form share it.
+	 */
+	static Analyzed closureBody(Expression params, Expression body, Scope parent) {
+		Pair holder = body instanceof Pair ? (Pair) body : params instanceof Pair ? (Pair) params : null;
+
+		if (holder != null && holder.getAnalyzed() instanceof Analyzed) {
+			Analyzed analyzed = (Analyzed) holder.getAnalyzed();
+			if (analyzed.form == body && analyzed.scope != null && analyzed.scope.source == params && analyzed.scope.parent == parent) {
+				return analyzed;
+			}
+		}
+
+		Scope scope = Scope.ofParameters(params, parent);
+		if (body instanceof Pair) {
+			return new Analyzer(scope, null).analyzeForm((Pair) body);
+		}
+
+		Analyzed analyzed = new Analyzed(body, scope, null);
+		analyzed.node = body.apply(new Analyzer(scope, null));
+		if (holder != null) {
+			Analyzed.attach(holder, analyzed);
+		}
+		return analyzed;
+	}
+
+	// node cached on the pair for the scope, it becomes part of the form being analyzed.
+	private static Node cached(Pair pair, Scope scope, Analyzed owner) {
+		Object cached = pair.getAnalyzed();
+		if (cached instanceof Analyzed && ((Analyzed) cached).scope == scope && ((Analyzed) cached).form == pair) {
+			((Analyzed) cached).parent = owner;
+			return ((Analyzed) cached).node;
+		} else {
+			return null;
+		}
+	}
+
+	Node analyze(Expression expression) {
+		return expression.apply(this);
+	}
+
+	@Override
+	public Node pair(Pair pair) {
+		Node cached = cached(pair, scope, owner);
+		if (cached != null) {
+			return cached;
+		} else {
+			return analyzeForm(pair).node;
+		}
+	}
+
+	private Analyzed analyzeForm(Pair pair) {
+		Analyzed analyzed = new Analyzed(pair, scope, owner);
+		try {
+			analyzed.node = new Analyzer(scope, analyzed).analyzePair(pair);
+		} catch (RuntimeException e) {
+			// malformed forms only fail when they are evaluated.
+			analyzed.node = new Failure(e);
+		}
+		Analyzed.attach(pair, analyzed);
+
+		// the rest of the list, up to a pair owned already so cyclic lists end too.
+		Expression rest = isPlainPair(pair) ? pair.cdr() : NIL;
+		while (isPlainPair(rest) && analyzed.own((Pair) rest)) {
+			rest = ((Pair) rest).cdr();
+		}
+		return analyzed;
+	}
+
+	// numbers and texts build their pairs when they are read, they are never part of a form.
+	private static boolean isPlainPair(Expression e) {
+		return e != null && e.getClass() == Pair.class;
+	}
+
+	@Override
+	public Node stream(Stream stream) {
+		return new Failure(new EvaluationException.FeatureNotImplementedException(stream));
+	}
+
+	@Override
+	public Node symbol(Symbol symbol) {
+		if (symbol == T || symbol == NIL || symbol == O || symbol == APPLY) {
+			return new Constant(symbol);
+		} else {
+			return reference(symbol);
+		}
+	}
+
+	@Override
+	public Node character(Character character) {
+		return new Constant(character);
+	}
+
+	@Override
+	public Node channel(Channel channel) {
+		return new Constant(channel);
+	}
+
+	// finds the frame and slot of a local variable.
+	Reference reference(Expression name) {
+		Variable variable = Variable.enforce(name);
+
+		int depth = 0;
+		for (Scope s = scope; s != null; s = s.parent, depth++) {
+			int index = s.indexOf(name);
+			if (index >= 0) {
+				return new LexicalReference(variable, depth, index);
+			}
+		}
+		return new FreeReference(variable);
+	}
+
+	private Node analyzePair(Pair pair) {
+		if (Pair.isEmptyPair(pair.car())) {
+			return reference(pair);
+		}
+
+		final Expression sym = pair.car();
+
+		if (sym == Symbol.ERR) {
+			return new SpecialForms.Err(argument(pair, 1));
+		} else if (sym == Symbol.LIT) {
+			return new Constant(pair);
+		} else if (sym == Symbol.CLS) {
+			return new Primitives.Cls(argument(pair, 1));
+		} else if (sym == Symbol.IF) {
+			return SpecialForms.If.of(pair, this);
+		} else if (sym == Symbol.QUOTE) {
+			return new Constant(pair.nthOrNil(1));
+		} else if (sym == Symbol.ID) {
+			return new Primitives.Id(argument(pair, 1), argument(pair, 2));
+		} else if (sym == Symbol.APPLY) {
+			return new SpecialForms.Apply(arguments(pair.cdr()));
+		} else if (sym == Symbol.JOIN) {
+			return new Primitives.Join(argument(pair, 1), argument(pair, 2));
+		} else if (sym == Symbol.CAR) {
+			return new Primitives.Car(argument(pair, 1));
+		} else if (sym == Symbol.CDR) {
+			return new Primitives.Cdr(argument(pair, 1));
+		} else if (sym == Symbol.TYPE) {
+			return new Primitives.Type(argument(pair, 1));
+		} else if (sym == Symbol.XAR) {
+			return new Primitives.Xar(argument(pair, 1), argument(pair, 2));
+		} else if (sym == Symbol.XDR) {
+			return new Primitives.Xdr(argument(pair, 1), argument(pair, 2));
+		} else if (sym == Symbol.CASA) {
+			return new Primitives.Casa(argument(pair, 1), argument(pair, 2), argument(pair, 3));
+		} else if (sym == Symbol.CASD) {
+			return new Primitives.Casd(argument(pair, 1), argument(pair, 2), argument(pair, 3));
+		} else if (sym == Symbol.VCAR) {
+			return new Primitives.Vcar(argument(pair, 1));
+		} else if (sym == Symbol.VCDR) {
+			return new Primitives.Vcdr(argument(pair, 1));
+		} else if (sym == Symbol.CHAN) {
+			return new Primitives.Chan(argument(pair, 1));
+		} else if (sym == Symbol.CHPUT) {
+			return new Primitives.Chput(argument(pair, 1), argument(pair, 2));
+		} else if (sym == Symbol.CHTAKE) {
+			return new Primitives.Chtake(argument(pair, 1));
+		} else if (sym == Symbol.CHPOLL) {
+			return new Primitives.Chpoll(argument(pair, 1));
+		} else if (sym == Symbol.CHCLS) {
+			return new Primitives.Chcls(argument(pair, 1));
+		} else if (sym == Symbol.PMAP) {
+			return new Parallel.PMap(argument(pair, 1), argument(pair, 2));
+		} else if (sym == Symbol.PREDUCE) {
+			return new Parallel.PReduce(argument(pair, 1), argument(pair, 2));
+		} else if (sym == Symbol.PALL) {
+			return new Parallel.PAll(argument(pair, 1), argument(pair, 2));
+		} else if (sym == Symbol.SYM) {
+			return new Primitives.Sym(argument(pair, 1));
+		} else if (sym == Symbol.NOM) {
+			return new Primitives.Nom(arguments(pair.cdr()));
+		} else if (sym == Symbol.COIN) {
+			return new Primitives.Coin();
+		} else if (sym == Symbol.SYS) {
+			return new Failure(new EvaluationException.FeatureNotImplementedException(Symbol.SYS));
+		} else if (sym == Symbol.OPS) {
+			return new Failure(new EvaluationException.FeatureNotImplementedException(Symbol.OPS));
+		} else if (sym == Symbol.SET) {
+			return SpecialForms.Set.of(pair, this);
+		} else if (sym == Symbol.DYN) {
+			return new SpecialForms.Dyn(Variable.enforce(pair.nthOrNil(1)), argument(pair, 2), argument(pair, 3));
+		} else if (sym == Symbol.WHERE) {
+			return new SpecialForms.Where(argument(pair, 1));
+		} else if (sym == Symbol.CCC) {
+			return new SpecialForms.Ccc(argument(pair, 1));
+		} else if (sym == Symbol.THREAD) {
+			return new SpecialForms.Spawn(argument(pair, 1));
+		} else {
+			return new Call(pair, analyze(sym), this);
+		}
+	}
+
+	// nth element of the form or nil when it is missing.
+	private Node argument(Pair form, int n) {
+		return analyze(form.nthOrNil(n));
+	}
+
+	private Node[] arguments(Expression list) {
+		List<Node> nodes = new ArrayList<>();
+		while (list instanceof Pair) {
+			nodes.add(analyze(((Pair) list).car()));
+			list = ((Pair) list).cdr();
+		}
+		if (list != NIL) {
+			throw new EvaluationException.ImproperListException(list);
+		}
+		return nodes.toArray(new Node[0]);
+	}
+
+	// self evaluating expressions and quoted values.
+	static final class Constant implements Node {
+		final Expression value;
+
+		Constant(Expression value) {
+			this.value = value;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			return value;
+		}
+	}
+
+	// variable reference that can also be assigned to.
+	abstract static class Reference implements Node {
+		final Variable variable;
+
+		Reference(Variable variable) {
+			this.variable = variable;
+		}
+
+		abstract void assign(Environment env, Expression value);
+	}
+
+	// variable bound by an enclosing frame.
+	static final class LexicalReference extends Reference {
+		final int depth;
+		final int index;
+
+		LexicalReference(Variable variable, int depth, int index) {
+			super(variable);
+			this.depth = depth;
+			this.index = index;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			Expression value = evaluator.env.getLexicalBinding(variable, depth, index);
+			return value != null ? value : evaluator.unbound(variable.getExpression());
+		}
+
+		@Override
+		void assign(Environment env, Expression value) {
+			env.setLexical(variable, depth, index, value);
+		}
+	}
+
+	// global or dynamic variable.
+	static final class FreeReference extends Reference {
+
+		// global cell found by the first successful lookup.
+		private volatile GlobalCell global;
+
+		FreeReference(Variable variable) {
+			super(variable);
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			Expression value = value(evaluator.env);
+			return value != null ? value : evaluator.unbound(variable.getExpression());
+		}
+
+		// dynamic binding or value of the global cell, null when there is neither.
+		Expression value(Environment env) {
+			if (env.hasDynamicBindings()) {
+				Expression value = env.getDynamicBinding(variable);
+				if (value != null) {
+					return value;
+				}
+			}
+
+			GlobalCell g = global;
+			Map<Variable, Pair> cells = env.getGlobals().cells;
+			if (g == null || g.cells != cells) {
+				Pair cell = env.getGlobalCell(variable);
+				if (cell == null) {
+					return null;
+				}
+				global = g = new GlobalCell(cells, cell);
+			}
+			return env.whereCdr(g.cell);
+		}
+
+		@Override
+		void assign(Environment env, Expression value) {
+			env.set(variable, value);
+		}
+	}
+
+	// application of a closure, macro or number literal.
+	static final class Call implements Node {
+		private final Pair form;
+		final Node head;
+		private final Analyzer analyzer;
+
+		// macro calls do not evaluate their arguments so these are analyzed on the first function call.
+		private volatile Node[] arguments;
+
+		// last expansion when the head is a macro.
+		volatile Expansion expansion;
+
+		Call(Pair form, Node head, Analyzer analyzer) {
+			this.form = form;
+			this.head = head;
+			this.analyzer = analyzer;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			return eval(evaluator, false);
+		}
+
+		@Override
+		public Expression evalTail(ExpressionEvaluatorVisitor evaluator) {
+			return eval(evaluator, true);
+		}
+
+		private Expression eval(ExpressionEvaluatorVisitor evaluator, boolean tail) {
+			evaluator.env.whereClear();
+
+			Expression fn;
+			try {
+				fn = head.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, value) -> dispatch(ev, value, tail));
+			}
+			return dispatch(evaluator, fn, tail);
+		}
+
+		// rest of the call once the head is evaluated.
+		Expression dispatch(ExpressionEvaluatorVisitor evaluator, Expression fn, boolean tail) {
+			if (!(fn instanceof Pair)) {
+				throw new EvaluationException(fn, "Expected literal expression in head. Original expression was=" + form);
+			}
+
+			final Expression kind = ((Pair) fn).cadr();
+			if (kind == Symbol.MAC) {
+				Node expansion = expand(evaluator, (Pair) fn);
+				return tail ? expansion.evalTail(evaluator) : expansion.eval(evaluator);
+			} else if (kind == Symbol.CLO) {
+				return evaluator.invoke((Pair) fn, arguments(), tail);
+			} else if (kind == Symbol.CONT && fn instanceof Continuation) {
+				Continuation continuation = (Continuation) fn;
+				Expression value;
+				try {
+					value = argument(evaluator);
+				} catch (Unwind unwind) {
+					throw unwind.then(evaluator, continuation::call);
+				}
+				return continuation.call(evaluator, value);
+			} else if (kind == Symbol.NUM) {
+				Expression arg;
+				try {
+					arg = argument(evaluator);
+				} catch (Unwind unwind) {
+					throw unwind.then(evaluator, (ev, value) -> ev.nth((Pair) fn, value));
+				}
+				return evaluator.nth((Pair) fn, arg);
+			} else {
+				throw new EvaluationException(fn, "We only evaluate MAC or CLO or NUM or CONT literals!");
+			}
+		}
+
+		// the expansion is reused while the same macro is called and no macro was redefined since.
+		private Node expand(ExpressionEvaluatorVisitor evaluator, Pair macro) {
+			Expansion cached = expansion;
+			if (cached != null && cached.isValid(macro, evaluator.env)) {
+				evaluator.env.getGlobals().macroExpansionHits.increment();
+				return cached.node;
+			}
+
+			evaluator.env.getGlobals().macroExpansionMisses.increment();
+			Object macros = evaluator.env.getGlobals().macros;
+			Expression expanded = evaluator.expandMacro(macro, form.cdr());
+
+			// a change anywhere in the arguments drops this call and the expansion with it.
+			analyzer.owner.ownAll(form.cdr());
+			Node node = analyzer.analyze(expanded);
+			expansion = new Expansion(macro, macros, node);
+			return node;
+		}
+
+		// value of the only argument of a continuation or number call.
+		private Expression argument(ExpressionEvaluatorVisitor evaluator) {
+			Node[] arguments = arguments();
+			return arguments.length == 0 ? NIL : arguments[0].eval(evaluator);
+		}
+
+		Node[] arguments() {
+			Node[] result = arguments;
+			if (result == null) {
+				arguments = result = analyzer.arguments(form.cdr());
+			}
+			return result;
+		}
+	}
+
+	// binding of a global variable of a runtime. Cells are only replaced together with the map they are in, when the
+	// runtime is forked, so it is safe to hold on to them while the map is the same.
+	static final class GlobalCell {
+		final Map<Variable, Pair> cells;
+		final Pair cell;
+
+		GlobalCell(Map<Variable, Pair> cells, Pair cell) {
+			this.cells = cells;
+			this.cell = cell;
+		}
+	}
+
+	// macro expansion cached on a call site.
+	static final class Expansion {
+		final Pair macro;
+		final Object macros;
+		final Node node;
+
+		Expansion(Pair macro, Object macros, Node node) {
+			this.macro = macro;
+			this.macros = macros;
+			this.node = node;
+		}
+
+		// same macro, or the copy a fork made of it, and no macro was redefined since.
+		boolean isValid(Expression fn, Environment env) {
+			Environment.Globals globals = env.getGlobals();
+			return macros == globals.macros && (macro == fn || globals.isCopy(macro, fn));
+		}
+	}
+
+	// defers errors found during analysis to evaluation time.
+	static final class Failure implements Node {
+		private final RuntimeException exception;
+
+		Failure(RuntimeException exception) {
+			this.exception = exception;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			throw exception;
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package io.github.erdos.carillon.eval;
+
+import io.github.erdos.carillon.objects.Expression;
+import io.github.erdos.carillon.objects.Pair;
+import io.github.erdos.carillon.objects.Symbol;
+
+/**
+ * Base class of the closure bodies generated by the {@link Compiler}.
+ *
+ * Generated classes live in their own class loader so they can only reach the public parts of this package. The
+ * static methods here are the bridge to the evaluator, they do the same thing as the interpreted nodes.
+ */
+public abstract class CompiledNode implements Node {
+
+	// the node this class was generated from.
+	protected final Node interpreted;
+
+	// expressions, variables and nodes referenced from the generated code.
+	protected final Object[] constants;
+
+	protected CompiledNode(Node interpreted, Object[] constants) {
+		this.interpreted = interpreted;
+		this.constants = constants;
+	}
+
+	@Override
+	public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+		return interpreted.eval(evaluator);
+	}
+
+	@Override
+	public abstract Expression evalTail(ExpressionEvaluatorVisitor evaluator);
+
+	protected static void whereClear(ExpressionEvaluatorVisitor evaluator) {
+		evaluator.env.whereClear();
+	}
+
+	protected static Expression lexical(ExpressionEvaluatorVisitor evaluator, Object variable, int depth, int index) {
+		Expression value = evaluator.env.getLexicalBinding((Variable) variable, depth, index);
+		return value != null ? value : evaluator.unbound(((Variable) variable).getExpression());
+	}
+
+	protected static Expression free(ExpressionEvaluatorVisitor evaluator, Object reference) {
+		Analyzer.FreeReference free = (Analyzer.FreeReference) reference;
+		Expression value = free.value(evaluator.env);
+		return value != null ? value : evaluator.unbound(free.variable.getExpression());
+	}
+
+	protected static Expression id(Expression a, Expression b) {
+		return Primitives.id(a, b);
+	}
+
+	protected static Expression join(Expression a, Expression b) {
+		return Primitives.join(a, b);
+	}
+
+	protected static Expression car(ExpressionEvaluatorVisitor evaluator, Expression x) {
+		return Primitives.car(x, evaluator.env);
+	}
+
+	protected static Expression cdr(ExpressionEvaluatorVisitor evaluator, Expression x) {
+		return Primitives.cdr(x, evaluator.env);
+	}
+
+	protected static Expression type(Expression x) {
+		return Primitives.type(x);
+	}
+
+	// falls back to the interpreter for nodes that are not compiled.
+	// The generated code can not be resumed from steps, so the bridges that evaluate delimit the continuations.
+	protected static Expression eval(ExpressionEvaluatorVisitor evaluator, Object node) {
+		try {
+			return ((Node) node).eval(evaluator);
+		} catch (Unwind | Continuation.Escape e) {
+			return evaluator.delimited(e);
+		}
+	}
+
+	protected static Expression evalTail(ExpressionEvaluatorVisitor evaluator, Object node) {
+		try {
+			return ((Node) node).evalTail(evaluator);
+		} catch (Unwind | Continuation.Escape e) {
+			return evaluator.delimited(e);
+		}
+	}
+
+	protected static boolean isClosure(Expression fn) {
+		return fn instanceof Pair && ((Pair) fn).cadr() == Symbol.CLO;
+	}
+
+	protected static Expression invoke(ExpressionEvaluatorVisitor evaluator, Expression fn, Expression arguments) {
+		try {
+			return evaluator.invoke((Pair) fn, arguments);
+		} catch (Unwind | Continuation.Escape e) {
+			return evaluator.delimited(e);
+		}
+	}
+
+	protected static Expression tailCall(ExpressionEvaluatorVisitor evaluator, Expression fn, Expression arguments) {
+		return evaluator.tailCall((Pair) fn, arguments);
+	}
+
+	// frame of a closure call with simple parameters, null when the arguments have to be passed as a list.
+	protected static Object prepare(ExpressionEvaluatorVisitor evaluator, Expression fn, int arity) {
+		return evaluator.prepare((Pair) fn, arity);
+	}
+
+	protected static void bind(Object frame, int index, Expression value) {
+		((Frame) frame).bind(index, value);
+	}
+
+	protected static Expression run(ExpressionEvaluatorVisitor evaluator, Object frame) {
+		try {
+			return evaluator.run((Frame) frame);
+		} catch (Unwind | Continuation.Escape e) {
+			return evaluator.delimited(e);
+		}
+	}
+
+	protected static Expression tailCall(ExpressionEvaluatorVisitor evaluator, Object frame) {
+		return evaluator.tailCall((Frame) frame);
+	}
+
+	// macro and number calls are left to the interpreter.
+	protected static Expression dispatch(ExpressionEvaluatorVisitor evaluator, Object call, Expression fn, boolean tail) {
+		try {
+			return ((Analyzer.Call) call).dispatch(evaluator, fn, tail);
+		} catch (Unwind | Continuation.Escape e) {
+			return evaluator.delimited(e);
+		}
+	}
+
+	// true when the expansion inlined into the generated code is still the one the call site would use.
+	protected static boolean expanded(ExpressionEvaluatorVisitor evaluator, Object call, Object expansion, Expression fn) {
+		Analyzer.Expansion e = (Analyzer.Expansion) expansion;
+		if (((Analyzer.Call) call).expansion == e && e.isValid(fn, evaluator.env)) {
+			evaluator.env.getGlobals().macroExpansionHits.increment();
+			return true;
+		} else {
+			return false;
+		}
+	}
+}
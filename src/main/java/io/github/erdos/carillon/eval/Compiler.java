@@ -0,0 +1,291 @@
+package io.github.erdos.carillon.eval;
+
+import io.github.erdos.carillon.objects.Expression;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Turns the analyzed body of a closure into a JVM class so that HotSpot can optimize it.
+ *
+ * References, if, calls and the car, cdr, join, id and type primitives are compiled into straight bytecode. Macro
+ * calls are inlined with the expansion cached on their call site, guarded by a check that the expansion is still
+ * valid. Everything else, for example where, is called as an interpreted node from the generated code.
+ */
+final class Compiler implements Opcodes {
+
+	// nodes compiled into one class at most, the rest is interpreted. Keeps methods under the size limit of the jvm.
+	private static final int MAX_NODES = 2000;
+
+	private static final AtomicInteger counter = new AtomicInteger();
+
+	private static final String BASE = Type.getInternalName(CompiledNode.class);
+	private static final String EXPRESSION = Type.getDescriptor(Expression.class);
+	private static final String EVALUATOR = Type.getDescriptor(ExpressionEvaluatorVisitor.class);
+
+	private static final int THIS = 0, EVAL = 1;
+
+	private final List<Object> constants = new ArrayList<>();
+	private final MethodVisitor mv;
+	private int locals = 2;
+	private int nodes;
+
+	private Compiler(MethodVisitor mv) {
+		this.mv = mv;
+	}
+
+	/**
+	 * Compiled version of a closure body or the node itself when it can not be compiled.
+	 */
+	static Node compile(Node body) {
+		if (body instanceof CompiledNode) {
+			return body;
+		}
+		try {
+			String name = "io/github/erdos/carillon/eval/Compiled" + counter.incrementAndGet();
+
+			ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS) {
+				@Override
+				protected String getCommonSuperClass(String type1, String type2) {
+					// generated code only works with interfaces and final classes.
+					return type1.equals(type2) ? type1 : "java/lang/Object";
+				}
+			};
+			cw.visit(V1_8, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, name, null, BASE, null);
+
+			String constructor = "(" + Type.getDescriptor(Node.class) + "[Ljava/lang/Object;)V";
+			MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", constructor, null, null);
+			init.visitCode();
+			init.visitVarInsn(ALOAD, 0);
+			init.visitVarInsn(ALOAD, 1);
+			init.visitVarInsn(ALOAD, 2);
+			init.visitMethodInsn(INVOKESPECIAL, BASE, "<init>", constructor, false);
+			init.visitInsn(RETURN);
+			init.visitMaxs(0, 0);
+			init.visitEnd();
+
+			MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "evalTail", "(" + EVALUATOR + ")" + EXPRESSION, null, null);
+			mv.visitCode();
+			Compiler compiler = new Compiler(mv);
+			compiler.emit(body, true);
+			mv.visitInsn(ARETURN);
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+			cw.visitEnd();
+
+			Class<?> type = new Loader().define(name.replace('/', '.'), cw.toByteArray());
+			return (Node) type.getConstructor(Node.class, Object[].class).newInstance(body, compiler.constants.toArray());
+		} catch (RuntimeException | ReflectiveOperationException | LinkageError e) {
+			// interpreted code still works.
+			return body;
+		}
+	}
+
+	// leaves the value of the node on the stack.
+	private void emit(Node node, boolean tail) {
+		if (++nodes > MAX_NODES) {
+			fallback(node, tail);
+		} else if (node instanceof Analyzer.Constant) {
+			whereClear();
+			constant(((Analyzer.Constant) node).value);
+			mv.visitTypeInsn(CHECKCAST, Type.getInternalName(Expression.class));
+		} else if (node instanceof Analyzer.LexicalReference) {
+			Analyzer.LexicalReference reference = (Analyzer.LexicalReference) node;
+			whereClear();
+			mv.visitVarInsn(ALOAD, EVAL);
+			constant(reference.variable);
+			push(reference.depth);
+			push(reference.index);
+			call("lexical", "(" + EVALUATOR + "Ljava/lang/Object;II)" + EXPRESSION);
+		} else if (node instanceof Analyzer.FreeReference) {
+			whereClear();
+			mv.visitVarInsn(ALOAD, EVAL);
+			constant(node);
+			call("free", "(" + EVALUATOR + "Ljava/lang/Object;)" + EXPRESSION);
+		} else if (node instanceof SpecialForms.If) {
+			emitIf((SpecialForms.If) node, tail);
+		} else if (node instanceof Analyzer.Call) {
+			emitCall((Analyzer.Call) node, tail);
+		} else if (node instanceof Primitives.Car) {
+			whereClear();
+			mv.visitVarInsn(ALOAD, EVAL);
+			emit(((Primitives.Car) node).x, false);
+			call("car", "(" + EVALUATOR + EXPRESSION + ")" + EXPRESSION);
+		} else if (node instanceof Primitives.Cdr) {
+			whereClear();
+			mv.visitVarInsn(ALOAD, EVAL);
+			emit(((Primitives.Cdr) node).x, false);
+			call("cdr", "(" + EVALUATOR + EXPRESSION + ")" + EXPRESSION);
+		} else if (node instanceof Primitives.Join) {
+			whereClear();
+			emit(((Primitives.Join) node).a, false);
+			emit(((Primitives.Join) node).b, false);
+			call("join", "(" + EXPRESSION + EXPRESSION + ")" + EXPRESSION);
+		} else if (node instanceof Primitives.Id) {
+			whereClear();
+			emit(((Primitives.Id) node).a, false);
+			emit(((Primitives.Id) node).b, false);
+			call("id", "(" + EXPRESSION + EXPRESSION + ")" + EXPRESSION);
+		} else if (node instanceof Primitives.Type) {
+			whereClear();
+			emit(((Primitives.Type) node).x, false);
+			call("type", "(" + EXPRESSION + ")" + EXPRESSION);
+		} else {
+			fallback(node, tail);
+		}
+	}
+
+	private void emitIf(SpecialForms.If node, boolean tail) {
+		Label end = new Label();
+		whereClear();
+		for (int i = 0; i < node.conditions.length; i++) {
+			Label next = new Label();
+			emit(node.conditions[i], false);
+			nil();
+			mv.visitJumpInsn(IF_ACMPEQ, next);
+			emit(node.branches[i], tail);
+			mv.visitJumpInsn(GOTO, end);
+			mv.visitLabel(next);
+		}
+		if (node.otherwise == null) {
+			nil();
+		} else {
+			emit(node.otherwise, tail);
+		}
+		mv.visitLabel(end);
+	}
+
+	private void emitCall(Analyzer.Call node, boolean tail) {
+		Node[] arguments;
+		try {
+			arguments = node.arguments();
+		} catch (RuntimeException e) {
+			// improper argument list, the interpreter reports it.
+			fallback(node, tail);
+			return;
+		}
+
+		Label other = new Label(), end = new Label();
+		int fn = locals++;
+
+		whereClear();
+		emit(node.head, false);
+		mv.visitVarInsn(ASTORE, fn);
+
+		mv.visitVarInsn(ALOAD, fn);
+		call("isClosure", "(" + EXPRESSION + ")Z");
+		mv.visitJumpInsn(IFEQ, other);
+
+		// closure: evaluate the arguments in order, then build the list from the end.
+		int first = locals;
+		locals += arguments.length;
+		for (int i = 0; i < arguments.length; i++) {
+			emit(arguments[i], false);
+			mv.visitVarInsn(ASTORE, first + i);
+		}
+
+		// simple parameters are bound into the frame, others get a list of the values.
+		Label list = new Label();
+		int frame = locals++;
+		mv.visitVarInsn(ALOAD, EVAL);
+		mv.visitVarInsn(ALOAD, fn);
+		push(arguments.length);
+		call("prepare", "(" + EVALUATOR + EXPRESSION + "I)Ljava/lang/Object;");
+		mv.visitVarInsn(ASTORE, frame);
+		mv.visitVarInsn(ALOAD, frame);
+		mv.visitJumpInsn(IFNULL, list);
+		for (int i = 0; i < arguments.length; i++) {
+			mv.visitVarInsn(ALOAD, frame);
+			push(i);
+			mv.visitVarInsn(ALOAD, first + i);
+			call("bind", "(Ljava/lang/Object;I" + EXPRESSION + ")V");
+		}
+		mv.visitVarInsn(ALOAD, EVAL);
+		mv.visitVarInsn(ALOAD, frame);
+		call(tail ? "tailCall" : "run", "(" + EVALUATOR + "Ljava/lang/Object;)" + EXPRESSION);
+		mv.visitJumpInsn(GOTO, end);
+
+		mv.visitLabel(list);
+		mv.visitVarInsn(ALOAD, EVAL);
+		mv.visitVarInsn(ALOAD, fn);
+		nil();
+		for (int i = arguments.length - 1; i >= 0; i--) {
+			mv.visitVarInsn(ALOAD, first + i);
+			mv.visitInsn(SWAP);
+			call("join", "(" + EXPRESSION + EXPRESSION + ")" + EXPRESSION);
+		}
+		call(tail ? "tailCall" : "invoke", "(" + EVALUATOR + EXPRESSION + EXPRESSION + ")" + EXPRESSION);
+		mv.visitJumpInsn(GOTO, end);
+
+		mv.visitLabel(other);
+		Analyzer.Expansion expansion = node.expansion;
+		if (expansion != null) {
+			// macro: inline the expansion seen so far while it is valid.
+			Label slow = new Label();
+			mv.visitVarInsn(ALOAD, EVAL);
+			constant(node);
+			constant(expansion);
+			mv.visitVarInsn(ALOAD, fn);
+			call("expanded", "(" + EVALUATOR + "Ljava/lang/Object;Ljava/lang/Object;" + EXPRESSION + ")Z");
+			mv.visitJumpInsn(IFEQ, slow);
+			emit(expansion.node, tail);
+			mv.visitJumpInsn(GOTO, end);
+			mv.visitLabel(slow);
+		}
+		mv.visitVarInsn(ALOAD, EVAL);
+		constant(node);
+		mv.visitVarInsn(ALOAD, fn);
+		push(tail ? 1 : 0);
+		call("dispatch", "(" + EVALUATOR + "Ljava/lang/Object;" + EXPRESSION + "Z)" + EXPRESSION);
+
+		mv.visitLabel(end);
+	}
+
+	private void fallback(Node node, boolean tail) {
+		mv.visitVarInsn(ALOAD, EVAL);
+		constant(node);
+		call(tail ? "evalTail" : "eval", "(" + EVALUATOR + "Ljava/lang/Object;)" + EXPRESSION);
+	}
+
+	private void whereClear() {
+		mv.visitVarInsn(ALOAD, EVAL);
+		call("whereClear", "(" + EVALUATOR + ")V");
+	}
+
+	private void nil() {
+		mv.visitFieldInsn(GETSTATIC, "io/github/erdos/carillon/objects/Symbol", "NIL", "Lio/github/erdos/carillon/objects/Symbol;");
+	}
+
+	private void constant(Object value) {
+		mv.visitVarInsn(ALOAD, THIS);
+		mv.visitFieldInsn(GETFIELD, BASE, "constants", "[Ljava/lang/Object;");
+		push(constants.size());
+		mv.visitInsn(AALOAD);
+		constants.add(value);
+	}
+
+	private void push(int value) {
+		mv.visitLdcInsn(value);
+	}
+
+	private void call(String method, String descriptor) {
+		mv.visitMethodInsn(INVOKESTATIC, BASE, method, descriptor, false);
+	}
+
+	// each compiled class gets its own loader so it can be unloaded with the closure.
+	private static final class Loader extends ClassLoader {
+		Loader() {
+			super(Compiler.class.getClassLoader());
+		}
+
+		Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package io.github.erdos.carillon.eval;
+
+/**
+ * When closures get compiled. Kept apart from Compiler so that the interpreter does not need ASM on the class path
+ * while compilation is turned off.
+ */
+final class CompilerOptions {
+
+	// turned on with -Dcarillon.compile=true or the --compile command line flag.
+	static volatile boolean enabled = Boolean.getBoolean("carillon.compile");
+
+	// number of calls before a closure body gets compiled.
+	static volatile int threshold = Integer.getInteger("carillon.compile.threshold", 1000);
+
+	private CompilerOptions() {}
+}
@@ -0,0 +1,93 @@
+package io.github.erdos.carillon.eval;
+
+import io.github.erdos.carillon.objects.Expression;
+import io.github.erdos.carillon.objects.Pair;
+import io.github.erdos.carillon.objects.Symbol;
+
+import static io.github.erdos.carillon.objects.Symbol.NIL;
+
+/**
+ * Continuation passed to the function given to ccc, it looks like (lit cont) to Bel code. Calling it returns its
+ * argument from the ccc form, also after the form returned and any number of times.
+ *
+ * While the ccc form is running, calling the continuation unwinds the Java stack to the form with an exception and
+ * keeps nothing. When the form returns, the nodes waiting for its value are unwound up to the nearest enclosing ccc
+ * form or driver and leave their {@link Step}s on the heap, the evaluation goes on from these. The nodes around are
+ * on the heap from then on, so a capture only costs the nodes evaluated since the last one. Calling the continuation
+ * later unwinds the stack to where its steps end and resumes them there.
+ */
+final class Continuation extends Pair {
+
+	// last step of the continuation, the ones after it are linked when the ccc form returns.
+	final Exit exit = new Exit(this);
+
+	private final ExpressionEvaluatorVisitor evaluator;
+
+	// true while the ccc form that made it has not returned.
+	private boolean active = true;
+
+	Continuation(ExpressionEvaluatorVisitor evaluator) {
+		super(Symbol.LIT, new Pair(Symbol.CONT, NIL));
+		this.evaluator = evaluator;
+	}
+
+	// returns the value from the ccc form, by jumping to the end of the steps after it.
+	Expression call(ExpressionEvaluatorVisitor caller, Expression value) {
+		Step end = exit;
+		while (end.next != null) {
+			end = end.next;
+		}
+
+		Step.End target = (Step.End) end;
+		if (target.owner() != caller) {
+			throw new EvaluationException(value, "Continuation can not be called from an other thread!");
+		} else if (!target.isRunning()) {
+			throw new EvaluationException.ContinuationExpiredException(this);
+		}
+		throw new Escape(target, exit, value);
+	}
+
+	void exit() {
+		active = false;
+	}
+
+	// step that returns from the ccc form, its value goes to the nodes that waited for the form.
+	static final class Exit extends Step.End {
+		private final Continuation continuation;
+
+		private Exit(Continuation continuation) {
+			this.continuation = continuation;
+		}
+
+		@Override
+		ExpressionEvaluatorVisitor owner() {
+			return continuation.evaluator;
+		}
+
+		@Override
+		boolean isRunning() {
+			return continuation.active;
+		}
+	}
+
+	/**
+	 * Unwinds the Java stack to target without keeping the nodes passed, then the steps from start are resumed there.
+	 * A ccc form passed turns it into a {@link Unwind.Jump}, its continuation needs the nodes around it.
+	 */
+	static final class Escape extends RuntimeException {
+		final Step.End target;
+		final Step start;
+		final Expression value;
+
+		Escape(Step.End target, Step start, Expression value) {
+			super(null, null, false, false);
+			this.target = target;
+			this.start = start;
+			this.value = value;
+		}
+
+		Unwind.Jump collect(Exit exit) {
+			return new Unwind.Jump(exit, target, start, value);
+		}
+	}
+}
@@ -5,7 +5,6 @@ import io.github.erdos.carillon.objects.Expression;
 import io.github.erdos.carillon.objects.Pair;
 import io.github.erdos.carillon.objects.Symbol;
 
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.function.Function;
@@ -19,7 +18,12 @@ public final class Destructuring {
 
 	private Destructuring() {}
 
-	public static void destructureArgs(Expression name, Expression value, Function<Expression, Expression> mapper, Map<Variable, Pair> result) {
+	// receives the variables bound while destructuring.
+	interface Bindings {
+		void bind(Variable variable, Pair binding);
+	}
+
+	public static void destructureArgs(Expression name, Expression value, Function<Expression, Expression> mapper, Bindings result) {
 		if (name == NIL && value != NIL) {
 			throw new WrongArityException(NIL, value);
 		} else if (name == NIL) {
@@ -27,22 +31,26 @@ public final class Destructuring {
 		} else if (name instanceof Pair && ((Pair) name).car() instanceof Pair && ((Pair) ((Pair) name).car()).car() == O && value == NIL) {
 			destructureOptionalsTail((Pair) name, result, mapper);
 		} else if (value == NIL && name instanceof Symbol) {
-			result.put(Variable.enforce(name), new Pair(name, value));
+			result.bind(Variable.enforce(name), new Pair(name, value));
 		} else if (value == NIL) {
 			throw new WrongArityException(name, NIL);
 		} else if (name instanceof Symbol) {
-			result.put(Variable.enforce(name), new Pair(name, value));
+			result.bind(Variable.enforce(name), new Pair(name, value));
 		} else {
 			destructurePairs((Pair) name, (Pair) value, result, mapper);
 		}
 	}
 
 
-	public static void destructureOptionalsTail(Pair seqOfOptionals, Map<Variable, Pair> mappings, Function<Expression, Expression> mapper) {
+	public static void destructureOptionalsTail(Pair seqOfOptionals, Bindings mappings, Function<Expression, Expression> mapper) {
 		seqOfOptionals.forEach(opt -> destructureOptional((Pair) opt, Optional.empty(), mappings, mapper));
 	}
 
 	protected static void destructure(Expression name, Expression value, Map<Variable, Pair> mappings, Function<Expression, Expression> mapper) {
+		destructure(name, value, mappings::put, mapper);
+	}
+
+	protected static void destructure(Expression name, Expression value, Bindings mappings, Function<Expression, Expression> mapper) {
 
 		if (name == NIL) {
 
@@ -56,7 +64,7 @@ public final class Destructuring {
 		Optional<Variable> var = Variable.of(name);
 
 		if (var.isPresent()) {
-			mappings.put(var.get(), new Pair(var.get().getExpression(), value));
+			mappings.bind(var.get(), new Pair(var.get().getExpression(), value));
 		} else {
 			Pair namePair = (Pair) name;
 
@@ -64,8 +72,8 @@ public final class Destructuring {
 				destructureOptional(namePair, Optional.of(value), mappings, mapper);
 			} else if (namePair.car() == T) {
 				destructureTyped(namePair, value, mappings, mapper);
-			} else if (namePair.car().equals(Pair.EMPTY)) {
-				mappings.put(Variable.enforce(namePair), new Pair(namePair, value));
+			} else if (Pair.isEmptyPair(namePair.car())) {
+				mappings.bind(Variable.enforce(namePair), new Pair(namePair, value));
 			} else if (namePair.car() instanceof Pair && ((Pair) namePair.car()).car() == O && !(value instanceof Pair)) {
 				// TODO: optional shall be diff?
 				destructureOptional((Pair) namePair.car(), Optional.of(value), mappings, mapper);
@@ -75,7 +83,7 @@ public final class Destructuring {
 		}
 	}
 
-	private static void destructurePairs(Pair name0, Pair value0, Map<Variable, Pair> mappings, Function<Expression, Expression> mapper) {
+	private static void destructurePairs(Pair name0, Pair value0, Bindings mappings, Function<Expression, Expression> mapper) {
 		Expression nameIterator = name0;
 		Optional<Expression> valueIterator = Optional.of(value0);
 
@@ -96,8 +104,8 @@ public final class Destructuring {
 				} else {
 					destructureTyped(namePair, valueIterator.orElseThrow(evalException(NIL, "Missing value!")), mappings, mapper);
 				}
-			} else if (namePair.car().equals(Pair.EMPTY)) {
-				mappings.put(Variable.enforce(namePair), valueIterator.map(value -> new Pair(namePair, value)).orElseThrow(evalException(NIL, "Missing value for binding!")));
+			} else if (Pair.isEmptyPair(namePair.car())) {
+				mappings.bind(Variable.enforce(namePair), valueIterator.map(value -> new Pair(namePair, value)).orElseThrow(evalException(NIL, "Missing value for binding!")));
 				return;
 			} else if (namePair.car() instanceof Pair && ((Pair) namePair.car()).car() == O) {
 				destructureOptional((Pair) namePair.car(), valueIterator.map(x->(Pair) x).map(Pair::car), mappings, mapper);
@@ -119,12 +127,12 @@ public final class Destructuring {
 		}
 	}
 
-	private static void destructureTyped(Pair name, Expression value, Map<Variable, Pair> mappings, Function<Expression, Expression> mapper) {
+	private static void destructureTyped(Pair name, Expression value, Bindings mappings, Function<Expression, Expression> mapper) {
 		assert name.car() == T;
 		destructure(name.cadr(), value, mappings, mapper);
 	}
 
-	private static void destructureOptional(Pair name, Optional<Expression> value, Map<Variable, Pair> mappings, Function<Expression, Expression> mapper) {
+	private static void destructureOptional(Pair name, Optional<Expression> value, Bindings mappings, Function<Expression, Expression> mapper) {
 		assert name.car() == O;
 		Expression actualValue = value.orElse(mapper.apply(name.nthOrNil(2)));
 		destructure(name.cadr(), actualValue, mappings, mapper);
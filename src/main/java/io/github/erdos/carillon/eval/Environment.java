@@ -1,35 +1,280 @@
 package io.github.erdos.carillon.eval;
 
 import io.github.erdos.carillon.objects.Expression;
+import io.github.erdos.carillon.objects.Number;
 import io.github.erdos.carillon.objects.Pair;
+import io.github.erdos.carillon.objects.Text;
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Supplier;
 
+import static io.github.erdos.carillon.objects.Symbol.CLO;
+import static io.github.erdos.carillon.objects.Symbol.LIT;
+import static io.github.erdos.carillon.objects.Symbol.LOCK;
+import static io.github.erdos.carillon.objects.Symbol.MAC;
+import static io.github.erdos.carillon.objects.Symbol.NIL;
+
+/**
+ * Variable bindings seen by one thread of evaluation. Threads of the same runtime share the globals.
+ */
 public class Environment {
 
-	private final Map<Variable, Pair> globals = new ConcurrentHashMap<>();
-	private final Deque<Map<Variable, Pair>> lexicals = new ArrayDeque<>();
-	private final ThreadLocal<Map<Variable, Expression>> dynamicBindings = ThreadLocal.withInitial(HashMap::new);
+	/**
+	 * Global bindings of a runtime.
+	 *
+	 * Forking freezes the cells into a snapshot that nobody changes anymore, and both runtimes start with no cells of
+	 * their own. A runtime copies a cell from the snapshot the first time it uses the variable, with all the pairs
+	 * reachable from the value, so lists and the bindings closures closed over are not shared between runtimes.
+	 * Pairs reached from more than one value are copied once, so they stay shared within the runtime.
+	 *
+	 * The parameters and bodies of closures are code and stay shared, together with their analysis. The frames closures
+	 * captured are copied with the same scopes, so the analysis is valid for the copies too.
+	 *
+	 * A runtime forked again without having changed anything since its last fork keeps its cells, and the new fork
+	 * starts from the same snapshot.
+	 */
+	static final class Globals {
+		// cells of this runtime. Replaced when it is frozen, so cells cached on call sites are looked up again.
+		volatile Map<Variable, Pair> cells = new ConcurrentHashMap<>();
+
+		// cells frozen by the last fork, null when there was none.
+		private volatile Snapshot base;
+
+		// copies made of the pairs and frames of the snapshot.
+		private Map<Pair, Pair> copies;
+		private Map<Frame, Frame> frames;
+
+		// true when the runtime may differ from its snapshot, the next fork freezes it again.
+		private volatile boolean changed = true;
+
+		// put on copied pairs, it is dropped when the pair is written.
+		private final Pair.Dependent written = () -> changed = true;
+
+		// replaced when a global macro is redefined. Cached macro expansions are valid while it stays the same, also
+		// in forks of the runtime that have not redefined a macro either.
+		volatile Object macros = new Object();
+
+		final GlobalLock lock = new GlobalLock();
+
+		// usage of the macro expansion cache of call sites, by every thread of the runtime.
+		final LongAdder macroExpansionHits = new LongAdder();
+		final LongAdder macroExpansionMisses = new LongAdder();
+
+		Globals() {}
+
+		private Globals(Snapshot base, Object macros) {
+			this.base = base;
+			this.copies = new IdentityHashMap<>();
+			this.frames = new IdentityHashMap<>();
+			this.macros = macros;
+			this.changed = false;
+		}
+
+		// globals of a new runtime in the state of this one. Nothing is copied until it is used.
+		synchronized Globals fork() {
+			if (changed) {
+				// one flat snapshot, the cells not copied yet are taken over from the last one.
+				Map<Variable, Pair> frozen = base == null ? new HashMap<>() : new HashMap<>(base.cells);
+				frozen.putAll(cells);
+				base = new Snapshot(frozen);
+				cells = new ConcurrentHashMap<>();
+				copies = new IdentityHashMap<>();
+				frames = new IdentityHashMap<>();
+				changed = false;
+			}
+			return new Globals(base, macros);
+		}
+
+		// cell of the variable, null when it is not defined.
+		Pair cell(Variable v) {
+			Pair cell = cells.get(v);
+			if (cell == null) {
+				Snapshot s = base;
+				if (s != null && s.cells.containsKey(v)) {
+					return copyCell(v);
+				}
+			}
+			return cell;
+		}
 
-	private final ThreadLocal<LastLocation> lastLocation = ThreadLocal.withInitial(() -> null);
+		// a new variable, the runtime is not the same as its snapshot anymore.
+		Pair define(Variable v, Pair cell) {
+			changed = true;
+			return cells.putIfAbsent(v, cell);
+		}
+
+		private synchronized Pair copyCell(Variable v) {
+			Pair cell = cells.get(v);
+			if (cell == null) {
+				Pair frozen = base.cells.get(v);
+				cell = new Pair(frozen.car(), copy(frozen.cdr()));
+				cell.setAnalyzed(written);
+				cells.put(v, cell);
+			}
+			return cell;
+		}
+
+		// all cells, the ones in the snapshot are copied first.
+		Collection<Pair> all() {
+			Snapshot s = base;
+			if (s != null) {
+				s.cells.keySet().forEach(this::cell);
+			}
+			return cells.values();
+		}
+
+		// true when the pair is the copy of a pair of the snapshot made by this runtime.
+		synchronized boolean isCopy(Pair original, Expression copy) {
+			return copies != null && copies.get(original) == copy;
+		}
+
+		// copy of a value of the snapshot. Atoms, channels, continuations and the code of closures are not copied.
+		private Expression copy(Expression value) {
+			Deque<Pair> pending = new ArrayDeque<>();
+			Set<Pair> code = Collections.newSetFromMap(new IdentityHashMap<>());
+			Expression result = copyOf(value, pending);
+			while (!pending.isEmpty()) {
+				Pair original = pending.pop();
+				Pair copy = copies.get(original);
+				if (isClosure(original)) {
+					addCode(original, code);
+				}
+				copy.setCar(code.contains(original) ? original.car() : copyOf(original.car(), pending));
+				copy.setCdr(copyOf(original.cdr(), pending));
+
+				// set after the writes above, they drop it.
+				Object analyzed = original.getAnalyzed();
+				copy.setAnalyzed(analyzed instanceof Frame ? copyOf((Frame) analyzed, pending) : written);
+			}
+			return result;
+		}
+
+		private static boolean isClosure(Pair p) {
+			return p.car() == LIT && p.cdr() instanceof Pair && ((Pair) p.cdr()).car() == CLO;
+		}
+
+		// the pairs holding the parameters and the body of a (lit clo scope params body) closure.
+		private static void addCode(Pair closure, Set<Pair> code) {
+			Expression e = closure;
+			for (int i = 0; i < 3 && e instanceof Pair; i++) {
+				e = ((Pair) e).cdr();
+			}
+			for (int i = 0; i < 2 && e instanceof Pair; i++) {
+				code.add((Pair) e);
+				e = ((Pair) e).cdr();
+			}
+		}
+
+		// frame of a scope list, with the bindings copied like the list.
+		private Frame copyOf(Frame frame, Deque<Pair> pending) {
+			if (frame == null) {
+				return null;
+			}
+			Frame copy = frames.get(frame);
+			if (copy == null) {
+				copy = frame.copy(copyOf(frame.parent, pending));
+				frames.put(frame, copy);
+				for (int i = 0; i < frame.slots.length; i++) {
+					copy.slots[i] = (Pair) copyOf(frame.slots[i], pending);
+				}
+			}
+			return copy;
+		}
+
+		// the copy of a pair with its car and cdr filled in later, numbers and strings that were not read yet at once.
+		private Expression copyOf(Expression e, Deque<Pair> pending) {
+			if (!(e instanceof Pair) || e instanceof Continuation) {
+				return e;
+			}
+
+			Pair copy = copies.get(e);
+			if (copy == null) {
+				if (e instanceof Number && !((Number) e).isExpanded()) {
+					Number n = (Number) e;
+					copy = Number.number(n.getRealNumerator(), n.getRealDenominator(), n.getImaginaryNumerator(), n.getImaginaryDenominator());
+					copy.setAnalyzed(written);
+				} else if (e instanceof Text && ((Text) e).isIntact() && !((Text) e).isExpanded()) {
+					copy = (Pair) Text.text(((Text) e).getString());
+					copy.setAnalyzed(written);
+				} else {
+					copy = new Pair(NIL, NIL);
+					pending.push((Pair) e);
+				}
+				copies.put((Pair) e, copy);
+			}
+			return copy;
+		}
+	}
+
+	// cells frozen by a fork.
+	private static final class Snapshot {
+		final Map<Variable, Pair> cells;
+
+		Snapshot(Map<Variable, Pair> cells) {
+			this.cells = cells;
+		}
+	}
+
+	private final Globals globals;
+	private final Map<Variable, Expression> dynamicBindings;
+
+	// number of active dyn bindings, lets lookups skip the dynamic bindings most of the time.
+	private int dynamicBindingCount;
+
+	// lexical bindings of the closure being evaluated, null on top level.
+	private Frame frame;
+
+	// number of where forms being evaluated, frames of finished calls are not reused meanwhile.
+	private int pinnedFrames;
+
+	private final LastLocation lastLocation = new LastLocation();
+
+	public Environment() {
+		this(new Globals(), new HashMap<>());
+	}
+
+	private Environment(Globals globals, Map<Variable, Expression> dynamicBindings) {
+		this.globals = globals;
+		this.dynamicBindings = dynamicBindings;
+		this.dynamicBindingCount = dynamicBindings.size();
+	}
+
+	// environment of a new thread: the globals are shared, the dynamic bindings are copied.
+	Environment newThread() {
+		Map<Variable, Expression> copy = new HashMap<>(dynamicBindings);
+		// the lock is held by the parent, the thread has to bind lock itself to get it.
+		copy.keySet().removeIf(v -> v.getExpression() == LOCK);
+		return new Environment(globals, copy);
+	}
+
+	// environment of a forked runtime: globals in the same state and no dynamic bindings.
+	Environment fork() {
+		return new Environment(globals.fork(), new HashMap<>());
+	}
+
+	Globals getGlobals() {
+		return globals;
+	}
 
-	// adds support to (where x) calls.
+	// adds support to (where x) calls. The same instance is updated on every read from a pair.
 	static final class LastLocation {
+		// null when the last value does not come from a pair.
 		Pair pair;
 		boolean car;
 
-		LastLocation(Pair p, boolean c) {
-			this.pair = p;
-			this.car = c;
-		}
-
-		void update(Expression value) {
+		static void update(Pair pair, boolean car, Expression value) {
 			if (car) {
 				pair.setCar(value);
 			} else {
@@ -39,21 +284,37 @@ public class Environment {
 	}
 
 	public Expression whereCar(Pair p) {
-		lastLocation.set(new LastLocation(p, true));
+		lastLocation.pair = p;
+		lastLocation.car = true;
 		return p.car();
 	}
 
 	public Expression whereCdr(Pair p) {
-		lastLocation.set(new LastLocation(p, false));
+		lastLocation.pair = p;
+		lastLocation.car = false;
 		return p.cdr();
 	}
 
 	public void whereClear() {
-		lastLocation.remove();
+		lastLocation.pair = null;
 	}
 
-	public Optional<LastLocation> getLastLocation() {
-		return Optional.ofNullable(lastLocation.get());
+	// location of the last value or null. The returned object changes with the next read.
+	LastLocation getLastLocation() {
+		return lastLocation.pair == null ? null : lastLocation;
+	}
+
+	// the value of x in (where x) may be a binding of a frame, so frames must not be reused while it is evaluated.
+	void pinFrames() {
+		pinnedFrames++;
+	}
+
+	void unpinFrames() {
+		pinnedFrames--;
+	}
+
+	boolean canReuseFrames() {
+		return pinnedFrames == 0;
 	}
 
 	/**
@@ -63,12 +324,41 @@ public class Environment {
 	 * global binding for it.
 	 */
 	public void set(Variable v, Expression e) {
-		if (dynamicBindings.get().containsKey(v)) {
-			dynamicBindings.get().put(v, e);
+		if (dynamicBindingCount > 0 && dynamicBindings.containsKey(v)) {
+			dynamicBindings.put(v, e);
 		} else if (swapLexicalBinding(v, e)) {
 			// already swapped, we are all good.
 		} else {
-			globals.put(v, new Pair(v.getExpression(), e));
+			setGlobal(v, e);
+		}
+	}
+
+	// global cells are updated in place so that call sites holding them see the new value.
+	private void setGlobal(Variable v, Expression e) {
+		Pair cell = globals.cell(v);
+		if (cell == null) {
+			cell = globals.define(v, new Pair(v.getExpression(), e));
+			if (cell == null) {
+				return;
+			}
+		}
+		if (isMacro(cell.cdr())) {
+			globals.macros = new Object();
+		}
+		cell.setCdr(e);
+	}
+
+	private static boolean isMacro(Expression e) {
+		return e instanceof Pair && ((Pair) e).car() == LIT && ((Pair) e).cadr() == MAC;
+	}
+
+	// assignment to a variable resolved to a slot of an enclosing frame.
+	void setLexical(Variable v, int depth, int index, Expression e) {
+		Pair binding = dynamicBindingCount == 0 ? lexicalSlot(depth, index) : null;
+		if (binding != null) {
+			binding.setCdr(e);
+		} else {
+			set(v, e);
 		}
 	}
 
@@ -76,86 +366,180 @@ public class Environment {
 	 * Dynamic bindings take precendence over lexical bindings, which take precedence over global ones.
 	 */
 	public Optional<Expression> get(Variable v) {
+		return Optional.ofNullable(lookup(v));
+	}
+
+	// same as get, null when there is no binding.
+	Expression lookup(Variable v) {
 		Expression e = getDynamicBinding(v);
-		if (e != null) return Optional.of(e);
+		if (e != null) return e;
 
 		e = getLexicalBinding(v);
-		if (e != null) return Optional.of(e);
-
-		e = getGlobalBinding(v);
-		if (e != null) return Optional.of(e);
+		if (e != null) return e;
 
-		return Optional.empty();
+		return getGlobalBinding(v);
 	}
 
 	public Expression getGlobalBinding(Variable v) {
-		if (globals.containsKey(v)) {
-			return whereCdr(globals.get(v));
-		} else {
-			return null;
-		}
+		Pair cell = globals.cell(v);
+		return cell == null ? null : whereCdr(cell);
+	}
+
+	// the (name . value) pair of a global variable, the same one globe lists. Null when it is not defined yet.
+	Pair getGlobalCell(Variable v) {
+		return globals.cell(v);
+	}
+
+	boolean hasDynamicBindings() {
+		return dynamicBindingCount > 0;
 	}
 
 	public Expression getLexicalBinding(Variable v) {
-		for (Map<Variable, Pair> m : lexicals) {
-			if (m.containsKey(v)) {
-				return whereCdr(m.get(v));
+		for (Frame f = frame; f != null; f = f.parent) {
+			int index = f.scope.indexOf(v.getExpression());
+			if (index >= 0 && f.slots[index] != null) {
+				return whereLexical(f, f.slots[index]);
 			}
 		}
 		return null;
 	}
 
-	public boolean swapLexicalBinding(Variable v, Expression newValue) {
-		for (Map<Variable, Pair> m : lexicals) {
-			if (m.containsKey(v)) {
-				m.get(v).setCdr(newValue);
-				return true;
+	// lookup of a variable resolved to a slot of an enclosing frame.
+	Expression getLexicalBinding(Variable v, int depth, int index) {
+		if (dynamicBindingCount == 0) {
+			Frame f = frame;
+			for (int i = 0; i < depth; i++) {
+				f = f.parent;
+			}
+			if (f.slots[index] != null) {
+				return whereLexical(f, f.slots[index]);
 			}
 		}
-		return false;
+		// dynamic binding or parameter that is not bound yet.
+		return lookup(v);
 	}
 
-	public Expression getDynamicBinding(Variable v) {
-		return dynamicBindings.get().get(v);
+	// a binding read inside a where form may be returned as a location, its frame must keep it after the call.
+	private Expression whereLexical(Frame f, Pair binding) {
+		if (pinnedFrames > 0) {
+			f.captured = true;
+		}
+		return whereCdr(binding);
 	}
 
-	public Expression withLexicals(Map<Variable, Pair> lexicalMapping, Supplier<Expression> body) {
-		lexicals.push(lexicalMapping);
-		try {
-			return body.get();
-		} finally {
-			lexicals.pop();
+	private Pair lexicalSlot(int depth, int index) {
+		Frame f = frame;
+		for (int i = 0; i < depth; i++) {
+			f = f.parent;
 		}
+		return f.slots[index];
 	}
 
-	public Expression withDynamicBinding(Variable variable, Expression value, Supplier<Expression> body) {
-		Expression valueBefore = dynamicBindings.get().get(variable);
+	public boolean swapLexicalBinding(Variable v, Expression newValue) {
+		Pair binding = frame == null ? null : frame.find(v.getExpression());
+		if (binding != null) {
+			binding.setCdr(newValue);
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	public Expression getDynamicBinding(Variable v) {
+		return dynamicBindings.get(v);
+	}
 
-		dynamicBindings.get().put(variable, value);
+	Scope getScopeDescription() {
+		return frame == null ? null : frame.scope;
+	}
+
+	Frame getFrame() {
+		return frame;
+	}
+
+	void setFrame(Frame frame) {
+		this.frame = frame;
+	}
+
+	// binding lock to a true value also stops the other threads of the runtime until the body returns.
+	public Expression withDynamicBinding(Variable variable, Expression value, Supplier<Expression> body) {
+		boolean locking = variable.getExpression() == LOCK && value != NIL;
+		if (locking) {
+			globals.lock.acquire();
+		}
 
+		Expression valueBefore = bindDynamic(variable, value);
 		try {
 			return body.get();
 		} finally {
-			if (valueBefore != null) {
-				dynamicBindings.get().put(variable, valueBefore);
-			} else {
-				dynamicBindings.get().remove(variable);
+			unbindDynamic(variable, valueBefore);
+			if (locking) {
+				globals.lock.release();
 			}
 		}
 	}
 
+	// binds the variable dynamically and returns its dynamic value before, null when it had none.
+	Expression bindDynamic(Variable variable, Expression value) {
+		Expression valueBefore = dynamicBindings.put(variable, value);
+		dynamicBindingCount++;
+		return valueBefore;
+	}
+
+	void unbindDynamic(Variable variable, Expression valueBefore) {
+		dynamicBindingCount--;
+		if (valueBefore != null) {
+			dynamicBindings.put(variable, valueBefore);
+		} else {
+			dynamicBindings.remove(variable);
+		}
+	}
+
+	// lets another thread finish its lock section first.
+	void safePoint() {
+		globals.lock.pause();
+	}
+
 	public Expression getGlobe() {
-		return globals.values().stream().collect(Pair.collectPairOrNil());
+		return globals.all().stream().collect(Pair.collectPairOrNil());
+	}
+
+	// current frame for a closure or thread that outlives the call.
+	Frame captureFrame() {
+		for (Frame f = frame; f != null; f = f.parent) {
+			f.captured = true;
+		}
+		return frame;
 	}
 
+	/**
+	 * List of the visible lexical bindings. Closures made with this list as their scope share the bindings with the
+	 * current frame.
+	 */
 	public Expression getScope() {
-		Map<Variable, Expression> map = new HashMap<>();
-		for (Map<Variable, Pair> m : lexicals) {
-			for (Map.Entry<Variable, Pair> entry : m.entrySet()) {
-				map.putIfAbsent(entry.getKey(), entry.getValue());
+		List<Expression> names = new ArrayList<>();
+		Pair first = null, last = null;
+		for (Frame f = frame; f != null; f = f.parent) {
+			f.captured = true;
+			for (Pair binding : f.slots) {
+				if (binding != null && !Scope.containsIdentical(names, binding.car())) {
+					names.add(binding.car());
+					Pair cell = new Pair(binding, NIL);
+					if (first == null) {
+						first = cell;
+					} else {
+						last.setCdr(cell);
+					}
+					last = cell;
+				}
 			}
 		}
 
-		return map.values().stream().collect(Pair.collectPairOrNil());
+		if (first == null) {
+			return NIL;
+		} else {
+			first.setAnalyzed(frame);
+			return first;
+		}
 	}
 }
@@ -46,4 +46,10 @@ public class EvaluationException extends RuntimeException {
 			super(stream, "Stream has been already closed!");
 		}
 	}
+
+	public static final class ContinuationExpiredException extends EvaluationException {
+		public ContinuationExpiredException(Expression continuation) {
+			super(continuation, "Continuation can not be resumed, the code it returns to has finished!");
+		}
+	}
 }
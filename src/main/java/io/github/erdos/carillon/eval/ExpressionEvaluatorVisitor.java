@@ -1,215 +1,451 @@
 package io.github.erdos.carillon.eval;
 
 import io.github.erdos.carillon.eval.EvaluationException.UnboundSymbolException;
+import io.github.erdos.carillon.objects.Channel;
 import io.github.erdos.carillon.objects.Character;
 import io.github.erdos.carillon.objects.Expression;
 import io.github.erdos.carillon.objects.ExpressionVisitor;
+import io.github.erdos.carillon.objects.Number;
 import io.github.erdos.carillon.objects.Pair;
 import io.github.erdos.carillon.objects.Stream;
 import io.github.erdos.carillon.objects.Symbol;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Optional;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
-import static io.github.erdos.carillon.eval.EvaluationException.evalException;
-import static io.github.erdos.carillon.objects.Symbol.APPLY;
 import static io.github.erdos.carillon.objects.Symbol.CHARS;
 import static io.github.erdos.carillon.objects.Symbol.GLOBE;
 import static io.github.erdos.carillon.objects.Symbol.INS;
 import static io.github.erdos.carillon.objects.Symbol.LIT;
 import static io.github.erdos.carillon.objects.Symbol.NIL;
-import static io.github.erdos.carillon.objects.Symbol.O;
 import static io.github.erdos.carillon.objects.Symbol.OUTS;
 import static io.github.erdos.carillon.objects.Symbol.SCOPE;
-import static io.github.erdos.carillon.objects.Symbol.T;
 
 class ExpressionEvaluatorVisitor implements ExpressionVisitor<Expression> {
-	private final Primitives primitives = new Primitives();
-	private final SpecialForms specialForms = new SpecialForms();
 
-	private final Environment env = new Environment();
+	final Environment env;
+
+	private final TailCall tailCall = new TailCall();
+
+	// end of the steps of continuations captured on top level, any later top level evaluation can resume them.
+	private final Delimiter top = new Delimiter(this);
+
+	ExpressionEvaluatorVisitor() {
+		this(new Environment());
+	}
+
+	ExpressionEvaluatorVisitor(Environment env) {
+		this.env = env;
+	}
 
 	// see: ev function in bel.bel
 	public Expression appliedTo(Expression param) {
 		return param.apply(this);
 	}
 
-	@Override
-	public Expression pair(Pair pair) {
-		env.whereClear();
-
-		Optional<Variable> maybeVar = Variable.of(pair);
-		if (maybeVar.isPresent()) {
-			return env.get(maybeVar.get()).orElseThrow(evalException(pair, "Could not resolve variable!"));
+	// evaluates an expression on top level, this is the driver that resumes the steps of continuations.
+	Expression evaluate(Expression expression) {
+		top.running++;
+		try {
+			return appliedTo(expression);
+		} catch (Unwind | Continuation.Escape e) {
+			return resume(e, top);
+		} finally {
+			top.running--;
 		}
+	}
 
-		Expression sym = pair.car();
-
-		if (Symbol.ERR.equals(sym)) {
-			return specialForms.evalErr(pair, this);
+	/**
+	 * Runs Java code that calls back into the evaluator, like a macro expansion or a thread. The Java stack below can
+	 * not be kept on the heap, so continuations captured inside can only be resumed until it returns.
+	 */
+	Expression delimit(Supplier<Expression> body) {
+		try {
+			return body.get();
+		} catch (Unwind | Continuation.Escape e) {
+			return delimited(e);
 		}
+	}
 
-		if (Symbol.LIT.equals(sym)) {
-			return specialForms.evalLit(pair);
+	// goes on with the evaluation after the stack was unwound to Java code calling back into the evaluator.
+	Expression delimited(RuntimeException thrown) {
+		Delimiter end = new Delimiter(this);
+		end.running++;
+		try {
+			return resume(thrown, end);
+		} catch (Unwind.Jump jump) {
+			throw jump.escape();
+		} finally {
+			end.running--;
 		}
+	}
 
-		if (Symbol.CLS.equals(sym)) {
-			((Stream) pair.cadr().apply(this)).close();
+	/**
+	 * Goes on with the evaluation after the stack was unwound to a ccc form or a driver, stop is its last step. The
+	 * steps are resumed here one after the other and the value that reaches stop is returned. Continuations called
+	 * meanwhile start over here when their steps end at stop, the others are thrown on.
+	 */
+	Expression resume(RuntimeException thrown, Step.End stop) {
+		if (thrown instanceof Continuation.Escape && ((Continuation.Escape) thrown).target == stop
+				&& ((Continuation.Escape) thrown).start == stop) {
+			// escaping from the ccc form, there is nothing to resume.
+			return ((Continuation.Escape) thrown).value;
 		}
 
-		if (Symbol.IF.equals(sym)) {
-			return specialForms.evalIf(pair, this);
-		}
+		final Frame frameBefore = env.getFrame();
+		Deque<Step> entered = new ArrayDeque<>();
+		Step rest = stop;
+		try {
+			while (true) {
+				Step step;
+				Expression value;
+				if (thrown instanceof Unwind.Capture) {
+					// the nodes unwound wait for the value of the ccc form, the rest of the steps waits for them.
+					Unwind.Capture capture = (Unwind.Capture) thrown;
+					capture.last.next = rest;
+					step = capture.first;
+					value = capture.value;
+					enter(step, rest, entered);
+				} else {
+					leave(entered);
+					Step.End target;
+					if (thrown instanceof Unwind.Jump) {
+						Unwind.Jump jump = (Unwind.Jump) thrown;
+						jump.last.next = rest;
+						jump.last = stop;
+						target = jump.target;
+						step = jump.start;
+						value = jump.value;
+					} else {
+						Continuation.Escape escape = (Continuation.Escape) thrown;
+						target = escape.target;
+						step = escape.start;
+						value = escape.value;
+					}
+					if (target != stop) {
+						throw thrown;
+					}
+					enter(step, stop, entered);
+				}
 
-		if (Symbol.QUOTE.equals(sym)) {
-			return specialForms.evalQuote(pair);
+				try {
+					while (step != stop) {
+						if (step.isScoped()) {
+							entered.pop();
+							step.leave(this);
+						}
+						env.setFrame(step.frame);
+						value = step.resume(this, value);
+						step = step.next;
+					}
+					return value;
+				} catch (Unwind | Continuation.Escape e) {
+					thrown = e;
+					rest = step.next;
+				}
+			}
+		} finally {
+			leave(entered);
+			env.setFrame(frameBefore);
 		}
+	}
 
-		if (Symbol.ID.equals(sym)) {
-			return primitives.evalId(pair, this);
+	// makes the dynamic state of the steps from step up to end, the outer ones first.
+	private void enter(Step step, Step end, Deque<Step> entered) {
+		List<Step> scoped = null;
+		for (Step s = step; s != end; s = s.next) {
+			if (s.isScoped()) {
+				if (scoped == null) {
+					scoped = new ArrayList<>();
+				}
+				scoped.add(s);
+			}
 		}
-
-		if (Symbol.APPLY.equals(sym)) {
-			return specialForms.evalApply(pair, this);
+		for (int i = scoped == null ? -1 : scoped.size() - 1; i >= 0; i--) {
+			scoped.get(i).enter(this);
+			entered.push(scoped.get(i));
 		}
+	}
 
-		if (Symbol.JOIN.equals(sym)) {
-			return primitives.evalJoin(pair, this);
+	private void leave(Deque<Step> entered) {
+		while (!entered.isEmpty()) {
+			entered.pop().leave(this);
 		}
+	}
 
-		if (Symbol.CAR.equals(sym)) {
-			return primitives.evalCar(pair, env, this);
-		}
+	// end of the steps left by the nodes evaluated on top level or by Java code calling back into the evaluator.
+	static final class Delimiter extends Step.End {
+		private final ExpressionEvaluatorVisitor evaluator;
 
-		if (Symbol.CDR.equals(sym)) {
-			return primitives.evalCdr(pair, env, this);
-		}
+		// number of evaluations running on it, top level ones may be nested.
+		int running;
 
-		if (Symbol.TYPE.equals(sym)) {
-			return primitives.evalType(pair, this);
+		Delimiter(ExpressionEvaluatorVisitor evaluator) {
+			this.evaluator = evaluator;
 		}
 
-		if (Symbol.XAR.equals(sym)) {
-			return primitives.evalXar(pair, this);
+		@Override
+		ExpressionEvaluatorVisitor owner() {
+			return evaluator;
 		}
 
-		if (Symbol.XDR.equals(sym)) {
-			return primitives.evaXdr(pair, this);
+		@Override
+		boolean isRunning() {
+			return running > 0;
 		}
+	}
 
-		if (Symbol.SYM.equals(sym)) {
-			return primitives.evalSym(pair, this);
-		}
+	@Override
+	public Expression pair(Pair pair) {
+		return Analyzer.analyze(pair, env.getScopeDescription()).eval(this);
+	}
 
-		if (Symbol.NOM.equals(sym)) {
-			return primitives.evalNom(pair, this);
-		}
+	// calls the closure inside of the macro with the unevaluated arguments and returns the expansion.
+	Expression expandMacro(Pair mac, Expression arguments) {
+		Pair nestedClo = (Pair) mac.caddr(); // lit inside mac!
+		return delimit(() -> evalFnCallImpl(nestedClo, arguments, x -> x));
+	}
 
-		if (Symbol.COIN.equals(sym)) {
-			return primitives.coin(pair);
-		}
+	// calls a closure with already evaluated arguments.
+	Expression invoke(Pair fn, Expression argumentValues) {
+		return evalFnCallImpl(fn, argumentValues, this::defaultValue);
+	}
 
-		if (Symbol.SYS.equals(sym)) {
-			return primitives.sys(pair, this);
-		}
+	// value of an optional parameter, evaluated while the arguments are destructured.
+	private Expression defaultValue(Expression expression) {
+		return delimit(() -> appliedTo(expression));
+	}
 
-		if (Symbol.OPS.equals(sym)) {
-			return primitives.ops(pair, this);
+	// applies any callable value to already evaluated arguments.
+	Expression apply(Expression fn, Expression argumentValues) {
+		if (fn instanceof Pair && ((Pair) fn).cadr() == Symbol.CLO) {
+			return invoke((Pair) fn, argumentValues);
 		}
 
-		if (Symbol.SET.equals(sym)) {
-			return set(pair);
+		// macros and numbers get the values quoted, just like in a regular call.
+		Pair call = new Pair(RT.quote(fn), NIL);
+		Pair last = call;
+		for (Expression e = argumentValues; e != NIL; e = ((Pair) e).cdr()) {
+			Pair cell = new Pair(RT.quote(((Pair) e).car()), NIL);
+			last.setCdr(cell);
+			last = cell;
 		}
+		return appliedTo(call);
+	}
 
-		if (Symbol.DYN.equals(sym)) {
-			return specialForms.evalDyn(pair, env, this);
-		}
+	// numbers in head position index into their argument.
+	Expression nth(Pair number, Expression list) {
+		// TODO: rewrite to use virfns instead. use it to lookup which macro to run.
+		//
 
-		if (Symbol.WHERE.equals(sym)) {
-			return specialForms.evalWhere(pair, env, this);
+		// TODO: check for sign, denominator, complex part.
+		long nominator;
+		if (number instanceof Number && !((Number) number).isExpanded()) {
+			BigInteger n = ((Number) number).getRealNumerator().abs();
+			nominator = n.bitLength() > 31 ? Integer.MAX_VALUE : n.longValue();
+		} else {
+			Expression nominatorExpr = ((Pair) number.caddr()).cadr();
+			nominator = (nominatorExpr == NIL) ? 0 : ((Pair) nominatorExpr).stream().count();
 		}
 
-		if (Symbol.CCC.equals(sym)) {
-			return specialForms.evalCcc(pair, env, this);
+		if (list == NIL) {
+			return NIL;
 		}
+		return nthOrNil((Pair) list, (int) nominator - 1);
+	}
 
-		if (Symbol.THREAD.equals(sym)) {
-			return specialForms.evalThread(pair, env, this);
+	public Expression nthOrNil(Pair p, int n) {
+		for (int i = 0; i < n; i++) {
+			if (p.cdr() == NIL) {
+				return NIL;
+			} else {
+				p = (Pair) p.cdr();
+			}
 		}
+		return env.whereCar(p);
+	}
+
+	// marks a closure call in tail position, it is made by the loop in run.
+	Expression tailCall(Pair fn, Expression argumentValues) {
+		return tailCall.set(fn, argumentValues);
+	}
 
-		return evalLitCall(pair);
+	Expression tailCall(Frame frame) {
+		return tailCall.set(frame);
 	}
 
-	private Expression evalLitCall(Pair expression) {
-		final Expression head = expression.car().apply(this);
+	/**
+	 * Calls a closure with the values of the argument nodes. Simple parameter lists get the values bound directly, without
+	 * making a list of them.
+	 */
+	Expression invoke(Pair fn, Node[] arguments, boolean tail) {
+		Frame frame = prepare(fn, arguments.length);
+
+		if (frame == null) {
+			Expression values = evalArguments(fn, arguments, tail);
+			return tail ? tailCall(fn, values) : invoke(fn, values);
+		}
 
-		if (!(head instanceof Pair)) {
-			throw new EvaluationException(head, "Expected literal expression in head. Original expression was=" + expression);
-		} else if (((Pair) head).cadr() == Symbol.MAC) {
-			Pair nestedClo = (Pair) ((Pair) head).caddr(); // lit inside mac!
-			Expression macroCallResult = evalFnCallImpl(nestedClo, expression.cdr(), x -> x);
+		int i = 0;
+		try {
+			for (; i < arguments.length; i++) {
+				frame.bind(i, arguments[i].eval(this));
+			}
+		} catch (Unwind unwind) {
+			Expression[] values = new Expression[arguments.length];
+			for (int j = 0; j < i; j++) {
+				values[j] = frame.slots[j].cdr();
+			}
+			throw unwind.then(this, waiting(fn, arguments, values, i, tail));
+		}
+		return tail ? tailCall(frame) : run(frame);
+	}
 
-			// TODO: except if result is a symbol and we are in a WHERE form!!!
-			return this.appliedTo(macroCallResult);
-		} else if (((Pair) head).cadr() == Symbol.CLO) {
-			return evalFnCallImpl((Pair) head, expression.cdr(), this::appliedTo);
-		} else if (((Pair) head).cadr() == Symbol.NUM) {
-			// TODO: rewrite to use virfns instead. use it to lookup which macro to run.
-			//
+	// step of a call waiting for an argument. The values before it are copied, the step may be resumed again.
+	private static Step.Rest waiting(Pair fn, Node[] arguments, Expression[] values, int index, boolean tail) {
+		return (evaluator, value) -> {
+			Expression[] copy = Arrays.copyOf(values, values.length);
+			copy[index] = value;
+			return evaluator.invoke(fn, arguments, copy, index + 1, tail);
+		};
+	}
 
-			Expression nominatorExpr = ((Pair) ((Pair) head).caddr()).cadr();
-			// TODO: check for sign, denominator, complex part.
-			long nominator = (nominatorExpr == NIL) ? 0 : ((Pair) nominatorExpr).stream().count();
-			Pair arg = (Pair) expression.cadr().apply(this);
+	// rest of a call resumed from a step, the arguments are evaluated from the index on.
+	private Expression invoke(Pair fn, Node[] arguments, Expression[] values, int from, boolean tail) {
+		for (int i = from; i < arguments.length; i++) {
+			try {
+				values[i] = arguments[i].eval(this);
+			} catch (Unwind unwind) {
+				throw unwind.then(this, waiting(fn, arguments, values, i, tail));
+			}
+		}
 
-			return nthOrNil(arg, (int) nominator - 1);
-		} else {
-			throw new EvaluationException(expression, "We only evaluate MAC or CLO or NUM literals!");
+		Frame frame = prepare(fn, arguments.length);
+		if (frame == null) {
+			Expression list = Arrays.stream(values).collect(Pair.collectPairOrNil());
+			return tail ? tailCall(fn, list) : invoke(fn, list);
+		}
+		for (int i = 0; i < values.length; i++) {
+			frame.bind(i, values[i]);
 		}
+		return tail ? tailCall(frame) : run(frame);
 	}
 
-	public Expression nthOrNil(Pair p, int n) {
-		for (int i = 0; i < n; i++) {
-			if (p.cdr() == NIL) {
-				return NIL;
+	// frame to bind the arguments into when the closure has a simple parameter list of the given arity, null otherwise.
+	Frame prepare(Pair fn, int arity) {
+		Frame captured = Frame.captured(fn.caddr());
+		Analyzer.Analyzed analyzed = Analyzer.closureBody(fn.cadddr(), fn.caddddr(), captured == null ? null : captured.scope);
+		return analyzed.scope.arity == arity ? analyzed.frame(captured) : null;
+	}
+
+	private Expression evalArguments(Pair fn, Node[] arguments, boolean tail) {
+		Expression values = NIL;
+		Pair last = null;
+		for (int i = 0; i < arguments.length; i++) {
+			Expression value;
+			try {
+				value = arguments[i].eval(this);
+			} catch (Unwind unwind) {
+				Expression[] before = new Expression[arguments.length];
+				int j = 0;
+				for (Expression e = values; e != NIL; e = ((Pair) e).cdr()) {
+					before[j++] = ((Pair) e).car();
+				}
+				throw unwind.then(this, waiting(fn, arguments, before, i, tail));
+			}
+			Pair cell = new Pair(value, NIL);
+			if (last == null) {
+				values = cell;
 			} else {
-				p = (Pair) p.cdr();
+				last.setCdr(cell);
 			}
+			last = cell;
 		}
-		return env.whereCar(p);
+		return values;
 	}
 
-	private Expression evalFnCallImpl(Pair fn, Expression passedParamValues, Function<Expression, Expression> argsMapper) {
+	private Expression evalFnCallImpl(Pair fn, Expression passedEvaledParamValues, Function<Expression, Expression> defaultsMapper) {
+		final Frame frameBefore = env.getFrame();
+		final Frame frame;
+		try {
+			frame = destructure(fn, passedEvaledParamValues, defaultsMapper);
+		} finally {
+			env.setFrame(frameBefore);
+		}
+		return run(frame);
+	}
+
+	// makes the frame of a closure call, defaults of optional parameters are evaluated in the new frame.
+	private Frame destructure(Pair fn, Expression passedEvaledParamValues, Function<Expression, Expression> defaultsMapper) {
 		assert fn.car() == LIT;
 		assert fn.cadr() == Symbol.CLO;
 
 		Expression paramDeclarations = fn.cadddr(); // fourth elem
 		Expression body = fn.caddddr(); // fifth elem
 
-		// evaluate arguments if call is not 0-arity.
-		final Expression passedEvaledParamValues = passedParamValues == NIL
-				? NIL
-				: ((Pair) passedParamValues).stream().map(argsMapper).collect(Pair.collect());
+		Frame captured = Frame.captured(fn.caddr());
+		Analyzer.Analyzed analyzed = Analyzer.closureBody(paramDeclarations, body, captured == null ? null : captured.scope);
 
 		// new scope
-		final Map<Variable, Pair> newScope = new HashMap<>();
-
-		if (fn.caddr() != NIL) { // local closure
-			((Pair) fn.caddr()).forEach(binding -> {
-				Pair bindingPair = (Pair) binding;
-				Variable variable = Variable.enforce(bindingPair.car());
-				newScope.put(variable, bindingPair);
-			});
-		}
+		Frame frame = analyzed.frame(captured);
+		env.setFrame(frame);
+
+		Destructuring.destructureArgs(paramDeclarations, passedEvaledParamValues, defaultsMapper, frame);
+		return frame;
+	}
+
+	// evaluates the body of the closure call, then the calls in its tail position.
+	Expression run(Frame frame) {
+		final Frame frameBefore = env.getFrame();
+		try {
+			while (true) {
+				env.safePoint();
+				env.setFrame(frame);
+				Expression result;
+				try {
+					result = frame.closure.body().evalTail(this);
+				} catch (Unwind unwind) {
+					throw unwind.then(this, ExpressionEvaluatorVisitor::proceed);
+				}
 
-		return env.withLexicals(newScope, () ->
-				{
-					Destructuring.destructureArgs(paramDeclarations, passedEvaledParamValues, argsMapper, newScope);
-					return body.apply(this);
+				if (result != tailCall) {
+					release(frame);
+					return result;
 				}
-		);
+
+				// the frame of the caller is not needed anymore, loop instead of recursion.
+				release(frame);
+				frame = takeTailCall();
+			}
+		} finally {
+			env.setFrame(frameBefore);
+		}
+	}
+
+	// step of a closure call waiting for the value of its body.
+	private static Expression proceed(ExpressionEvaluatorVisitor evaluator, Expression result) {
+		return result == evaluator.tailCall ? evaluator.run(evaluator.takeTailCall()) : result;
+	}
+
+	// frame of the call in tail position.
+	private Frame takeTailCall() {
+		Frame next = tailCall.frame;
+		Pair fn = tailCall.fn;
+		Expression values = tailCall.arguments;
+		tailCall.clear();
+		return next != null ? next : destructure(fn, values, this::defaultValue);
+	}
+
+	private void release(Frame frame) {
+		if (env.canReuseFrames()) {
+			frame.closure.release(frame);
+		}
 	}
 
 	@Override
@@ -219,30 +455,25 @@ class ExpressionEvaluatorVisitor implements ExpressionVisitor<Expression> {
 
 	@Override
 	public Expression symbol(Symbol symbol) {
-		env.whereClear();
-
-		// lookup order: dynamic, scope, globe, defaults.
-
-		if (symbol == T || symbol == NIL || symbol == O || symbol == APPLY) {
-			return symbol;
-		}
-
-		Optional<Expression> bound = env.get(Variable.enforce(symbol));
+		return Analyzer.analyze(symbol, env.getScopeDescription()).eval(this);
+	}
 
-		if (bound.isPresent()) {
-			return bound.get();
-		} else if (symbol == CHARS) {
+	// value of variables without any binding. lookup order: dynamic, scope, globe, defaults.
+	Expression unbound(Expression name) {
+		if (name == CHARS) {
 			return Constants.CHARS_LIST;
-		} else if (symbol == GLOBE) {
+		} else if (name == GLOBE) {
 			return env.getGlobe();
-		} else if (symbol == SCOPE) {
+		} else if (name == SCOPE) {
 			return env.getScope();
-		} else if (symbol == INS) {
-			throw new EvaluationException.FeatureNotImplementedException(symbol);
-		} else if (symbol == OUTS) {
-			throw new EvaluationException.FeatureNotImplementedException(symbol);
+		} else if (name == INS) {
+			throw new EvaluationException.FeatureNotImplementedException(name);
+		} else if (name == OUTS) {
+			throw new EvaluationException.FeatureNotImplementedException(name);
+		} else if (name instanceof Symbol) {
+			throw new UnboundSymbolException((Symbol) name);
 		} else {
-			throw new UnboundSymbolException(symbol);
+			throw new EvaluationException(name, "Could not resolve variable!");
 		}
 	}
 
@@ -251,33 +482,8 @@ class ExpressionEvaluatorVisitor implements ExpressionVisitor<Expression> {
 		return character;
 	}
 
-	private Expression set(Pair call) {
-		assert Symbol.SET == call.car();
-
-		Expression tail = call.cdr();
-
-		Expression last = NIL;
-		while (tail != NIL) {
-			Pair pair = (Pair) tail;
-
-			if (pair.car() instanceof Symbol) {
-				Symbol key = (Symbol) pair.car();
-				Expression value = last = pair.cadr().apply(this);
-				env.set(Variable.enforce(key), value);
-			} else {
-				// key is ignored on purpose. location contains index to it!
-				Expression key = pair.car().apply(this);
-				Environment.LastLocation location = env.getLastLocation()
-						.orElseThrow(() -> new EvaluationException(pair.car(), "Can not find location!"));
-				Expression value = last = pair.cadr().apply(this);
-
-				location.update(value);
-
-			}
-
-			tail = ((Pair)((Pair)tail).cdr()).cdr();
-		}
-
-		return last;
+	@Override
+	public Expression channel(Channel channel) {
+		return channel;
 	}
 }
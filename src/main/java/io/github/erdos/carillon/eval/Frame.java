@@ -0,0 +1,111 @@
+package io.github.erdos.carillon.eval;
+
+import io.github.erdos.carillon.objects.Expression;
+import io.github.erdos.carillon.objects.Pair;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static io.github.erdos.carillon.objects.Symbol.NIL;
+
+/**
+ * Lexical bindings of a closure call. Slots hold the (var . value) pairs in the order given by the scope,
+ * unbound slots are null.
+ */
+final class Frame implements Destructuring.Bindings {
+
+	final Scope scope;
+	final Pair[] slots;
+	Frame parent;
+
+	// closure body the frame is made for, null for frames made of scope lists.
+	final Analyzer.Analyzed closure;
+
+	// set when the bindings are visible from outside the call, for example through the scope symbol.
+	// Frames of finished calls are reused only when this is not set.
+	boolean captured;
+
+	Frame(Analyzer.Analyzed closure, Frame parent) {
+		this.scope = closure.scope;
+		this.slots = new Pair[scope.names.length];
+		this.parent = parent;
+		this.closure = closure;
+	}
+
+	private Frame(Scope scope, Pair[] slots) {
+		this(scope, slots, null, null);
+	}
+
+	private Frame(Scope scope, Pair[] slots, Frame parent, Analyzer.Analyzed closure) {
+		this.scope = scope;
+		this.slots = slots;
+		this.parent = parent;
+		this.closure = closure;
+		this.captured = true;
+	}
+
+	// frame of the same scope with empty slots, for a forked runtime. Analysis made for this frame is valid for it too.
+	Frame copy(Frame parent) {
+		return new Frame(scope, new Pair[slots.length], parent, closure);
+	}
+
+	// binds the parameter of a simple parameter list, reusing the binding of a previous call.
+	void bind(int index, Expression value) {
+		Pair binding = slots[index];
+		if (binding == null) {
+			slots[index] = new Pair(scope.names[index], value);
+		} else {
+			binding.setCdr(value);
+		}
+	}
+
+	@Override
+	public void bind(Variable variable, Pair binding) {
+		int index = scope.indexOf(variable.getExpression());
+		if (index < 0) {
+			throw new EvaluationException(variable.getExpression(), "Variable is not declared in parameter list!");
+		}
+		slots[index] = binding;
+	}
+
+	// innermost visible binding of the name.
+	Pair find(Expression name) {
+		for (Frame f = this; f != null; f = f.parent) {
+			int index = f.scope.indexOf(name);
+			if (index >= 0 && f.slots[index] != null) {
+				return f.slots[index];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Frame captured by a closure. Scope lists returned by the scope symbol remember the frame they were made of, other
+	 * lists of (var . value) pairs are turned into a new frame.
+	 */
+	static Frame captured(Expression scopeList) {
+		if (scopeList == NIL) {
+			return null;
+		}
+
+		Pair head = (Pair) scopeList;
+		if (head.getAnalyzed() instanceof Frame) {
+			return (Frame) head.getAnalyzed();
+		}
+
+		List<Expression> names = new ArrayList<>();
+		List<Pair> bindings = new ArrayList<>();
+		for (Expression binding : head) {
+			Pair bindingPair = (Pair) binding;
+			Variable.enforce(bindingPair.car());
+			if (!Scope.containsIdentical(names, bindingPair.car())) {
+				names.add(bindingPair.car());
+				bindings.add(bindingPair);
+			}
+		}
+
+		Frame frame = new Frame(Scope.ofBindings(scopeList, names.toArray(new Expression[0])), bindings.toArray(new Pair[0]));
+		head.setAnalyzed(frame);
+		return frame;
+	}
+}
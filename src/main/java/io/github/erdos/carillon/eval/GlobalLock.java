@@ -0,0 +1,110 @@
+package io.github.erdos.carillon.eval;
+
+import io.github.erdos.carillon.objects.Symbol;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The lock of bel.bel: while a thread has lock dynamically bound to a true value, no other thread of the runtime runs.
+ *
+ * Taking a free lock is one compare-and-set, taking it again from the owner thread is a field read. The other threads
+ * check the owner when they call a closure and wait there until the lock is released, so they stop at the next call.
+ */
+final class GlobalLock {
+
+	private volatile Thread owner;
+
+	// nested lock sections of the owner, only touched by the owner.
+	private int depth;
+
+	// threads waiting for the lock or at a closure call, the owner only wakes them up when there are any.
+	private volatile int waiters;
+
+	private final Object monitor = new Object();
+
+	private final LongAdder acquisitions = new LongAdder();
+	private final LongAdder contentions = new LongAdder();
+	private final LongAdder pauses = new LongAdder();
+
+	private static final AtomicReferenceFieldUpdater<GlobalLock, Thread> OWNER =
+			AtomicReferenceFieldUpdater.newUpdater(GlobalLock.class, Thread.class, "owner");
+
+	void acquire() {
+		Thread current = Thread.currentThread();
+		if (owner == current) {
+			depth++;
+			return;
+		}
+
+		if (!OWNER.compareAndSet(this, null, current)) {
+			contentions.increment();
+			synchronized (monitor) {
+				waiters++;
+				try {
+					while (!OWNER.compareAndSet(this, null, current)) {
+						await();
+					}
+				} finally {
+					waiters--;
+				}
+			}
+		}
+		acquisitions.increment();
+		depth = 1;
+	}
+
+	void release() {
+		if (--depth == 0) {
+			owner = null;
+			if (waiters > 0) {
+				synchronized (monitor) {
+					monitor.notifyAll();
+				}
+			}
+		}
+	}
+
+	boolean isHeldByCurrentThread() {
+		return owner == Thread.currentThread();
+	}
+
+	// waits while another thread holds the lock.
+	void pause() {
+		Thread o = owner;
+		if (o != null && o != Thread.currentThread()) {
+			pauses.increment();
+			synchronized (monitor) {
+				waiters++;
+				try {
+					while ((o = owner) != null && o != Thread.currentThread()) {
+						await();
+					}
+				} finally {
+					waiters--;
+				}
+			}
+		}
+	}
+
+	private void await() {
+		try {
+			monitor.wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new EvaluationException(Symbol.LOCK, "Interrupted while waiting for the lock!");
+		}
+	}
+
+	long getAcquisitions() {
+		return acquisitions.sum();
+	}
+
+	long getContentions() {
+		return contentions.sum();
+	}
+
+	long getPauses() {
+		return pauses.sum();
+	}
+}
@@ -0,0 +1,83 @@
+package io.github.erdos.carillon.eval;
+
+import io.github.erdos.carillon.objects.Expression;
+import io.github.erdos.carillon.reader.ExpressionScanner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Bel runtime with its own global bindings, including ins and outs. Runtimes do not see each other's assignments, so
+ * independent programs can run in parallel on different instances.
+ *
+ * An instance evaluates on one host thread at a time, Bel code can use thread to do work in parallel.
+ */
+public final class Interpreter {
+
+	private final ExpressionEvaluatorVisitor visitor;
+
+	// new runtime with the prelude loaded.
+	public Interpreter() {
+		this.visitor = new ExpressionEvaluatorVisitor();
+		try (InputStream stream = Interpreter.class.getResourceAsStream("/prelude.bel");
+		     InputStreamReader reader = new InputStreamReader(stream)) {
+			load(reader);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private Interpreter(ExpressionEvaluatorVisitor visitor) {
+		this.visitor = visitor;
+	}
+
+	/**
+	 * New runtime in the state of this one, without loading anything again. Changes made in one runtime are not seen by
+	 * the other, assignments as well as lists changed with xar or xdr and variables of closures. Each runtime copies a
+	 * global variable, with the pairs of its value, the first time it uses it after the fork. Channels are shared, so is
+	 * the code of closures with its analysis: changing the body of a closure changes it in every fork.
+	 *
+	 * Forking again without changing anything in between is cheap, the runtime keeps what it copied already.
+	 *
+	 * Fork a runtime while it is not evaluating anything.
+	 */
+	public Interpreter fork() {
+		return new Interpreter(new ExpressionEvaluatorVisitor(visitor.env.fork()));
+	}
+
+	public Expression eval(Expression expression) {
+		return visitor.evaluate(expression);
+	}
+
+	// evaluates all forms of the source in order.
+	public void load(java.io.Reader source) throws IOException {
+		ExpressionScanner scanner = new ExpressionScanner(source);
+		for (Expression e; (e = scanner.next()) != null; eval(e)) ;
+	}
+
+	// number of macro calls that reused the expansion cached on their call site, in any thread of the runtime.
+	public long getMacroExpansionHits() {
+		return visitor.env.getGlobals().macroExpansionHits.sum();
+	}
+
+	// number of macro calls that had to expand the macro.
+	public long getMacroExpansionMisses() {
+		return visitor.env.getGlobals().macroExpansionMisses.sum();
+	}
+
+	// number of times a thread entered a lock section, nested sections are not counted.
+	public long getLockAcquisitions() {
+		return visitor.env.getGlobals().lock.getAcquisitions();
+	}
+
+	// number of times a thread had to wait to enter a lock section.
+	public long getLockContentions() {
+		return visitor.env.getGlobals().lock.getContentions();
+	}
+
+	// number of times a thread was stopped because another one was in a lock section.
+	public long getLockPauses() {
+		return visitor.env.getGlobals().lock.getPauses();
+	}
+}
@@ -0,0 +1,19 @@
+package io.github.erdos.carillon.eval;
+
+import io.github.erdos.carillon.objects.Expression;
+
+/**
+ * Executable form of an expression. Nodes are built once by the {@link Analyzer} and then evaluated many times.
+ */
+interface Node {
+
+	Expression eval(ExpressionEvaluatorVisitor evaluator);
+
+	/**
+	 * Evaluates the node in tail position of a closure body. Closure calls may return a {@link TailCall} instead of
+	 * their value here, it is resolved by the evaluator.
+	 */
+	default Expression evalTail(ExpressionEvaluatorVisitor evaluator) {
+		return eval(evaluator);
+	}
+}
@@ -0,0 +1,245 @@
+package io.github.erdos.carillon.eval;
+
+import io.github.erdos.carillon.objects.Expression;
+import io.github.erdos.carillon.objects.Pair;
+import io.github.erdos.carillon.objects.Symbol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import static io.github.erdos.carillon.objects.Symbol.NIL;
+
+/**
+ * Parallel versions of map, reduce and all. The list is split into chunks that are evaluated on the shared pool of the
+ * scheduler, every chunk with its own evaluator so they do not share lexical or dynamic bindings.
+ */
+final class Parallel {
+
+	private Parallel() {}
+
+	// list of (f x) for every x of xs, in order.
+	static Expression pmap(ExpressionEvaluatorVisitor evaluator, Expression f, Expression xs) {
+		Expression[] items = toArray(xs);
+		Expression[] results = new Expression[items.length];
+		run(evaluator, items, new Chunk() {
+			@Override
+			Expression leaf(ExpressionEvaluatorVisitor ev, int from, int to) {
+				for (int i = from; i < to; i++) {
+					results[i] = apply(ev, f, new Pair(items[i], NIL));
+				}
+				return NIL;
+			}
+
+			@Override
+			Expression combine(ExpressionEvaluatorVisitor ev, Expression left, Expression right) {
+				return NIL;
+			}
+		});
+		return Arrays.stream(results).collect(Pair.collectPairOrNil());
+	}
+
+	// (f x1 (f x2 ... xn)) like reduce, chunks are combined with f too so it must be associative.
+	static Expression preduce(ExpressionEvaluatorVisitor evaluator, Expression f, Expression xs) {
+		Expression[] items = toArray(xs);
+		if (items.length == 0) {
+			return NIL;
+		}
+		return run(evaluator, items, new Chunk() {
+			@Override
+			Expression leaf(ExpressionEvaluatorVisitor ev, int from, int to) {
+				Expression result = items[to - 1];
+				for (int i = to - 2; i >= from; i--) {
+					result = apply(ev, f, new Pair(items[i], new Pair(result, NIL)));
+				}
+				return result;
+			}
+
+			@Override
+			Expression combine(ExpressionEvaluatorVisitor ev, Expression left, Expression right) {
+				return apply(ev, f, new Pair(left, new Pair(right, NIL)));
+			}
+		});
+	}
+
+	// t when (f x) is true for every x of xs. Chunks stop early once a false value is found.
+	static Expression pall(ExpressionEvaluatorVisitor evaluator, Expression f, Expression xs) {
+		Expression[] items = toArray(xs);
+		return run(evaluator, items, new Chunk() {
+			volatile boolean failed;
+
+			@Override
+			Expression leaf(ExpressionEvaluatorVisitor ev, int from, int to) {
+				for (int i = from; i < to && !failed; i++) {
+					if (apply(ev, f, new Pair(items[i], NIL)) == NIL) {
+						failed = true;
+					}
+				}
+				return failed ? NIL : Symbol.T;
+			}
+
+			@Override
+			Expression combine(ExpressionEvaluatorVisitor ev, Expression left, Expression right) {
+				return left == NIL || right == NIL ? NIL : Symbol.T;
+			}
+		});
+	}
+
+	// what to do with a range of the list and how to merge the results of neighbouring ranges.
+	private abstract static class Chunk {
+		abstract Expression leaf(ExpressionEvaluatorVisitor ev, int from, int to);
+
+		abstract Expression combine(ExpressionEvaluatorVisitor ev, Expression left, Expression right);
+	}
+
+	private static Expression run(ExpressionEvaluatorVisitor evaluator, Expression[] items, Chunk chunk) {
+		// other threads stop while the lock is held, they could not help.
+		if (items.length < 2 || evaluator.env.getGlobals().lock.isHeldByCurrentThread()) {
+			return chunk.leaf(evaluator, 0, items.length);
+		}
+
+		ForkJoinPool pool = Scheduler.getPool();
+		int threshold = Math.max(1, items.length / (4 * pool.getParallelism()));
+		return pool.invoke(new Task(evaluator.env, chunk, 0, items.length, threshold));
+	}
+
+	private static final class Task extends RecursiveTask<Expression> {
+		private final Environment env;
+		private final Chunk chunk;
+		private final int from, to, threshold;
+
+		Task(Environment env, Chunk chunk, int from, int to, int threshold) {
+			this.env = env;
+			this.chunk = chunk;
+			this.from = from;
+			this.to = to;
+			this.threshold = threshold;
+		}
+
+		@Override
+		protected Expression compute() {
+			if (to - from <= threshold) {
+				return chunk.leaf(new ExpressionEvaluatorVisitor(env.newThread()), from, to);
+			}
+
+			int middle = (from + to) >>> 1;
+			Task left = new Task(env, chunk, from, middle, threshold);
+			left.fork();
+			Expression right = new Task(env, chunk, middle, to, threshold).compute();
+			return chunk.combine(new ExpressionEvaluatorVisitor(env.newThread()), left.join(), right);
+		}
+	}
+
+	// the loops of the chunks can not be resumed from the heap, continuations captured inside are delimited here.
+	private static Expression apply(ExpressionEvaluatorVisitor ev, Expression f, Expression arguments) {
+		return ev.delimit(() -> ev.apply(f, arguments));
+	}
+
+	private static Expression[] toArray(Expression xs) {
+		List<Expression> items = new ArrayList<>();
+		Expression p = xs;
+		for (; p instanceof Pair; p = ((Pair) p).cdr()) {
+			items.add(((Pair) p).car());
+		}
+		if (p != NIL) {
+			throw new EvaluationException.ImproperListException(xs);
+		}
+		return items.toArray(new Expression[0]);
+	}
+
+	static final class PMap implements Node {
+		private final Node f, xs;
+
+		PMap(Node f, Node xs) {
+			this.f = f;
+			this.xs = xs;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			Expression first;
+			try {
+				first = f.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, this::eval);
+			}
+			return eval(evaluator, first);
+		}
+
+		// rest of the evaluation once f is evaluated.
+		private Expression eval(ExpressionEvaluatorVisitor evaluator, Expression first) {
+			Expression second;
+			try {
+				second = xs.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, v) -> pmap(ev, first, v));
+			}
+			return pmap(evaluator, first, second);
+		}
+	}
+
+	static final class PReduce implements Node {
+		private final Node f, xs;
+
+		PReduce(Node f, Node xs) {
+			this.f = f;
+			this.xs = xs;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			Expression first;
+			try {
+				first = f.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, this::eval);
+			}
+			return eval(evaluator, first);
+		}
+
+		private Expression eval(ExpressionEvaluatorVisitor evaluator, Expression first) {
+			Expression second;
+			try {
+				second = xs.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, v) -> preduce(ev, first, v));
+			}
+			return preduce(evaluator, first, second);
+		}
+	}
+
+	static final class PAll implements Node {
+		private final Node f, xs;
+
+		PAll(Node f, Node xs) {
+			this.f = f;
+			this.xs = xs;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			Expression first;
+			try {
+				first = f.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, this::eval);
+			}
+			return eval(evaluator, first);
+		}
+
+		private Expression eval(ExpressionEvaluatorVisitor evaluator, Expression first) {
+			Expression second;
+			try {
+				second = xs.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, v) -> pall(ev, first, v));
+			}
+			return pall(evaluator, first, second);
+		}
+	}
+}
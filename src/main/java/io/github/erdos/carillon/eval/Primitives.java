@@ -1,144 +1,723 @@
 package io.github.erdos.carillon.eval;
 
+import io.github.erdos.carillon.objects.Channel;
 import io.github.erdos.carillon.objects.Character;
 import io.github.erdos.carillon.objects.Expression;
 import io.github.erdos.carillon.objects.ExpressionVisitor;
+import io.github.erdos.carillon.objects.Number;
 import io.github.erdos.carillon.objects.Pair;
 import io.github.erdos.carillon.objects.Stream;
 import io.github.erdos.carillon.objects.Symbol;
+import io.github.erdos.carillon.objects.Text;
+
+import java.math.BigInteger;
 
 import static io.github.erdos.carillon.objects.Symbol.NIL;
 
-public class Primitives {
+public final class Primitives {
+
+	private Primitives() {}
 
-	Expression evalId(Pair id, ExpressionEvaluatorVisitor evaluator) {
-		assert Symbol.ID.equals(id.car());
-		Pair args = (Pair) id.cdr();
+	static Expression id(Expression a, Expression b) {
+		return a == b ? Symbol.T : NIL;
+	}
 
-		if (evaluator.appliedTo(args.car()) == evaluator.appliedTo(((Pair) args.cdr()).car())) {
-			return Symbol.T;
+	static Pair join(Expression a, Expression b) {
+		return new Pair(a, b);
+	}
+
+	static Expression car(Expression x, Environment env) {
+		if (x == NIL) {
+			return NIL;
+		} else if (x instanceof Pair) {
+			return env.whereCar((Pair) x);
 		} else {
+			throw new EvaluationException(x, "You can call (car .) only on a pair or nil!");
+		}
+	}
+
+	static Expression cdr(Expression x, Environment env) {
+		if (x == NIL) {
 			return NIL;
+		} else if (x instanceof Pair) {
+			return env.whereCdr((Pair) x);
+		} else {
+			throw new EvaluationException(x, "You can call (cdr .) only on a pair or nil.");
 		}
 	}
 
-	Expression evalJoin(Pair id, ExpressionEvaluatorVisitor evaluator) {
-		assert Symbol.JOIN.equals(id.car());
+	private static final ExpressionVisitor<Symbol> TYPE_VISITOR = new ExpressionVisitor<Symbol>() {
+		@Override
+		public Symbol pair(Pair pair) {
+			return Symbol.PAIR;
+		}
 
-		if (id.isRightNil()) {
-			return Pair.EMPTY;
-		} else {
-			Pair args = (Pair) id.cdr();
-			if (args.cdr() == NIL) {
-				return new Pair(evaluator.appliedTo(args.car()), NIL);
-			} else {
-				return new Pair(evaluator.appliedTo(args.car()), evaluator.appliedTo(args.cadr()));
-			}
+		@Override
+		public Symbol stream(Stream stream) {
+			return Symbol.STREAM;
+		}
+
+		@Override
+		public Symbol symbol(Symbol symbol) {
+			return Symbol.SYMBOL;
+		}
+
+		@Override
+		public Symbol character(Character character) {
+			return Symbol.CHAR;
+		}
+
+		@Override
+		public Symbol channel(Channel channel) {
+			return Symbol.CHANNEL;
+		}
+	};
+
+	static Symbol type(Expression x) {
+		return x.apply(TYPE_VISITOR);
+	}
+
+	static Expression xar(Expression target, Expression newValue) {
+		((Pair) target).setCar(newValue);
+		return newValue;
+	}
+
+	static Expression xdr(Expression target, Expression newValue) {
+		((Pair) target).setCdr(newValue);
+		return newValue;
+	}
+
+	// sets the car if it is id to old, returns t when it was set.
+	static Symbol casa(Expression target, Expression old, Expression newValue) {
+		if (!(target instanceof Pair)) {
+			throw new EvaluationException(target, "You can call (casa . . .) only on a pair!");
 		}
+		return ((Pair) target).compareAndSetCar(old, newValue) ? Symbol.T : NIL;
 	}
 
-	Expression evalCar(Pair pair, Environment env, ExpressionEvaluatorVisitor evaluator) {
-		assert Symbol.CAR.equals(pair.car());
-		Expression result = evaluator.appliedTo(pair.cadr());
+	// sets the cdr if it is id to old, returns t when it was set.
+	static Symbol casd(Expression target, Expression old, Expression newValue) {
+		if (!(target instanceof Pair)) {
+			throw new EvaluationException(target, "You can call (casd . . .) only on a pair!");
+		}
+		return ((Pair) target).compareAndSetCdr(old, newValue) ? Symbol.T : NIL;
+	}
 
-		if (result == NIL) {
+	// car read with a volatile read, to see the values set with casa in other threads.
+	static Expression vcar(Expression x, Environment env) {
+		if (x == NIL) {
 			return NIL;
-		} else if (result instanceof Pair) {
-			return env.whereCar((Pair) result);
+		} else if (x instanceof Pair) {
+			env.whereCar((Pair) x);
+			return ((Pair) x).getCarVolatile();
 		} else {
-			throw new EvaluationException(result, "You can call (car .) only on a pair or nil!");
+			throw new EvaluationException(x, "You can call (vcar .) only on a pair or nil!");
 		}
 	}
 
-	Expression evalCdr(Pair pair, Environment env, ExpressionEvaluatorVisitor evaluator) {
-		assert Symbol.CDR.equals(pair.car());
-		Expression result = evaluator.appliedTo(pair.cadr());
-		if (result == NIL) {
+	// cdr read with a volatile read, to see the values set with casd in other threads.
+	static Expression vcdr(Expression x, Environment env) {
+		if (x == NIL) {
 			return NIL;
-		} else if (result instanceof Pair) {
-			return env.whereCdr((Pair) result);
+		} else if (x instanceof Pair) {
+			env.whereCdr((Pair) x);
+			return ((Pair) x).getCdrVolatile();
 		} else {
-			throw new EvaluationException(result, "You can call (cdr .) only on a pair or nil.");
+			throw new EvaluationException(x, "You can call (vcdr .) only on a pair or nil!");
+		}
+	}
+
+	static Symbol sym(Expression x) {
+		if (x instanceof Text && ((Text) x).isIntact()) {
+			return Symbol.symbol(((Text) x).getString());
 		}
+
+		StringBuilder builder = new StringBuilder();
+		((Pair) x).forEach(c -> builder.appendCodePoint(((Character) c).getCodePoint()));
+		return Symbol.symbol(builder.toString());
 	}
 
-	Symbol evalType(Pair pair, ExpressionEvaluatorVisitor evaluator) {
-		assert Symbol.TYPE.equals(pair.car());
+	static Pair nom(Expression x) {
+		Expression text = Text.text(((Symbol) x).name);
+		if (text instanceof Pair) {
+			return (Pair) text;
+		} else {
+			throw new EvaluationException.ImproperListException(text);
+		}
+	}
 
-		return evaluator.appliedTo(pair.cadr()).apply(new ExpressionVisitor<Symbol>() {
-			@Override
-			public Symbol pair(Pair pair) {
-				return Symbol.PAIR;
+	//	 Returns either t or nil randomly.
+	static Symbol coin() {
+		return (Math.random() < 0.5) ? NIL : Symbol.T;
+	}
+
+	static final class Id implements Node {
+		final Node a, b;
+
+		Id(Node a, Node b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			Expression first;
+			try {
+				first = a.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, this::eval);
 			}
+			return eval(evaluator, first);
+		}
 
-			@Override
-			public Symbol stream(Stream stream) {
-				return Symbol.STREAM;
+		// rest of the evaluation once a is evaluated, it goes on from here when a is resumed from a step.
+		private Expression eval(ExpressionEvaluatorVisitor evaluator, Expression first) {
+			Expression second;
+			try {
+				second = b.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, v) -> id(first, v));
 			}
+			return id(first, second);
+		}
+	}
+
+	static final class Join implements Node {
+		final Node a, b;
 
-			@Override
-			public Symbol symbol(Symbol symbol) {
-				return Symbol.SYMBOL;
+		Join(Node a, Node b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			Expression first;
+			try {
+				first = a.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, this::eval);
 			}
+			return eval(evaluator, first);
+		}
 
-			@Override
-			public Symbol character(Character character) {
-				return Symbol.CHAR;
+		private Expression eval(ExpressionEvaluatorVisitor evaluator, Expression first) {
+			Expression second;
+			try {
+				second = b.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, v) -> join(first, v));
 			}
-		});
+			return join(first, second);
+		}
 	}
 
-	Expression evalXar(Pair pair, ExpressionEvaluatorVisitor evaluator) {
-		assert Symbol.XAR == pair.car();
-		Pair target = (Pair) pair.cadr().apply(evaluator);
-		Expression newValue = pair.caddr().apply(evaluator);
-		target.setCar(newValue);
-		return newValue;
+	static final class Car implements Node {
+		final Node x;
+
+		Car(Node x) {
+			this.x = x;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			Expression value;
+			try {
+				value = x.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, v) -> car(v, ev.env));
+			}
+			return car(value, evaluator.env);
+		}
 	}
 
-	Expression evaXdr(Pair pair, ExpressionEvaluatorVisitor evaluator) {
-		assert Symbol.XDR == pair.car();
-		Pair target = (Pair) pair.cadr().apply(evaluator);
-		Expression newValue = pair.caddr().apply(evaluator);
-		target.setCdr(newValue);
-		return newValue;
+	static final class Cdr implements Node {
+		final Node x;
+
+		Cdr(Node x) {
+			this.x = x;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			Expression value;
+			try {
+				value = x.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, v) -> cdr(v, ev.env));
+			}
+			return cdr(value, evaluator.env);
+		}
 	}
 
-	Symbol evalSym(Pair pair, ExpressionEvaluatorVisitor evaluator) {
-		StringBuilder builder = new StringBuilder();
-		((Pair) pair.cadr().apply(evaluator)).forEach(c -> builder.append(((Character) c).getChar()));
-		return Symbol.symbol(builder.toString());
+	static final class Type implements Node {
+		final Node x;
+
+		Type(Node x) {
+			this.x = x;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			Expression value;
+			try {
+				value = x.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, v) -> type(v));
+			}
+			return type(value);
+		}
+	}
+
+	static final class Xar implements Node {
+		private final Node target, value;
+
+		Xar(Node target, Node value) {
+			this.target = target;
+			this.value = value;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			Expression first;
+			try {
+				first = target.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, this::eval);
+			}
+			return eval(evaluator, first);
+		}
+
+		private Expression eval(ExpressionEvaluatorVisitor evaluator, Expression first) {
+			Expression second;
+			try {
+				second = value.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, v) -> xar(first, v));
+			}
+			return xar(first, second);
+		}
+	}
+
+	static final class Xdr implements Node {
+		private final Node target, value;
+
+		Xdr(Node target, Node value) {
+			this.target = target;
+			this.value = value;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			Expression first;
+			try {
+				first = target.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, this::eval);
+			}
+			return eval(evaluator, first);
+		}
+
+		private Expression eval(ExpressionEvaluatorVisitor evaluator, Expression first) {
+			Expression second;
+			try {
+				second = value.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, v) -> xdr(first, v));
+			}
+			return xdr(first, second);
+		}
+	}
+
+	static final class Casa implements Node {
+		private final Node target, old, value;
+
+		Casa(Node target, Node old, Node value) {
+			this.target = target;
+			this.old = old;
+			this.value = value;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			Expression first;
+			try {
+				first = target.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, this::eval);
+			}
+			return eval(evaluator, first);
+		}
+
+		private Expression eval(ExpressionEvaluatorVisitor evaluator, Expression first) {
+			Expression second;
+			try {
+				second = old.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, v) -> eval(ev, first, v));
+			}
+			return eval(evaluator, first, second);
+		}
+
+		private Expression eval(ExpressionEvaluatorVisitor evaluator, Expression first, Expression second) {
+			Expression third;
+			try {
+				third = value.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, v) -> casa(first, second, v));
+			}
+			return casa(first, second, third);
+		}
 	}
 
-	Pair evalNom(Pair pair, ExpressionEvaluatorVisitor evaluator) {
-		assert Symbol.NOM.equals(pair.car());
-		if (pair.cdr() == NIL) {
-			throw new EvaluationException.WrongArityException(NIL, NIL);
-		} else if (((Pair) pair.cdr()).cdr() != NIL) {
-			throw new EvaluationException.WrongArityException(NIL, NIL);
+	static final class Casd implements Node {
+		private final Node target, old, value;
+
+		Casd(Node target, Node old, Node value) {
+			this.target = target;
+			this.old = old;
+			this.value = value;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			Expression first;
+			try {
+				first = target.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, this::eval);
+			}
+			return eval(evaluator, first);
+		}
+
+		private Expression eval(ExpressionEvaluatorVisitor evaluator, Expression first) {
+			Expression second;
+			try {
+				second = old.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, v) -> eval(ev, first, v));
+			}
+			return eval(evaluator, first, second);
+		}
+
+		private Expression eval(ExpressionEvaluatorVisitor evaluator, Expression first, Expression second) {
+			Expression third;
+			try {
+				third = value.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, v) -> casd(first, second, v));
+			}
+			return casd(first, second, third);
+		}
+	}
+
+	static final class Vcar implements Node {
+		final Node x;
+
+		Vcar(Node x) {
+			this.x = x;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			Expression value;
+			try {
+				value = x.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, v) -> vcar(v, ev.env));
+			}
+			return vcar(value, evaluator.env);
+		}
+	}
+
+	static final class Vcdr implements Node {
+		final Node x;
+
+		Vcdr(Node x) {
+			this.x = x;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			Expression value;
+			try {
+				value = x.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, v) -> vcdr(v, ev.env));
+			}
+			return vcdr(value, evaluator.env);
+		}
+	}
+
+	static final class Sym implements Node {
+		final Node x;
+
+		Sym(Node x) {
+			this.x = x;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			Expression value;
+			try {
+				value = x.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, v) -> sym(v));
+			}
+			return sym(value);
+		}
+	}
+
+	static final class Nom implements Node {
+		private final Node[] args;
+
+		Nom(Node[] args) {
+			this.args = args;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			if (args.length != 1) {
+				throw new EvaluationException.WrongArityException(NIL, NIL);
+			} else {
+				Expression value;
+				try {
+					value = args[0].eval(evaluator);
+				} catch (Unwind unwind) {
+					throw unwind.then(evaluator, (ev, v) -> nom(v));
+				}
+				return nom(value);
+			}
+		}
+	}
+
+	static final class Coin implements Node {
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			return coin();
+		}
+	}
+
+	// Closes the stream x. Signals an error if it can't.
+	static final class Cls implements Node {
+		final Node x;
+
+		Cls(Node x) {
+			this.x = x;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			Expression stream;
+			try {
+				stream = x.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, v) -> close(v));
+			}
+			return close(stream);
+		}
+
+		private static Expression close(Expression stream) {
+			((Stream) stream).close();
+			return NIL;
+		}
+	}
+
+	private static final Symbol EOF = Symbol.symbol("eof");
+
+	// new channel holding at most n values, one when n is nil.
+	static Channel chan(Expression n) {
+		if (n == NIL) {
+			return new Channel(1);
+		} else if (n instanceof Number && !((Number) n).isExpanded()) {
+			Number number = (Number) n;
+			if (number.getRealDenominator().equals(BigInteger.ONE) && number.getImaginaryNumerator().signum() == 0
+					&& number.getRealNumerator().signum() > 0 && number.getRealNumerator().bitLength() < 32) {
+				return new Channel(number.getRealNumerator().intValue());
+			}
+		}
+		throw new EvaluationException(n, "Channel size must be a positive integer!");
+	}
+
+	// waits until there is room for x in the channel. Returns x, signals an error when the channel is closed.
+	static Expression chput(Expression c, Expression x) {
+		try {
+			Channel channel = channel(c);
+			if (Scheduler.block(() -> channel.put(x))) {
+				return x;
+			} else {
+				throw new EvaluationException(c, "Channel is closed!");
+			}
+		} catch (InterruptedException e) {
+			throw interrupted(c);
+		}
+	}
+
+	// waits for the next value of the channel. Returns eof when it is closed and empty.
+	static Expression chtake(Expression c) {
+		try {
+			Channel channel = channel(c);
+			Expression x = Scheduler.block(channel::take);
+			return x == null ? EOF : x;
+		} catch (InterruptedException e) {
+			throw interrupted(c);
+		}
+	}
+
+	// next value of the channel without waiting, like rdb: nil if there is none yet, eof if there will be none.
+	static Expression chpoll(Expression c) {
+		Channel channel = channel(c);
+		Expression x = channel.poll();
+		if (x == null && channel.isClosed()) {
+			// nothing is put after closing, so a second look is final.
+			x = channel.poll();
+			return x == null ? EOF : x;
+		}
+		return x == null ? NIL : x;
+	}
+
+	// closes the channel, returns nil if it was already closed.
+	static Symbol chcls(Expression c) {
+		return channel(c).close() ? Symbol.T : NIL;
+	}
+
+	private static Channel channel(Expression c) {
+		if (c instanceof Channel) {
+			return (Channel) c;
 		} else {
-			return ((Symbol) evaluator.appliedTo(pair.cadr()))
-					.name
-					.chars()
-					.mapToObj(x -> Character.character((char) x)).collect(Pair.collect());
+			throw new EvaluationException(c, "Channel expected!");
 		}
 	}
 
-	//	 Returns either t or nil randomly.
-	Symbol coin(Pair pair) {
-		assert Symbol.COIN.equals(pair.car());
-		return (Math.random() < 0.5) ? null : Symbol.T;
+	private static EvaluationException interrupted(Expression c) {
+		Thread.currentThread().interrupt();
+		return new EvaluationException(c, "Interrupted while waiting for the channel!");
 	}
 
-	// TODO: what is the return value here?
-	Expression sys(Pair pair, ExpressionEvaluatorVisitor evaluator) {
-		assert Symbol.SYS.equals(pair.car());
-		throw new EvaluationException.FeatureNotImplementedException(Symbol.SYS);
+	static final class Chan implements Node {
+		final Node n;
+
+		Chan(Node n) {
+			this.n = n;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			Expression value;
+			try {
+				value = n.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, v) -> chan(v));
+			}
+			return chan(value);
+		}
 	}
 
-	Stream ops(Pair call, ExpressionEvaluatorVisitor evaluator) {
-		assert Symbol.OPS.equals(call.car());
-		throw new EvaluationException.FeatureNotImplementedException(Symbol.OPS);
+	static final class Chput implements Node {
+		final Node c, x;
+
+		Chput(Node c, Node x) {
+			this.c = c;
+			this.x = x;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			Expression first;
+			try {
+				first = c.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, this::eval);
+			}
+			return eval(evaluator, first);
+		}
+
+		private Expression eval(ExpressionEvaluatorVisitor evaluator, Expression first) {
+			Expression second;
+			try {
+				second = x.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, v) -> chput(first, v));
+			}
+			return chput(first, second);
+		}
+	}
+
+	static final class Chtake implements Node {
+		final Node c;
+
+		Chtake(Node c) {
+			this.c = c;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			Expression value;
+			try {
+				value = c.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, v) -> chtake(v));
+			}
+			return chtake(value);
+		}
+	}
+
+	static final class Chpoll implements Node {
+		final Node c;
+
+		Chpoll(Node c) {
+			this.c = c;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			Expression value;
+			try {
+				value = c.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, v) -> chpoll(v));
+			}
+			return chpoll(value);
+		}
+	}
+
+	static final class Chcls implements Node {
+		final Node c;
+
+		Chcls(Node c) {
+			this.c = c;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			Expression value;
+			try {
+				value = c.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, v) -> chcls(v));
+			}
+			return chcls(value);
+		}
 	}
 
 	/**
@@ -2,12 +2,7 @@ package io.github.erdos.carillon.eval;
 
 import io.github.erdos.carillon.objects.Expression;
 import io.github.erdos.carillon.objects.Pair;
-import io.github.erdos.carillon.reader.Reader;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PushbackReader;
 import java.util.Deque;
 import java.util.LinkedList;
 
@@ -16,22 +11,26 @@ import static io.github.erdos.carillon.objects.Symbol.QUOTE;
 
 public class RT {
 
-	private static final ExpressionEvaluatorVisitor visitor = new ExpressionEvaluatorVisitor();
+	// runtime used by the static methods.
+	private static final Interpreter interpreter = new Interpreter();
 
+	public static Expression eval(Expression expression) {
+		return interpreter.eval(expression);
+	}
 
-	static {
-		try (InputStream stream = RT.class.getResourceAsStream("/prelude.bel");
-		     InputStreamReader reader = new InputStreamReader(stream);
-		     PushbackReader pbr = new PushbackReader(reader)) {
+	// compiles closures to bytecode after they have been called a number of times.
+	public static void setCompilerEnabled(boolean enabled) {
+		CompilerOptions.enabled = enabled;
+	}
 
-			for (Expression e; (e = Reader.read(pbr)) != null; eval(e)) ;
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
+	// number of macro calls that reused the expansion cached on their call site.
+	public static long getMacroExpansionHits() {
+		return interpreter.getMacroExpansionHits();
 	}
 
-	public static Expression eval(Expression expression) {
-		return visitor.appliedTo(expression);
+	// number of macro calls that had to expand the macro.
+	public static long getMacroExpansionMisses() {
+		return interpreter.getMacroExpansionMisses();
 	}
 
 	public static Pair pair(Expression a, Expression b) {
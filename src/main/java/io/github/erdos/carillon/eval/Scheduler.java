@@ -0,0 +1,86 @@
+package io.github.erdos.carillon.eval;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * Runs Bel threads. Every thread gets a virtual thread when the JVM has them, otherwise the tasks go to a shared
+ * fork-join pool with one worker per core.
+ */
+final class Scheduler {
+
+	// Thread.startVirtualThread(Runnable), null before Java 21.
+	private static final Method START_VIRTUAL_THREAD = startVirtualThread();
+
+	private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+			ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+
+	private Scheduler() {}
+
+	static void start(Runnable task) {
+		if (START_VIRTUAL_THREAD != null) {
+			try {
+				START_VIRTUAL_THREAD.invoke(null, task);
+				return;
+			} catch (IllegalAccessException | InvocationTargetException e) {
+				// preview feature turned off, fall back to the pool.
+			}
+		}
+		POOL.execute(task);
+	}
+
+	// pool for the parallel parts of a computation.
+	static ForkJoinPool getPool() {
+		return POOL;
+	}
+
+	// waiting operation, for example taking from a channel.
+	interface Blocking<T> {
+		T call() throws InterruptedException;
+	}
+
+	/**
+	 * Runs an operation that may wait for another thread. Workers of the pool tell the pool about it first so it can
+	 * start another worker, otherwise stages of a pipeline could wait for each other with no worker left to run them.
+	 */
+	static <T> T block(Blocking<T> task) throws InterruptedException {
+		if (!(Thread.currentThread() instanceof ForkJoinWorkerThread)) {
+			return task.call();
+		}
+		Blocker<T> blocker = new Blocker<>(task);
+		ForkJoinPool.managedBlock(blocker);
+		return blocker.result;
+	}
+
+	private static final class Blocker<T> implements ForkJoinPool.ManagedBlocker {
+		private final Blocking<T> task;
+		private T result;
+		private boolean done;
+
+		Blocker(Blocking<T> task) {
+			this.task = task;
+		}
+
+		@Override
+		public boolean block() throws InterruptedException {
+			result = task.call();
+			done = true;
+			return true;
+		}
+
+		@Override
+		public boolean isReleasable() {
+			return done;
+		}
+	}
+
+	private static Method startVirtualThread() {
+		try {
+			return Thread.class.getMethod("startVirtualThread", Runnable.class);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package io.github.erdos.carillon.eval;
+
+import io.github.erdos.carillon.objects.Expression;
+import io.github.erdos.carillon.objects.Pair;
+import io.github.erdos.carillon.objects.Symbol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static io.github.erdos.carillon.objects.Symbol.NIL;
+import static io.github.erdos.carillon.objects.Symbol.O;
+import static io.github.erdos.carillon.objects.Symbol.T;
+
+/**
+ * Static description of a lexical frame: names of the variables bound in the frame and the enclosing scope.
+ * Variable references are resolved against the scope chain once, during analysis.
+ */
+final class Scope {
+
+	// parameter declarations or captured scope list the names were collected from.
+	final Expression source;
+	final Expression[] names;
+	final Scope parent;
+
+	// number of parameters when they are a proper list of distinct variables, -1 when they need destructuring.
+	final int arity;
+
+	private Scope(Expression source, Expression[] names, Scope parent, int arity) {
+		this.source = source;
+		this.names = names;
+		this.parent = parent;
+		this.arity = arity;
+	}
+
+	// scope of a closure call binding the parameters in the declaration.
+	static Scope ofParameters(Expression params, Scope parent) {
+		List<Expression> names = new ArrayList<>();
+		collectParameters(params, names);
+		return new Scope(params, names.toArray(new Expression[0]), parent, simpleArity(params, names.size()));
+	}
+
+	// scope of a hand written (var . value) list of a closure.
+	static Scope ofBindings(Expression bindings, Expression[] names) {
+		return new Scope(bindings, names, null, -1);
+	}
+
+	int indexOf(Expression name) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i] == name) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	static boolean containsIdentical(List<Expression> names, Expression name) {
+		for (Expression e : names) {
+			if (e == name) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int simpleArity(Expression params, int names) {
+		int count = 0;
+		for (Expression p = params; p != NIL; p = ((Pair) p).cdr(), count++) {
+			if (!(p instanceof Pair) || !(((Pair) p).car() instanceof Symbol) || !Variable.of(((Pair) p).car()).isPresent()) {
+				return -1;
+			}
+		}
+		return count == names ? count : -1;
+	}
+
+	// follows the same rules as Destructuring.
+	private static void collectParameters(Expression params, List<Expression> names) {
+		if (params instanceof Symbol) {
+			if (Variable.of(params).isPresent() && !containsIdentical(names, params)) {
+				names.add(params);
+			}
+		} else if (params instanceof Pair) {
+			Pair p = (Pair) params;
+			if (Pair.isEmptyPair(p.car())) {
+				names.add(p);
+			} else if (p.car() == O || p.car() == T) {
+				collectParameters(p.nthOrNil(1), names);
+			} else {
+				collectParameters(p.car(), names);
+				collectParameters(p.cdr(), names);
+			}
+		}
+	}
+}
@@ -5,85 +5,260 @@ import io.github.erdos.carillon.objects.Expression;
 import io.github.erdos.carillon.objects.Pair;
 import io.github.erdos.carillon.objects.Symbol;
 
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Optional;
-import java.util.stream.Collectors;
 
 import static io.github.erdos.carillon.objects.Symbol.NIL;
 import static io.github.erdos.carillon.objects.Symbol.symbol;
 
-public class SpecialForms {
-	public Expression evalIf(Pair cond, ExpressionEvaluatorVisitor visitor) {
-		assert Symbol.IF.equals(cond.car());
+public final class SpecialForms {
 
-		cond = (Pair) cond.cdr();
+	private SpecialForms() {}
 
-		while (cond != null) {
-			Expression evaled = visitor.appliedTo(cond.car());
+	static final class If implements Node {
+		final Node[] conditions;
+		final Node[] branches;
+		final Node otherwise;
 
-			if (evaled != NIL) {
-				return visitor.appliedTo(cond.cadr());
-			} else if (((Pair) cond.cdr()).cdr() == NIL) {
-				break;
-			} else if (   ((Pair)((Pair) cond.cdr()).cdr()).cdr() == NIL) {
-				return visitor.appliedTo(cond.caddr());
-			} else {
-				cond = (Pair) ((Pair) cond.cdr()).cdr();
+		private If(Node[] conditions, Node[] branches, Node otherwise) {
+			this.conditions = conditions;
+			this.branches = branches;
+			this.otherwise = otherwise;
+		}
+
+		static If of(Pair form, Analyzer analyzer) {
+			assert Symbol.IF.equals(form.car());
+
+			List<Node> conditions = new ArrayList<>();
+			List<Node> branches = new ArrayList<>();
+			Node otherwise = null;
+
+			Expression cond = form.cdr();
+			while (cond instanceof Pair) {
+				Pair p = (Pair) cond;
+				if (p.cdr() == NIL) {
+					otherwise = analyzer.analyze(p.car());
+					break;
+				}
+
+				conditions.add(analyzer.analyze(p.car()));
+				branches.add(analyzer.analyze(p.cadr()));
+				cond = ((Pair) p.cdr()).cdr();
 			}
+
+			return new If(conditions.toArray(new Node[0]), branches.toArray(new Node[0]), otherwise);
 		}
 
-		return NIL;
-	}
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			return branch(evaluator, 0, false);
+		}
 
-	public Expression evalQuote(Pair quoted) {
-		assert Symbol.QUOTE.equals(quoted.car());
-		return quoted.cadr();
-	}
+		// the chosen branch is in tail position too.
+		@Override
+		public Expression evalTail(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+			return branch(evaluator, 0, true);
+		}
+
+		// tries the conditions from the index on and evaluates the branch of the first true one.
+		private Expression branch(ExpressionEvaluatorVisitor evaluator, int from, boolean tail) {
+			for (int i = from; i < conditions.length; i++) {
+				Expression test;
+				try {
+					test = conditions[i].eval(evaluator);
+				} catch (Unwind unwind) {
+					int index = i;
+					throw unwind.then(evaluator, (ev, value) ->
+							value != NIL ? eval(ev, branches[index], tail) : branch(ev, index + 1, tail));
+				}
+				if (test != NIL) {
+					return eval(evaluator, branches[i], tail);
+				}
+			}
+			return otherwise == null ? NIL : eval(evaluator, otherwise, tail);
+		}
 
-	public Expression evalLit(Pair lit) {
-		assert Symbol.LIT.equals(lit.car());
-		return lit;
+		private static Expression eval(ExpressionEvaluatorVisitor evaluator, Node branch, boolean tail) {
+			return tail ? branch.evalTail(evaluator) : branch.eval(evaluator);
+		}
 	}
 
-	public Expression evalErr(Pair lit, ExpressionEvaluatorVisitor visitor) {
-		assert Symbol.ERR.equals(lit.car());
+	static final class Err implements Node {
+		private final Node x;
 
-		Expression expression = lit.cadr().apply(visitor);
+		Err(Node x) {
+			this.x = x;
+		}
 
-		if (expression != NIL) {
-			throw new EvaluationException(expression, "Err called!");
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+
+			Expression expression;
+			try {
+				expression = x.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, value) -> check(value));
+			}
+			return check(expression);
 		}
 
-		return expression;
+		private static Expression check(Expression expression) {
+			if (expression != NIL) {
+				throw new EvaluationException(expression, "Err called!");
+			}
+
+			return expression;
+		}
 	}
 
-	public Expression evalApply(Pair lit, ExpressionEvaluatorVisitor visitor) {
-		assert Symbol.APPLY.equals(lit.car());
-		// TODO: this is really not effective.
+	static final class Apply implements Node {
+		private final Node[] items;
 
-		List<Expression> items = ((Pair) lit.cdr()).stream().map(visitor::appliedTo).collect(Collectors.toList());
+		Apply(Node[] items) {
+			this.items = items;
+		}
 
-		if (items.size() > 1) {
-			Expression last = items.get(items.size() - 1);
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			return eval(evaluator, false);
+		}
 
-			items.remove(items.size() - 1);
+		@Override
+		public Expression evalTail(ExpressionEvaluatorVisitor evaluator) {
+			return eval(evaluator, true);
+		}
 
-			if (last instanceof Pair) {
-				((Pair) last).forEach(items::add);
-			} else {
-				assert last == NIL;
+		private Expression eval(ExpressionEvaluatorVisitor evaluator, boolean tail) {
+			evaluator.env.whereClear();
+
+			if (items.length == 0) {
+				throw new EvaluationException(NIL, "Missing function to apply!");
 			}
+
+			return eval(evaluator, new Expression[items.length], 0, tail);
 		}
 
-		return items.stream().map(RT::quote).collect(Pair.collect()).apply(visitor);
+		// evaluates the items from the index on, the values before it are already there.
+		private Expression eval(ExpressionEvaluatorVisitor evaluator, Expression[] values, int from, boolean tail) {
+			for (int i = from; i < items.length; i++) {
+				try {
+					values[i] = items[i].eval(evaluator);
+				} catch (Unwind unwind) {
+					int index = i;
+					throw unwind.then(evaluator, (ev, value) -> {
+						// the step may be resumed again, the values are copied.
+						Expression[] copy = values.clone();
+						copy[index] = value;
+						return eval(ev, copy, index + 1, tail);
+					});
+				}
+			}
+
+			Expression fn = values[0];
+			List<Expression> args = new ArrayList<>();
+			for (int i = 1; i < values.length; i++) {
+				Expression value = values[i];
+
+				if (i < values.length - 1) {
+					args.add(value);
+				} else if (value instanceof Pair) {
+					// the last item is spread as the rest of the arguments.
+					((Pair) value).forEach(args::add);
+				} else {
+					assert value == NIL;
+				}
+			}
+
+			Expression list = NIL;
+			for (int i = args.size() - 1; i >= 0; i--) {
+				list = new Pair(args.get(i), list);
+			}
+
+			if (tail && fn instanceof Pair && ((Pair) fn).cadr() == Symbol.CLO) {
+				return evaluator.tailCall((Pair) fn, list);
+			} else {
+				return evaluator.apply(fn, list);
+			}
+		}
 	}
 
-	public Expression evalDyn(Pair lit, Environment env, ExpressionEvaluatorVisitor evaluator) {
-		Variable variable = Variable.enforce(lit.nthOrNil(1));
-		Expression value = evaluator.appliedTo(lit.nth(2));
-		Expression body = lit.nth(3);
+	static final class Dyn implements Node {
+		private final Variable variable;
+		private final Node value;
+		private final Node body;
+
+		Dyn(Variable variable, Node value, Node body) {
+			this.variable = variable;
+			this.value = value;
+			this.body = body;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+
+			Expression v;
+			try {
+				v = value.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, this::bind);
+			}
+			return bind(evaluator, v);
+		}
+
+		private Expression bind(ExpressionEvaluatorVisitor evaluator, Expression v) {
+			if (variable.getExpression() == Symbol.LOCK && v != NIL) {
+				// the lock is held by this thread, the body can not be left for the heap with it.
+				return evaluator.env.withDynamicBinding(variable, v, () -> evaluator.delimit(() -> body.eval(evaluator)));
+			}
+
+			Expression before = evaluator.env.bindDynamic(variable, v);
+			try {
+				return body.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(new Binding(evaluator.env.getFrame(), variable, v));
+			} finally {
+				evaluator.env.unbindDynamic(variable, before);
+			}
+		}
+
+		// step of a dyn form waiting for its body, the binding is made again while the body is resumed.
+		private static final class Binding extends Step {
+			private final Variable variable;
+			private final Expression value;
+
+			// values before the binding for each time it is entered, the step may be resumed from inside itself.
+			private final List<Expression> before = new ArrayList<>(1);
+
+			Binding(Frame frame, Variable variable, Expression value) {
+				super(frame, null);
+				this.variable = variable;
+				this.value = value;
+			}
+
+			@Override
+			Expression resume(ExpressionEvaluatorVisitor evaluator, Expression value) {
+				return value;
+			}
 
-		return env.withDynamicBinding(variable, value, () -> evaluator.appliedTo(body));
+			@Override
+			boolean isScoped() {
+				return true;
+			}
+
+			@Override
+			void enter(ExpressionEvaluatorVisitor evaluator) {
+				before.add(evaluator.env.bindDynamic(variable, value));
+			}
+
+			@Override
+			void leave(ExpressionEvaluatorVisitor evaluator) {
+				evaluator.env.unbindDynamic(variable, before.remove(before.size() - 1));
+			}
+		}
 	}
 
 	/**
@@ -92,28 +267,240 @@ public class SpecialForms {
 	 * the car or cdr. Signals an error if the value of x doesn't come from
 	 * a pair.
 	 */
-	public Expression evalWhere(Pair x, Environment env, ExpressionEvaluatorVisitor evaluator) {
-		Expression param = x.nthOrNil(1);
+	static final class Where implements Node {
+		private static final Symbol A = symbol("a"), D = symbol("d");
 
-		Expression value = evaluator.appliedTo(param);
+		private final Node x;
 
-		Optional<LastLocation> location = env.getLastLocation();
+		Where(Node x) {
+			this.x = x;
+		}
 
-		if (location.isPresent()) {
-			Pair parent = location.get().pair;
-			Symbol loc = location.get().car ? symbol("a") : symbol("d");
-			return RT.list(parent, loc);
-		} else {
-			throw new EvaluationException(value, "Value does not come from a pair!");
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+
+			Expression value;
+			evaluator.env.pinFrames();
+			try {
+				value = x.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(new Pinned(evaluator.env.getFrame()));
+			} finally {
+				evaluator.env.unpinFrames();
+			}
+			return locate(evaluator, value);
+		}
+
+		private static Expression locate(ExpressionEvaluatorVisitor evaluator, Expression value) {
+			LastLocation location = evaluator.env.getLastLocation();
+
+			if (location != null) {
+				Pair parent = location.pair;
+				Symbol loc = location.car ? A : D;
+				return RT.list(parent, loc);
+			} else {
+				throw new EvaluationException(value, "Value does not come from a pair!");
+			}
+		}
+
+		// step of a where form waiting for x, frames are pinned while x is resumed.
+		private static final class Pinned extends Step {
+			Pinned(Frame frame) {
+				super(frame, null);
+			}
+
+			@Override
+			Expression resume(ExpressionEvaluatorVisitor evaluator, Expression value) {
+				return locate(evaluator, value);
+			}
+
+			@Override
+			boolean isScoped() {
+				return true;
+			}
+
+			@Override
+			void enter(ExpressionEvaluatorVisitor evaluator) {
+				evaluator.env.pinFrames();
+			}
+
+			@Override
+			void leave(ExpressionEvaluatorVisitor evaluator) {
+				evaluator.env.unpinFrames();
+			}
+		}
+	}
+
+	/**
+	 * Calls f with the current continuation, a function that returns its argument from the ccc form when called. The
+	 * continuation can also be called after the ccc form returned, see {@link Continuation}.
+	 */
+	static final class Ccc implements Node {
+		private final Node f;
+
+		Ccc(Node f) {
+			this.f = f;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+
+			Expression fn;
+			try {
+				fn = f.eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, Ccc::call);
+			}
+			return call(evaluator, fn);
+		}
+
+		// the value of the form goes to the nodes around it by unwinding them to their steps.
+		private static Expression call(ExpressionEvaluatorVisitor evaluator, Expression fn) {
+			Continuation continuation = new Continuation(evaluator);
+			Expression value;
+			try {
+				try {
+					value = evaluator.apply(fn, new Pair(continuation, NIL));
+				} catch (Unwind | Continuation.Escape e) {
+					value = evaluator.resume(e, continuation.exit);
+				}
+			} catch (Continuation.Escape escape) {
+				// jumping over the form, its continuation still needs the nodes around it.
+				throw escape.collect(continuation.exit);
+			} finally {
+				continuation.exit();
+			}
+			throw new Unwind.Capture(continuation.exit, value);
 		}
 	}
 
-	public Expression evalCcc(Pair x, Environment env, ExpressionEvaluatorVisitor evaluator) {
-		throw new EvaluationException.FeatureNotImplementedException(Symbol.CCC);
+	/**
+	 * Starts evaluating e in a new thread and returns t. The thread sees the lexical bindings and a copy of the
+	 * dynamic bindings of its parent except lock, global variables are shared. Errors of the thread go to the uncaught
+	 * exception handler of the thread running it.
+	 */
+	static final class Spawn implements Node {
+		private final Node e;
+
+		Spawn(Node e) {
+			this.e = e;
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+
+			ExpressionEvaluatorVisitor child = new ExpressionEvaluatorVisitor(evaluator.env.newThread());
+			child.env.setFrame(evaluator.env.captureFrame());
+			Scheduler.start(() -> {
+				try {
+					child.env.safePoint();
+					child.delimit(() -> e.eval(child));
+				} catch (Throwable ex) {
+					Thread current = Thread.currentThread();
+					current.getUncaughtExceptionHandler().uncaughtException(current, ex);
+				}
+			});
+			return Symbol.T;
+		}
 	}
 
-	public Expression evalThread(Pair x, Environment env, ExpressionEvaluatorVisitor evaluator) {
-		throw new EvaluationException.FeatureNotImplementedException(Symbol.THREAD);
+	static final class Set implements Node {
+		// variables to assign to, null when the key is a location.
+		private final Analyzer.Reference[] variables;
+		private final Node[] locations;
+		private final Node[] values;
+
+		private Set(Analyzer.Reference[] variables, Node[] locations, Node[] values) {
+			this.variables = variables;
+			this.locations = locations;
+			this.values = values;
+		}
+
+		static Set of(Pair call, Analyzer analyzer) {
+			assert Symbol.SET == call.car();
+
+			List<Analyzer.Reference> variables = new ArrayList<>();
+			List<Node> locations = new ArrayList<>();
+			List<Node> values = new ArrayList<>();
+
+			Expression tail = call.cdr();
+			while (tail != NIL) {
+				Pair pair = (Pair) tail;
+
+				if (pair.car() instanceof Symbol) {
+					variables.add(analyzer.reference(pair.car()));
+					locations.add(null);
+				} else {
+					variables.add(null);
+					locations.add(analyzer.analyze(pair.car()));
+				}
+				values.add(analyzer.analyze(pair.cadr()));
+
+				tail = ((Pair) pair.cdr()).cdr();
+			}
+
+			return new Set(variables.toArray(new Analyzer.Reference[0]), locations.toArray(new Node[0]), values.toArray(new Node[0]));
+		}
+
+		@Override
+		public Expression eval(ExpressionEvaluatorVisitor evaluator) {
+			evaluator.env.whereClear();
+
+			return assign(evaluator, 0, NIL);
+		}
+
+		// makes the assignments from the index on, last is the value assigned before it.
+		private Expression assign(ExpressionEvaluatorVisitor evaluator, int from, Expression last) {
+			for (int i = from; i < values.length; i++) {
+				int index = i;
+				if (variables[i] != null) {
+					try {
+						last = values[i].eval(evaluator);
+					} catch (Unwind unwind) {
+						throw unwind.then(evaluator, (ev, value) -> {
+							variables[index].assign(ev.env, value);
+							return assign(ev, index + 1, value);
+						});
+					}
+					variables[i].assign(evaluator.env, last);
+				} else {
+					// key is ignored on purpose. location contains index to it!
+					try {
+						locations[i].eval(evaluator);
+					} catch (Unwind unwind) {
+						throw unwind.then(evaluator, (ev, key) -> store(ev, index));
+					}
+					return store(evaluator, i);
+				}
+			}
+
+			return last;
+		}
+
+		// assigns to the location of the key just evaluated, then makes the assignments after it.
+		private Expression store(ExpressionEvaluatorVisitor evaluator, int index) {
+			LastLocation location = evaluator.env.getLastLocation();
+			if (location == null) {
+				throw new EvaluationException(NIL, "Can not find location!");
+			}
+			Pair pair = location.pair;
+			boolean car = location.car;
+
+			Expression value;
+			try {
+				value = values[index].eval(evaluator);
+			} catch (Unwind unwind) {
+				throw unwind.then(evaluator, (ev, v) -> {
+					LastLocation.update(pair, car, v);
+					return assign(ev, index + 1, v);
+				});
+			}
+			LastLocation.update(pair, car, value);
+			return assign(evaluator, index + 1, value);
+		}
 	}
 
 	// after -- sorrendiseg megtartasa
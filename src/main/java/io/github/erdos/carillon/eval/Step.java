@@ -0,0 +1,74 @@
+package io.github.erdos.carillon.eval;
+
+import io.github.erdos.carillon.objects.Expression;
+
+/**
+ * Rest of the evaluation of a node that waits for the value of an expression, kept on the heap for continuations.
+ *
+ * Nodes are evaluated on the Java stack. When a continuation is captured, the nodes between the ccc form and the
+ * nearest driver are unwound with an {@link Unwind} exception and each one leaves a step behind, linked from the inner
+ * node to the outer one. The evaluation then goes on by resuming the steps, and a continuation is resumed again by
+ * calling it. Steps do not change when they are resumed, so they can be resumed any number of times.
+ */
+class Step {
+
+	// step that gets the value of this one. Null for the end of the steps while its ccc form or driver is running.
+	Step next;
+
+	// lexical bindings of the node.
+	final Frame frame;
+
+	private final Rest rest;
+
+	Step(Frame frame, Rest rest) {
+		this.frame = frame;
+		this.rest = rest;
+
+		// frames of finished calls are reused, this one may be used again when the step is resumed.
+		for (Frame f = frame; f != null && !f.captured; f = f.parent) {
+			f.captured = true;
+		}
+	}
+
+	// what the node does with the value it waits for.
+	interface Rest {
+		Expression resume(ExpressionEvaluatorVisitor evaluator, Expression value);
+	}
+
+	// value of the node once the expression it waits for has the given value.
+	Expression resume(ExpressionEvaluatorVisitor evaluator, Expression value) {
+		return rest.resume(evaluator, value);
+	}
+
+	// true when the node had dynamic state while it waited, like a dyn binding. It is made again with enter before
+	// the inner steps are resumed, and undone with leave before this one is resumed or when the steps are left.
+	boolean isScoped() {
+		return false;
+	}
+
+	void enter(ExpressionEvaluatorVisitor evaluator) {}
+
+	void leave(ExpressionEvaluatorVisitor evaluator) {}
+
+	/**
+	 * Last step of a ccc form or a driver: the value of the steps before it is returned there. Steps ending here can
+	 * only be resumed while it is running on the Java stack of the evaluator.
+	 */
+	abstract static class End extends Step {
+
+		End() {
+			super(null, null);
+		}
+
+		// the ccc form is passed when the steps are linked after it, its value goes on to the next step.
+		@Override
+		Expression resume(ExpressionEvaluatorVisitor evaluator, Expression value) {
+			return value;
+		}
+
+		// evaluator with the Java stack the value is returned on.
+		abstract ExpressionEvaluatorVisitor owner();
+
+		abstract boolean isRunning();
+	}
+}
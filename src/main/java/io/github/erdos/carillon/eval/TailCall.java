@@ -0,0 +1,44 @@
+package io.github.erdos.carillon.eval;
+
+import io.github.erdos.carillon.objects.Expression;
+import io.github.erdos.carillon.objects.ExpressionVisitor;
+import io.github.erdos.carillon.objects.Pair;
+
+/**
+ * Closure call found in tail position. It is returned instead of a value so that the closure being evaluated can
+ * return first and the call is made by the loop in the evaluator without growing the stack.
+ *
+ * There is one instance per evaluator, it is only valid until the next call is made.
+ */
+final class TailCall implements Expression {
+	Pair fn;
+	Expression arguments;
+
+	// frame with the arguments already bound, set instead of fn and arguments.
+	Frame frame;
+
+	TailCall set(Pair fn, Expression arguments) {
+		this.fn = fn;
+		this.arguments = arguments;
+		this.frame = null;
+		return this;
+	}
+
+	TailCall set(Frame frame) {
+		this.fn = null;
+		this.arguments = null;
+		this.frame = frame;
+		return this;
+	}
+
+	void clear() {
+		fn = null;
+		arguments = null;
+		frame = null;
+	}
+
+	@Override
+	public <T> T apply(ExpressionVisitor<T> visitor) {
+		throw new IllegalStateException("Tail call escaped the evaluator!");
+	}
+}
@@ -0,0 +1,60 @@
+package io.github.erdos.carillon.eval;
+
+import io.github.erdos.carillon.objects.Expression;
+
+/**
+ * Unwinds the Java stack to the nearest ccc form or driver while the nodes passed leave their {@link Step}s. Nodes
+ * catch it, add the step with the rest of their work and throw it on.
+ */
+abstract class Unwind extends RuntimeException {
+
+	// step of the last node passed, the step of the next one is linked after it.
+	Step last;
+
+	Unwind(Step last) {
+		super(null, null, false, false);
+		this.last = last;
+	}
+
+	// adds the step of the node being unwound, returns this to be thrown on.
+	Unwind then(ExpressionEvaluatorVisitor evaluator, Step.Rest rest) {
+		return then(new Step(evaluator.env.getFrame(), rest));
+	}
+
+	Unwind then(Step step) {
+		last.next = step;
+		last = step;
+		return this;
+	}
+
+	// a ccc form returned, the evaluation goes on from the steps waiting for its value.
+	static final class Capture extends Unwind {
+		final Step first;
+		final Expression value;
+
+		Capture(Continuation.Exit exit, Expression value) {
+			super(exit);
+			this.first = exit;
+			this.value = value;
+		}
+	}
+
+	// a continuation is called after a ccc form was passed, the nodes are kept for the continuation of that form.
+	static final class Jump extends Unwind {
+		final Step.End target;
+		final Step start;
+		final Expression value;
+
+		Jump(Continuation.Exit exit, Step.End target, Step start, Expression value) {
+			super(exit);
+			this.target = target;
+			this.start = start;
+			this.value = value;
+		}
+
+		// the nodes below a driver can not be kept.
+		Continuation.Escape escape() {
+			return new Continuation.Escape(target, start, value);
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package io.github.erdos.carillon.eval;
 
+import io.github.erdos.carillon.objects.Channel;
 import io.github.erdos.carillon.objects.Character;
 import io.github.erdos.carillon.objects.Expression;
 import io.github.erdos.carillon.objects.ExpressionVisitor;
@@ -15,7 +16,7 @@ final class Variable {
 		return e.apply(new ExpressionVisitor<Optional<Variable>>() {
 			@Override
 			public Optional<Variable> pair(Pair pair) {
-				if (Pair.EMPTY.equals(pair.car())) {
+				if (Pair.isEmptyPair(pair.car())) {
 					return Optional.of(new Variable(pair));
 				} else {
 					return Optional.empty();
@@ -40,6 +41,11 @@ final class Variable {
 			public Optional<Variable> character(Character character) {
 				return Optional.empty();
 			}
+
+			@Override
+			public Optional<Variable> channel(Channel channel) {
+				return Optional.empty();
+			}
 		});
 	}
 
@@ -0,0 +1,112 @@
+package io.github.erdos.carillon.objects;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue for passing values between threads. Putting blocks while the channel is full, taking blocks while it
+ * is empty. Closing wakes up every waiting thread: takers get the remaining values and then null, putters fail.
+ */
+public final class Channel implements Expression {
+
+	private final Expression[] items;
+	private int head, count;
+	private boolean closed;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	public Channel(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		}
+		this.items = new Expression[capacity];
+	}
+
+	@Override
+	public <T> T apply(ExpressionVisitor<T> visitor) {
+		return visitor.channel(this);
+	}
+
+	// waits for free space, returns false when the channel is closed.
+	public boolean put(Expression e) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (count == items.length && !closed) {
+				notFull.await();
+			}
+			if (closed) {
+				return false;
+			}
+			items[(head + count) % items.length] = e;
+			count++;
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// waits for a value, returns null when the channel is closed and empty.
+	public Expression take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (count == 0 && !closed) {
+				notEmpty.await();
+			}
+			return count == 0 ? null : dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// next value without waiting, null when there is none.
+	public Expression poll() {
+		lock.lock();
+		try {
+			return count == 0 ? null : dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Expression dequeue() {
+		Expression e = items[head];
+		items[head] = null;
+		head = (head + 1) % items.length;
+		count--;
+		notFull.signal();
+		return e;
+	}
+
+	// returns false when it was already closed.
+	public boolean close() {
+		lock.lock();
+		try {
+			if (closed) {
+				return false;
+			}
+			closed = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isClosed() {
+		lock.lock();
+		try {
+			return closed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "<channel>";
+	}
+}
@@ -4,23 +4,51 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 public final class Character implements Expression {
-	private final char c;
+	private final int codePoint;
 
-	private Character(char c) {this.c = c;}
+	private Character(int codePoint) {this.codePoint = codePoint;}
 
-	private static final Map<java.lang.Character, Character> pool = new ConcurrentHashMap<>();
+	// every character of the basic multilingual plane, indexed by its code point.
+	private static final Character[] bmp = new Character[java.lang.Character.MIN_SUPPLEMENTARY_CODE_POINT];
+
+	// the rest is made when first used.
+	private static final Map<Integer, Character> supplementary = new ConcurrentHashMap<>();
+
+	static {
+		for (int i = 0; i < bmp.length; i++) {
+			bmp[i] = new Character(i);
+		}
+	}
 
 	public static Character character(char c) {
-		return pool.computeIfAbsent(c, Character::new);
+		return bmp[c];
+	}
+
+	public static Character character(int codePoint) {
+		if (codePoint >= 0 && codePoint < bmp.length) {
+			return bmp[codePoint];
+		} else if (java.lang.Character.isValidCodePoint(codePoint)) {
+			return supplementary.computeIfAbsent(codePoint, Character::new);
+		} else {
+			throw new IllegalArgumentException("Not a valid code point: " + codePoint);
+		}
 	}
 
 	@Override
 	public String toString() {
-		return "\\" + c;
+		return "\\" + new String(java.lang.Character.toChars(codePoint));
 	}
 
+	// only for characters of the basic multilingual plane.
 	public char getChar() {
-		return c;
+		if (codePoint >= bmp.length) {
+			throw new IllegalStateException("Character does not fit in a char: " + this);
+		}
+		return (char) codePoint;
+	}
+
+	public int getCodePoint() {
+		return codePoint;
 	}
 
 	@Override
@@ -33,11 +61,11 @@ public final class Character implements Expression {
 		if (this == o) return true;
 		if (o == null || getClass() != o.getClass()) return false;
 		Character character = (Character) o;
-		return c == character.c;
+		return codePoint == character.codePoint;
 	}
 
 	@Override
 	public int hashCode() {
-		return c;
+		return codePoint;
 	}
 }
@@ -6,6 +6,8 @@ public interface ExpressionVisitor<T> {
 
 	T stream(Stream stream);
 
+	T channel(Channel channel);
+
 	T symbol(Symbol symbol);
 
 	T character(Character character);
@@ -0,0 +1,282 @@
+package io.github.erdos.carillon.objects;
+
+import io.github.erdos.carillon.eval.EvaluationException;
+
+import java.math.BigInteger;
+import java.util.Objects;
+
+import static io.github.erdos.carillon.objects.Symbol.NIL;
+import static io.github.erdos.carillon.objects.Symbol.NUM;
+import static io.github.erdos.carillon.objects.Symbol.T;
+
+/**
+ * Number literal: (lit num (sign n d) (sign n d)) with the real and the imaginary part as rationals.
+ *
+ * The parts are stored as big integers and the list of unary parts is built when the cdr is first read. From then on
+ * the number behaves just like the list, because Bel code may change it. The car may be changed without building the
+ * list, it is compared and hashed together with the parts.
+ */
+public final class Number extends Pair {
+
+	private static final Symbol PLUS = Symbol.symbol("+");
+	private static final Symbol MINUS = Symbol.symbol("-");
+
+	// parts in lowest terms, denominators are positive.
+	private final BigInteger realNumerator, realDenominator;
+	private final BigInteger imaginaryNumerator, imaginaryDenominator;
+
+	private volatile boolean expanded;
+
+	// true once the car was changed, the number is not the lit of the parts anymore.
+	private volatile boolean changed;
+
+	// hash of the value, 0 when it is not computed yet.
+	private int hash;
+
+	private Number(BigInteger realNumerator, BigInteger realDenominator, BigInteger imaginaryNumerator, BigInteger imaginaryDenominator) {
+		super(Symbol.LIT);
+		this.realNumerator = realNumerator;
+		this.realDenominator = realDenominator;
+		this.imaginaryNumerator = imaginaryNumerator;
+		this.imaginaryDenominator = imaginaryDenominator;
+	}
+
+	public static Number number(long value) {
+		return number(BigInteger.valueOf(value));
+	}
+
+	public static Number number(BigInteger value) {
+		return new Number(value, BigInteger.ONE, BigInteger.ZERO, BigInteger.ONE);
+	}
+
+	public static Number number(BigInteger numerator, BigInteger denominator) {
+		return number(numerator, denominator, BigInteger.ZERO, BigInteger.ONE);
+	}
+
+	public static Number number(BigInteger realNumerator, BigInteger realDenominator, BigInteger imaginaryNumerator, BigInteger imaginaryDenominator) {
+		if (realDenominator.signum() == 0 || imaginaryDenominator.signum() == 0) {
+			throw new ArithmeticException("Division by zero");
+		}
+
+		BigInteger realGcd = realNumerator.gcd(realDenominator).multiply(BigInteger.valueOf(realDenominator.signum()));
+		BigInteger imaginaryGcd = imaginaryNumerator.gcd(imaginaryDenominator).multiply(BigInteger.valueOf(imaginaryDenominator.signum()));
+
+		return new Number(realNumerator.divide(realGcd), realDenominator.divide(realGcd),
+				imaginaryNumerator.divide(imaginaryGcd), imaginaryDenominator.divide(imaginaryGcd));
+	}
+
+	public BigInteger getRealNumerator() {
+		return realNumerator;
+	}
+
+	public BigInteger getRealDenominator() {
+		return realDenominator;
+	}
+
+	public BigInteger getImaginaryNumerator() {
+		return imaginaryNumerator;
+	}
+
+	public BigInteger getImaginaryDenominator() {
+		return imaginaryDenominator;
+	}
+
+	// true when the list structure was built or the car was changed, the fields may not match it anymore.
+	public boolean isExpanded() {
+		return expanded || changed;
+	}
+
+	@Override
+	public Expression cdr() {
+		if (!expanded) {
+			expand();
+		}
+		return super.cdr();
+	}
+
+	@Override
+	public Expression cadr() {
+		return expanded ? super.cadr() : NUM;
+	}
+
+	@Override
+	public void setCar(Expression e) {
+		changed = true;
+		super.setCar(e);
+	}
+
+	@Override
+	public boolean compareAndSetCar(Expression expected, Expression e) {
+		// marked first so that nobody takes the new car for a lit of the parts.
+		changed = true;
+		return super.compareAndSetCar(expected, e);
+	}
+
+	@Override
+	public void setCdr(Expression e) {
+		synchronized (this) {
+			expanded = true;
+			super.setCdr(e);
+		}
+	}
+
+	private synchronized void expand() {
+		if (!expanded) {
+			super.setCdr(new Pair(NUM, new Pair(part(realNumerator, realDenominator), new Pair(part(imaginaryNumerator, imaginaryDenominator), NIL))));
+			expanded = true;
+		}
+	}
+
+	private Pair part(BigInteger numerator, BigInteger denominator) {
+		Symbol sign = numerator.signum() < 0 ? MINUS : PLUS;
+		return new Pair(sign, new Pair(unary(numerator.abs()), new Pair(unary(denominator), NIL)));
+	}
+
+	private Expression unary(BigInteger n) {
+		if (n.bitLength() > 31) {
+			throw new EvaluationException(this, "Number is too large to be represented as a list!");
+		}
+		Expression list = NIL;
+		for (int i = n.intValue(); i > 0; i--) {
+			list = new Pair(T, list);
+		}
+		return list;
+	}
+
+	// compares the car and the value while the number is not expanded, with other lists as if it was expanded.
+	@Override
+	Boolean fastEquals(Pair o) {
+		Expression car = car(), otherCar = o.car();
+		if (expanded || car instanceof Pair || otherCar instanceof Pair) {
+			// a list put in the car is compared as structure.
+			return null;
+		} else if (!car.equals(otherCar)) {
+			return false;
+		} else if (o instanceof Number && !((Number) o).expanded) {
+			Number n = (Number) o;
+			return realNumerator.equals(n.realNumerator) && realDenominator.equals(n.realDenominator)
+					&& imaginaryNumerator.equals(n.imaginaryNumerator) && imaginaryDenominator.equals(n.imaginaryDenominator);
+		} else {
+			return isList(o.cdr());
+		}
+	}
+
+	// true when the list is (num (sign n d) (sign n d)) with the parts of this number.
+	private boolean isList(Expression e) {
+		if (!(e instanceof Pair) || ((Pair) e).car() != NUM) {
+			return false;
+		}
+		e = ((Pair) e).cdr();
+		if (!(e instanceof Pair) || !isPart(((Pair) e).car(), realNumerator, realDenominator)) {
+			return false;
+		}
+		e = ((Pair) e).cdr();
+		if (!(e instanceof Pair) || !isPart(((Pair) e).car(), imaginaryNumerator, imaginaryDenominator)) {
+			return false;
+		}
+		return ((Pair) e).cdr() == NIL;
+	}
+
+	private static boolean isPart(Expression e, BigInteger numerator, BigInteger denominator) {
+		if (!(e instanceof Pair) || ((Pair) e).car() != (numerator.signum() < 0 ? MINUS : PLUS)) {
+			return false;
+		}
+		e = ((Pair) e).cdr();
+		if (!(e instanceof Pair) || !isUnary(((Pair) e).car(), numerator.abs())) {
+			return false;
+		}
+		e = ((Pair) e).cdr();
+		if (!(e instanceof Pair) || !isUnary(((Pair) e).car(), denominator)) {
+			return false;
+		}
+		return ((Pair) e).cdr() == NIL;
+	}
+
+	// a list of n t symbols. Larger numbers can not be expanded, so no list is equal to them.
+	private static boolean isUnary(Expression e, BigInteger n) {
+		if (n.bitLength() > 31) {
+			return false;
+		}
+		for (int i = n.intValue(); i > 0; i--) {
+			if (!(e instanceof Pair) || ((Pair) e).car() != T) {
+				return false;
+			}
+			e = ((Pair) e).cdr();
+		}
+		return e == NIL;
+	}
+
+	// hash of the value, the same as the hash of the expanded list.
+	@Override
+	public int hashCode() {
+		if (expanded || changed) {
+			return super.hashCode();
+		}
+		int h = hash;
+		if (h == 0) {
+			hash = h = super.hashCode();
+		}
+		return h;
+	}
+
+	@Override
+	boolean hashStructure(Hash hash) {
+		Expression car = car();
+		if (expanded || car instanceof Pair) {
+			return false;
+		}
+		hashList(hash, car);
+		return true;
+	}
+
+	// steps of the expanded list, false when the limit is reached.
+	private boolean hashList(Hash hash, Expression car) {
+		return hash.cell(car) && hash.cell(NUM)
+				&& hash.open() && hashPart(hash, realNumerator, realDenominator)
+				&& hash.open() && hashPart(hash, imaginaryNumerator, imaginaryDenominator)
+				&& hash.end(NIL);
+	}
+
+	private static boolean hashPart(Hash hash, BigInteger numerator, BigInteger denominator) {
+		return hash.cell(numerator.signum() < 0 ? MINUS : PLUS)
+				&& hashUnary(hash, numerator.abs()) && hashUnary(hash, denominator)
+				&& hash.end(NIL);
+	}
+
+	// the pair holding a unary list in its car, then the list itself up to the limit of the hash.
+	private static boolean hashUnary(Hash hash, BigInteger n) {
+		if (n.signum() == 0) {
+			return hash.cell(NIL);
+		} else if (!hash.open()) {
+			return false;
+		}
+		// the limit is reached long before the end of large numbers.
+		int length = n.bitLength() > 31 ? Integer.MAX_VALUE : n.intValue();
+		for (int i = 0; i < length; i++) {
+			if (!hash.cell(T)) {
+				return false;
+			}
+		}
+		return hash.end(NIL);
+	}
+
+	@Override
+	public String toString() {
+		if (expanded || changed) {
+			return super.toString();
+		}
+
+		String real = fraction(realNumerator, realDenominator);
+		if (imaginaryNumerator.signum() == 0) {
+			return real;
+		}
+
+		String imaginary = fraction(imaginaryNumerator, imaginaryDenominator);
+		String sign = imaginaryNumerator.signum() < 0 ? "" : "+";
+		return (realNumerator.signum() == 0 ? "" : real + sign) + imaginary + "i";
+	}
+
+	private static String fraction(BigInteger numerator, BigInteger denominator) {
+		return Objects.equals(denominator, BigInteger.ONE) ? numerator.toString() : numerator + "/" + denominator;
+	}
+}
@@ -3,8 +3,13 @@ package io.github.erdos.carillon.objects;
 import io.github.erdos.carillon.eval.EvaluationException.ImproperListException;
 import io.github.erdos.carillon.eval.RT;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayDeque;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
@@ -21,13 +26,31 @@ import java.util.stream.StreamSupport;
 
 import static io.github.erdos.carillon.objects.Symbol.NIL;
 
-public final class Pair implements Expression, Iterable<Expression> {
+public class Pair implements Expression, Iterable<Expression> {
 
 	public static final Pair EMPTY = new Pair(NIL, NIL);
 
+	// plain fields, only the compare-and-set operations and the volatile reads go through the var handles.
 	private Expression first;
 	private Expression second;
 
+	/**
+	 * Var handles of the fields as method handles, they are made with reflection because the code is built for Java 8.
+	 * Null on Java 8, the pair is locked for these operations there.
+	 */
+	private static final MethodHandle CAS_FIRST = fieldHandle("first", "COMPARE_AND_SET");
+	private static final MethodHandle CAS_SECOND = fieldHandle("second", "COMPARE_AND_SET");
+	private static final MethodHandle GET_FIRST = fieldHandle("first", "GET_VOLATILE");
+	private static final MethodHandle GET_SECOND = fieldHandle("second", "GET_VOLATILE");
+
+	// evaluator specific data attached to the pair when it is used as a form. Dropped when the pair changes.
+	private Object analyzed;
+
+	// attached data that also has to be dropped elsewhere when the pair changes, for example the forms around it.
+	public interface Dependent {
+		void invalidate();
+	}
+
 	public Pair(Expression first, Expression second) {
 		assert first != null;
 		assert second != null;
@@ -35,65 +58,176 @@ public final class Pair implements Expression, Iterable<Expression> {
 		this.second = second;
 	}
 
+	// for subclasses that compute the cdr when it is first read.
+	protected Pair(Expression first) {
+		assert first != null;
+		this.first = first;
+	}
+
 	@Override
 	public String toString() {
-		if (isString()) {
-			return stream().map(x -> ((Character)x).getChar())
-					.collect(Collector.of(
-						StringBuilder::new,
-						StringBuilder::append,
-						StringBuilder::append,
-						x -> "\"" + x.toString() + "\""));
-		} else if (first == Symbol.QUOTE && second instanceof Pair && (((Pair) second).second == NIL || ((Pair) second).second == null)) {
-			return "'" + ((Pair) second).first;
-		} else if (first == NIL && second == NIL) {
-			return "(nil)";
+		return Printer.toString(this);
+	}
+
+	@Override
+	public <T> T apply(ExpressionVisitor<T> visitor) {
+		return visitor.pair(this);
+	}
+
+	/**
+	 * Structural equality without recursion. The cdr chain is followed in a loop and the cars wait on a stack. After a
+	 * number of steps the compared pairs are remembered, a pair of pairs seen again is taken as equal, so cyclic
+	 * structures are compared too.
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof Pair)) return false;
+
+		ArrayDeque<Expression> stack = null;
+		Map<Pair, Set<Pair>> seen = null;
+		int steps = 0;
+
+		Expression a = this, b = (Expression) o;
+		while (true) {
+			if (a != b) {
+				if (a instanceof Pair && b instanceof Pair) {
+					Pair x = (Pair) a, y = (Pair) b;
+					Boolean fast = x.fastEquals(y);
+					if (fast == null) {
+						fast = y.fastEquals(x);
+					}
+					if (fast != null) {
+						if (!fast) {
+							return false;
+						}
+					} else if (++steps <= TRACK_AFTER || firstVisit(seen == null ? (seen = new IdentityHashMap<>()) : seen, x, y)) {
+						if (x.first != y.first) {
+							if (stack == null) {
+								stack = new ArrayDeque<>();
+							}
+							stack.push(x.first);
+							stack.push(y.first);
+						}
+						a = x.cdr();
+						b = y.cdr();
+						continue;
+					}
+				} else if (a == null || !a.equals(b)) {
+					return false;
+				}
+			}
+
+			if (stack == null || stack.isEmpty()) {
+				return true;
+			}
+			b = stack.pop();
+			a = stack.pop();
 		}
+	}
 
-		StringBuilder sb = new StringBuilder("(");
-		sb.append(first.toString());
+	// false when the two pairs were already compared, they are equal unless a difference is found elsewhere.
+	private static boolean firstVisit(Map<Pair, Set<Pair>> seen, Pair x, Pair y) {
+		return seen.computeIfAbsent(x, k -> Collections.newSetFromMap(new IdentityHashMap<>())).add(y);
+	}
 
-		Pair current = this;
+	// steps of equals before it starts looking for cycles.
+	private static final int TRACK_AFTER = 1000;
 
-		while (current.second instanceof Pair && !current.isRightNil()) {
-			current = (Pair) (current.second);
+	// elements hashed at most, so hashing is cheap for long lists and ends for cyclic ones.
+	private static final int HASH_LIMIT = 4096;
 
-			sb.append(' ');
+	/**
+	 * Result of a cheaper comparison with another pair, null when the structure has to be compared. It is tried both
+	 * ways, so lazy subclasses are never expanded to be compared with a plain list.
+	 */
+	Boolean fastEquals(Pair other) {
+		return null;
+	}
 
-			if (current.first == null) {
-				sb.append("nil");
+	/**
+	 * Hash of the first elements in depth-first order. Equal structures are visited in the same order so they have the
+	 * same hash, cyclic ones included.
+	 */
+	@Override
+	public int hashCode() {
+		ArrayDeque<Expression> stack = null;
+		Hash hash = new Hash();
+		Expression e = this;
+		while (hash.budget > 0) {
+			if (e instanceof Pair && !((Pair) e).hashStructure(hash)) {
+				Pair p = (Pair) e;
+				if (p.first instanceof Pair) {
+					hash.open();
+					if (stack == null) {
+						stack = new ArrayDeque<>();
+					}
+					stack.push(p.cdr());
+					e = p.first;
+				} else {
+					hash.cell(p.first);
+					e = p.cdr();
+				}
 			} else {
-				sb.append(current.first);
+				if (!(e instanceof Pair)) {
+					hash.end(e);
+				}
+				if (stack == null || stack.isEmpty()) {
+					break;
+				}
+				e = stack.pop();
 			}
 		}
-
-		if (!current.isRightNil()) {
-			sb.append(' ');
-			sb.append('.');
-			sb.append(' ');
-			sb.append(current.second == null ? "nil" : current.second.toString());
-		}
-
-		sb.append(')');
-		return sb.toString();
+		return hash.h;
 	}
 
-	@Override
-	public <T> T apply(ExpressionVisitor<T> visitor) {
-		return visitor.pair(this);
+	/**
+	 * Adds the hash of the whole structure from this pair, the atom at its end included, as hashCode would visit it.
+	 * Lazy subclasses do it without building the structure. False when the pairs have to be visited.
+	 */
+	boolean hashStructure(Hash hash) {
+		return false;
 	}
 
-	@Override
-	public boolean equals(Object o) {
-		if (this == o) return true;
-		if (o == null || getClass() != o.getClass()) return false;
-		Pair pair = (Pair) o;
-		return Objects.equals(first, pair.first) && Objects.equals(second, pair.second);
+	// steps of hashCode, each one counts against the limit. False once the limit is reached.
+	static final class Hash {
+		int h = 1;
+		int budget = HASH_LIMIT;
+
+		// pair with an atom in its car.
+		boolean cell(Expression car) {
+			if (budget <= 0) {
+				return false;
+			}
+			budget--;
+			h = 31 * (31 * h + 1) + Objects.hashCode(car);
+			return true;
+		}
+
+		// pair with a pair in its car, the car is visited next.
+		boolean open() {
+			if (budget <= 0) {
+				return false;
+			}
+			budget--;
+			h = 31 * h + 1;
+			return true;
+		}
+
+		// atom at the end of a list.
+		boolean end(Expression atom) {
+			if (budget <= 0) {
+				return false;
+			}
+			budget--;
+			h = 31 * h + Objects.hashCode(atom);
+			return true;
+		}
 	}
 
-	@Override
-	public int hashCode() {
-		return Objects.hash(first, second);
+	// true for (nil), the empty parameter list and the pattern that matches anything.
+	public static boolean isEmptyPair(Expression e) {
+		return e == EMPTY || e instanceof Pair && ((Pair) e).isEmpty();
 	}
 
 	@Override
@@ -113,10 +247,10 @@ public final class Pair implements Expression, Iterable<Expression> {
 				}
 				Expression result = head.first;
 
-				if (head.second == NIL) {
+				if (head.cdr() == NIL) {
 					head = null;
 				} else {
-					head = (Pair) (head.second);
+					head = (Pair) (head.cdr());
 				}
 				return result;
 			}
@@ -212,7 +346,7 @@ public final class Pair implements Expression, Iterable<Expression> {
 	}
 
 
-	public Expression car() {
+	public final Expression car() {
 		return first;
 	}
 
@@ -222,7 +356,7 @@ public final class Pair implements Expression, Iterable<Expression> {
 
 	// second elem in normal list
 	public Expression cadr() {
-		return ((Pair) second).first;
+		return ((Pair) cdr()).first;
 	}
 
 	// third elem
@@ -231,37 +365,152 @@ public final class Pair implements Expression, Iterable<Expression> {
 	}
 
 	public Pair next() {
-		return ((Pair) second);
+		return ((Pair) cdr());
 	}
 
 	public Expression cadddr() {
-		return ((Pair) ((Pair) ((Pair) second).second).second).first;
+		return next().next().next().first;
 	}
 
 	public Expression caddddr() {
-		return ((Pair) ((Pair) ((Pair) ((Pair) second).second).second).second).first;
+		return next().next().next().next().first;
 	}
 
 	public void setCar(Expression e) {
-		this.first = e;
+		first = e;
+		changed();
 	}
 
 	public void setCdr(Expression e) {
-		this.second = e;
+		second = e;
+		changed();
+	}
+
+	// atomically sets the car when it is identical to the expected value.
+	public boolean compareAndSetCar(Expression expected, Expression e) {
+		boolean set;
+		if (CAS_FIRST != null) {
+			set = compareAndSet(CAS_FIRST, expected, e);
+		} else {
+			synchronized (this) {
+				set = first == expected;
+				if (set) {
+					first = e;
+				}
+			}
+		}
+		if (set) {
+			changed();
+		}
+		return set;
+	}
+
+	// atomically sets the cdr when it is identical to the expected value.
+	public boolean compareAndSetCdr(Expression expected, Expression e) {
+		// lazy tails are built first so that the field holds the real cdr.
+		cdr();
+		boolean set;
+		if (CAS_SECOND != null) {
+			set = compareAndSet(CAS_SECOND, expected, e);
+		} else {
+			synchronized (this) {
+				set = second == expected;
+				if (set) {
+					second = e;
+				}
+			}
+		}
+		if (set) {
+			changed();
+		}
+		return set;
+	}
+
+	// car with a volatile read, it sees the values set by the compare-and-set operations of other threads.
+	public Expression getCarVolatile() {
+		if (GET_FIRST == null) {
+			synchronized (this) {
+				return first;
+			}
+		}
+		return getVolatile(GET_FIRST);
+	}
+
+	// cdr with a volatile read, lazy tails are built first.
+	public Expression getCdrVolatile() {
+		cdr();
+		if (GET_SECOND == null) {
+			synchronized (this) {
+				return second;
+			}
+		}
+		return getVolatile(GET_SECOND);
+	}
+
+	private boolean compareAndSet(MethodHandle handle, Expression expected, Expression e) {
+		try {
+			return (boolean) handle.invokeExact(this, expected, e);
+		} catch (RuntimeException | Error ex) {
+			throw ex;
+		} catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+	}
+
+	private Expression getVolatile(MethodHandle handle) {
+		try {
+			return (Expression) handle.invokeExact(this);
+		} catch (RuntimeException | Error ex) {
+			throw ex;
+		} catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+	}
+
+	// VarHandle.toMethodHandle of the field for the access mode, null before Java 9.
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static MethodHandle fieldHandle(String field, String accessMode) {
+		try {
+			Class<?> varHandle = Class.forName("java.lang.invoke.VarHandle");
+			Class modes = Class.forName("java.lang.invoke.VarHandle$AccessMode");
+			Object handle = MethodHandles.Lookup.class.getMethod("findVarHandle", Class.class, String.class, Class.class)
+					.invoke(MethodHandles.lookup(), Pair.class, field, Expression.class);
+			return (MethodHandle) varHandle.getMethod("toMethodHandle", modes).invoke(handle, Enum.valueOf(modes, accessMode));
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	private void changed() {
+		Object a = analyzed;
+		if (a != null) {
+			analyzed = null;
+			if (a instanceof Dependent) {
+				((Dependent) a).invalidate();
+			}
+		}
+	}
+
+	public Object getAnalyzed() {
+		return analyzed;
+	}
+
+	public void setAnalyzed(Object analyzed) {
+		this.analyzed = analyzed;
 	}
 
 	public boolean isEmpty() {
-		return first == NIL && second == NIL;
+		return first == NIL && cdr() == NIL;
 	}
 
 	public boolean isRightNil() {
-		return second == NIL || second == null;
+		return cdr() == NIL;
 	}
 
 	public Expression nth(int n) {
 		Pair p = this;
 		for (int i = 0; i < n; i++) {
-			p = (Pair) p.second;
+			p = (Pair) p.cdr();
 		}
 		return p.car();
 	}
@@ -269,10 +518,10 @@ public final class Pair implements Expression, Iterable<Expression> {
 	public Expression nthOrNil(int n) {
 		Pair p = this;
 		for (int i = 0; i < n; i++) {
-			if (p.second == NIL) {
+			if (p.cdr() == NIL) {
 				return NIL;
 			} else {
-				p = (Pair) p.second;
+				p = (Pair) p.cdr();
 			}
 		}
 		return p.car();
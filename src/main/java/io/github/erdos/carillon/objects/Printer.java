@@ -0,0 +1,203 @@
+package io.github.erdos.carillon.objects;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static io.github.erdos.carillon.objects.Symbol.NIL;
+
+/**
+ * Writes expressions to a Writer without building the text in memory and without recursion.
+ *
+ * Pairs reached more than once are labelled: the first one is written as #n=(...) and the others as #n#, so shared
+ * and cyclic structure is written once and the reader gives back the same structure.
+ */
+public final class Printer {
+
+	// on the stack before a pair whose car was written, the rest of the list comes next.
+	private static final Object REST = new Object();
+
+	private final Writer writer;
+
+	// pairs reached more than once, mapped to their label or to -1 before they are written.
+	private final Map<Pair, Integer> labels = new IdentityHashMap<>();
+	private int nextLabel;
+
+	private Printer(Writer writer) {
+		this.writer = writer;
+	}
+
+	public static void print(Expression expression, Writer writer) throws IOException {
+		Printer printer = new Printer(writer);
+		printer.findShared(expression);
+		printer.write(expression);
+	}
+
+	public static String toString(Expression expression) {
+		StringWriter writer = new StringWriter();
+		try {
+			print(expression, writer);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return writer.toString();
+	}
+
+	private void findShared(Expression root) {
+		Set<Pair> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+		Deque<Expression> stack = new ArrayDeque<>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			Expression e = stack.pop();
+			while (e instanceof Pair && !isText((Pair) e) && !isNumber((Pair) e)) {
+				Pair p = (Pair) e;
+				if (!seen.add(p)) {
+					labels.put(p, -1);
+					break;
+				}
+				if (p.car() instanceof Pair) {
+					stack.push(p.car());
+				}
+				e = p.cdr();
+			}
+		}
+	}
+
+	private void write(Expression root) throws IOException {
+		Deque<Object> stack = new ArrayDeque<>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			Object o = stack.pop();
+			if (o == REST) {
+				rest((Pair) stack.pop(), stack);
+			} else if (o instanceof String) {
+				writer.write((String) o);
+			} else {
+				expression((Expression) o, stack);
+			}
+		}
+	}
+
+	private void expression(Expression e, Deque<Object> stack) throws IOException {
+		if (e instanceof Character) {
+			writer.write('\\');
+			writeCodePoint(((Character) e).getCodePoint());
+			return;
+		} else if (!(e instanceof Pair)) {
+			writer.write(e.toString());
+			return;
+		}
+
+		Pair p = (Pair) e;
+		Integer label = labels.isEmpty() ? null : labels.get(p);
+		if (label != null) {
+			if (label >= 0) {
+				writeLabel(label, '#');
+			} else {
+				labels.put(p, nextLabel);
+				writeLabel(nextLabel++, '=');
+				list(p, stack);
+			}
+		} else if (isNumber(p)) {
+			writer.write(p.toString());
+		} else if (isText(p)) {
+			writer.write('"');
+			((Text) p).writeString(writer);
+			writer.write('"');
+		} else if (isQuote(p)) {
+			writer.write('\'');
+			stack.push(((Pair) p.cdr()).car());
+		} else if (isString(p)) {
+			writer.write('"');
+			for (Expression c = p; c != NIL; c = ((Pair) c).cdr()) {
+				int codePoint = ((Character) ((Pair) c).car()).getCodePoint();
+				if (codePoint == '"' || codePoint == '\\') {
+					writer.write('\\');
+				}
+				writeCodePoint(codePoint);
+			}
+			writer.write('"');
+		} else {
+			list(p, stack);
+		}
+	}
+
+	private void list(Pair p, Deque<Object> stack) throws IOException {
+		writer.write('(');
+		stack.push(p);
+		stack.push(REST);
+		stack.push(p.car());
+	}
+
+	private void rest(Pair p, Deque<Object> stack) throws IOException {
+		Expression next = p.cdr();
+		if (next == NIL) {
+			writer.write(')');
+		} else if (next instanceof Pair && !isNumber((Pair) next) && !isLabelled((Pair) next)) {
+			writer.write(' ');
+			stack.push(next);
+			stack.push(REST);
+			stack.push(((Pair) next).car());
+		} else {
+			writer.write(" . ");
+			stack.push(")");
+			stack.push(next);
+		}
+	}
+
+	private void writeLabel(int label, char suffix) throws IOException {
+		writer.write('#');
+		writer.write(Integer.toString(label));
+		writer.write(suffix);
+	}
+
+	private void writeCodePoint(int codePoint) throws IOException {
+		if (java.lang.Character.isBmpCodePoint(codePoint)) {
+			writer.write(codePoint);
+		} else {
+			writer.write(java.lang.Character.highSurrogate(codePoint));
+			writer.write(java.lang.Character.lowSurrogate(codePoint));
+		}
+	}
+
+	private boolean isLabelled(Pair p) {
+		return !labels.isEmpty() && labels.containsKey(p);
+	}
+
+	// (quote x) is written as 'x unless the inner pair is labelled.
+	private boolean isQuote(Pair p) {
+		return p.car() == Symbol.QUOTE
+				&& p.cdr() instanceof Pair
+				&& !isNumber((Pair) p.cdr())
+				&& !isLabelled((Pair) p.cdr())
+				&& ((Pair) p.cdr()).cdr() == NIL;
+	}
+
+	// list of characters with no labelled pair in it.
+	private boolean isString(Pair p) {
+		Expression e = p;
+		while (e instanceof Pair) {
+			Pair c = (Pair) e;
+			if (!(c.car() instanceof Character) || (e != p && isLabelled(c))) {
+				return false;
+			}
+			e = c.cdr();
+		}
+		return e == NIL;
+	}
+
+	private static boolean isText(Pair p) {
+		return p instanceof Text && ((Text) p).isIntact();
+	}
+
+	private static boolean isNumber(Pair p) {
+		return p instanceof Number && !((Number) p).isExpanded();
+	}
+}
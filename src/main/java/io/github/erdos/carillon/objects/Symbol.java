@@ -4,13 +4,19 @@ import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.Map;
-import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 public final class Symbol implements Expression {
 
 	private static final ReferenceQueue<Symbol> rq = new ReferenceQueue<>();
-	private static final Map<String, Reference<Symbol>> table = new ConcurrentHashMap<>();
+	private static final Map<String, Entry> table = new ConcurrentHashMap<>();
+
+	// cleared entries removed from the table so far.
+	private static final LongAdder expunged = new LongAdder();
+
+	// cleared entries removed by one call at most, so no caller pays for a large sweep.
+	private static final int EXPUNGE_BATCH = 16;
 
 	public static final Symbol QUOTE = symbol("quote");
 	public static final Symbol T = symbol("t");
@@ -22,6 +28,7 @@ public final class Symbol implements Expression {
 	public static final Symbol SCOPE = symbol("scope");
 	public static final Symbol INS = symbol("ins");
 	public static final Symbol OUTS = symbol("outs");
+	public static final Symbol LOCK = symbol("lock");
 
 	public static final Symbol ERR = symbol("err");
 
@@ -45,11 +52,27 @@ public final class Symbol implements Expression {
 	public static final Symbol PAIR = symbol("pair");
 	public static final Symbol CHAR = symbol("char");
 	public static final Symbol STREAM = symbol("stream");
+	public static final Symbol CHANNEL = symbol("channel");
 
 
 	public static final Symbol XAR = symbol("xar");
 	public static final Symbol XDR = symbol("xdr");
 
+	public static final Symbol CASA = symbol("casa");
+	public static final Symbol CASD = symbol("casd");
+	public static final Symbol VCAR = symbol("vcar");
+	public static final Symbol VCDR = symbol("vcdr");
+
+	public static final Symbol CHAN = symbol("chan");
+	public static final Symbol CHPUT = symbol("chput");
+	public static final Symbol CHTAKE = symbol("chtake");
+	public static final Symbol CHPOLL = symbol("chpoll");
+	public static final Symbol CHCLS = symbol("chcls");
+
+	public static final Symbol PMAP = symbol("pmap");
+	public static final Symbol PREDUCE = symbol("preduce");
+	public static final Symbol PALL = symbol("pall");
+
 	public static final Symbol SYM = symbol("sym");
 
 	public static final Symbol NOM = symbol("nom");
@@ -57,11 +80,13 @@ public final class Symbol implements Expression {
 	public static final Symbol COIN = symbol("coin");
 
 	public static final Symbol SYS = symbol("sys");
+	public static final Symbol OPS = symbol("ops");
 
 
 	public static final Symbol CLO = symbol("clo"); // closure
 	public static final Symbol MAC = symbol("mac"); // macro expression
 	public static final Symbol NUM = symbol("num"); // numbers
+	public static final Symbol CONT = symbol("cont"); // continuations
 
 	public static final Symbol DYN = symbol("dyn");
 
@@ -74,26 +99,69 @@ public final class Symbol implements Expression {
 
 
 	public static Symbol symbol(String name) {
-		Symbol symbol;
-		do {
-			if (rq.poll() != null) {
-				while (rq.poll() != null) {
-					// empty intentionally.
-				}
-
-				for (Map.Entry<String, Reference<Symbol>> e : table.entrySet()) {
-					Reference<Symbol> val = e.getValue();
-					if (val.get() == null) table.remove(e.getKey(), val);
-				}
+		expunge();
+
+		Entry entry = table.get(name);
+		Symbol symbol = entry == null ? null : entry.get();
+		return symbol != null ? symbol : intern(name);
+	}
+
+	private static Symbol intern(String name) {
+		while (true) {
+			Entry entry = table.get(name);
+			Symbol symbol = entry == null ? null : entry.get();
+			if (symbol != null) {
+				return symbol;
+			}
+
+			// the entry of a collected symbol is replaced, the queue then finds it missing from the table.
+			symbol = new Symbol(name);
+			Entry fresh = new Entry(symbol, rq);
+			if (entry == null ? table.putIfAbsent(name, fresh) == null : table.replace(name, entry, fresh)) {
+				return symbol;
+			}
+		}
+	}
+
+	// removes the entries of some collected symbols.
+	private static void expunge() {
+		for (int i = 0; i < EXPUNGE_BATCH; i++) {
+			Reference<? extends Symbol> reference = rq.poll();
+			if (reference == null) {
+				return;
+			}
+			if (table.remove(((Entry) reference).name, reference)) {
+				expunged.increment();
 			}
-			symbol = table.computeIfAbsent(name, k -> new WeakReference<>(new Symbol(name), rq)).get();
-		} while (symbol == null);
-		return symbol;
+		}
+	}
+
+	// number of entries in the intern table, including the ones of collected symbols not yet removed.
+	public static int getTableSize() {
+		return table.size();
+	}
+
+	// number of entries of collected symbols removed from the intern table.
+	public static long getExpungedCount() {
+		return expunged.sum();
+	}
+
+	private static final class Entry extends WeakReference<Symbol> {
+		final String name;
+
+		Entry(Symbol symbol, ReferenceQueue<Symbol> queue) {
+			super(symbol, queue);
+			this.name = symbol.name;
+		}
 	}
 
 	public final String name;
+	private final int hash;
 
-	private Symbol(String name) {this.name = name;}
+	private Symbol(String name) {
+		this.name = name;
+		this.hash = name.hashCode();
+	}
 
 	public String toString() {
 		return name;
@@ -111,6 +179,6 @@ public final class Symbol implements Expression {
 
 	@Override
 	public int hashCode() {
-		return Objects.hash(name);
+		return hash;
 	}
 }
@@ -0,0 +1,170 @@
+package io.github.erdos.carillon.objects;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import static io.github.erdos.carillon.objects.Symbol.NIL;
+
+/**
+ * String backed by a char array. It is a list of characters like any other Bel string, the pairs of the tail are made
+ * when the cdr is first read.
+ *
+ * All the pairs of a string share the array. Once any of them is changed, the array is no longer used for printing
+ * and comparison.
+ */
+public final class Text extends Pair {
+
+	private static final class Chars {
+		final char[] chars;
+		volatile boolean mutated;
+
+		Chars(char[] chars) {
+			this.chars = chars;
+		}
+	}
+
+	private final Chars shared;
+	private final int offset;
+	private volatile boolean expanded;
+
+	private Text(Chars shared, int offset) {
+		super(Character.character(java.lang.Character.codePointAt(shared.chars, offset)));
+		this.shared = shared;
+		this.offset = offset;
+	}
+
+	// list of the characters or nil for the empty string.
+	public static Expression text(String s) {
+		return s.isEmpty() ? NIL : new Text(new Chars(s.toCharArray()), 0);
+	}
+
+	// true when none of the pairs of the string was changed so it still matches the array.
+	public boolean isIntact() {
+		return !shared.mutated;
+	}
+
+	// true when the pairs of the tail were made.
+	public boolean isExpanded() {
+		return expanded;
+	}
+
+	// contents of the string from this pair, only valid while it is intact.
+	public String getString() {
+		return new String(shared.chars, offset, shared.chars.length - offset);
+	}
+
+	@Override
+	public Expression cdr() {
+		if (!expanded) {
+			expand();
+		}
+		return super.cdr();
+	}
+
+	private synchronized void expand() {
+		if (!expanded) {
+			// characters outside the basic multilingual plane take two chars.
+			int next = offset + java.lang.Character.charCount(((Character) car()).getCodePoint());
+			super.setCdr(next < shared.chars.length ? new Text(shared, next) : NIL);
+			expanded = true;
+		}
+	}
+
+	@Override
+	public void setCar(Expression e) {
+		shared.mutated = true;
+		super.setCar(e);
+	}
+
+	@Override
+	public synchronized void setCdr(Expression e) {
+		shared.mutated = true;
+		expanded = true;
+		super.setCdr(e);
+	}
+
+	@Override
+	public boolean compareAndSetCar(Expression expected, Expression e) {
+		// marked first so that nobody sees the new value with the old array.
+		shared.mutated = true;
+		return super.compareAndSetCar(expected, e);
+	}
+
+	@Override
+	public boolean compareAndSetCdr(Expression expected, Expression e) {
+		shared.mutated = true;
+		return super.compareAndSetCdr(expected, e);
+	}
+
+	@Override
+	public boolean isString() {
+		return isIntact() || super.isString();
+	}
+
+	@Override
+	Boolean fastEquals(Pair o) {
+		if (o instanceof Text && isIntact() && ((Text) o).isIntact()) {
+			Text t = (Text) o;
+			int length = shared.chars.length - offset;
+			if (length != t.shared.chars.length - t.offset) {
+				return false;
+			}
+			for (int i = 0; i < length; i++) {
+				if (shared.chars[offset + i] != t.shared.chars[t.offset + i]) {
+					return false;
+				}
+			}
+			return true;
+		} else if (isIntact()) {
+			return isList(o);
+		} else {
+			return null;
+		}
+	}
+
+	// true when the list has the characters of the string, none of the lazy pairs are made.
+	private boolean isList(Expression e) {
+		char[] chars = shared.chars;
+		for (int i = offset; i < chars.length; ) {
+			int codePoint = java.lang.Character.codePointAt(chars, i);
+			if (!(e instanceof Pair) || !Character.character(codePoint).equals(((Pair) e).car())) {
+				return false;
+			}
+			e = ((Pair) e).cdr();
+			i += java.lang.Character.charCount(codePoint);
+		}
+		return e == NIL;
+	}
+
+	// hash of the characters, the same as the hash of the list.
+	@Override
+	boolean hashStructure(Hash hash) {
+		if (!isIntact()) {
+			return false;
+		}
+		char[] chars = shared.chars;
+		for (int i = offset; i < chars.length; ) {
+			int codePoint = java.lang.Character.codePointAt(chars, i);
+			if (!hash.cell(Character.character(codePoint))) {
+				return true;
+			}
+			i += java.lang.Character.charCount(codePoint);
+		}
+		hash.end(NIL);
+		return true;
+	}
+
+	// writes the characters of an intact string, quotes and backslashes escaped.
+	void writeString(Writer writer) throws IOException {
+		char[] chars = shared.chars;
+		int from = offset;
+		for (int i = offset; i < chars.length; i++) {
+			if (chars[i] == '"' || chars[i] == '\\') {
+				writer.write(chars, from, i - from);
+				writer.write('\\');
+				from = i;
+			}
+		}
+		writer.write(chars, from, chars.length - from);
+	}
+}
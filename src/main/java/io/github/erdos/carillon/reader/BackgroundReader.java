@@ -0,0 +1,195 @@
+package io.github.erdos.carillon.reader;
+
+import io.github.erdos.carillon.objects.Expression;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads the forms of a file on a thread of its own into a bounded queue, so reading overlaps with evaluating the forms
+ * read before. Reading starts when the instance is made, files can be started ahead of the time they are needed.
+ *
+ * When a form can not be read, the forms before it are still given out and the error is thrown in its place.
+ *
+ * The forms of .bel sources are also written to a fasl cache next to the file, see Fasl. While the file does not
+ * change, the forms are loaded from the cache instead of being read again. A cache that can not be read is replaced
+ * by reading the file again. Other files, like data, are only read. Forms read from the file are given out right away, the hash of
+ * the cache is computed on the way.
+ */
+public final class BackgroundReader implements Closeable {
+
+	private static final int CAPACITY = 1024;
+
+	private static final String SOURCE_SUFFIX = ".bel";
+
+	// put after the last form.
+	private static final Object END = new Object();
+
+	private final Path path;
+	private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(CAPACITY);
+	private final Thread thread;
+
+	// forms given out so far.
+	private long count;
+	private boolean done;
+
+	private BackgroundReader(Path path) {
+		this.path = path;
+		this.thread = new Thread(this::run, "reader " + path.getFileName());
+		this.thread.setDaemon(true);
+	}
+
+	public static BackgroundReader start(Path path) {
+		BackgroundReader reader = new BackgroundReader(path);
+		reader.thread.start();
+		return reader;
+	}
+
+	// next form of the file or null after the last one.
+	public Expression next() throws IOException {
+		if (done) {
+			return null;
+		}
+
+		Object o;
+		try {
+			o = queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading " + path);
+		}
+
+		if (o instanceof Expression) {
+			count++;
+			return (Expression) o;
+		}
+
+		done = true;
+		if (o == END) {
+			return null;
+		}
+
+		Failure failure = (Failure) o;
+		if (failure.opening) {
+			throw (IOException) failure.error;
+		}
+
+		Throwable error = failure.error instanceof UncheckedIOException ? failure.error.getCause() : failure.error;
+		throw new IOException("Could not read form " + (count + 1) + " of " + path + ": " + error.getMessage(), error);
+	}
+
+	// stops reading, the forms not taken yet are dropped.
+	@Override
+	public void close() {
+		done = true;
+		thread.interrupt();
+		queue.clear();
+	}
+
+	private void run() {
+		try {
+			boolean source = path.getFileName().toString().endsWith(SOURCE_SUFFIX);
+			Fasl.Input cached = null;
+			if (source) {
+				try {
+					cached = Fasl.Input.open(path);
+				} catch (IOException e) {
+					queue.put(new Failure(e, true));
+					return;
+				}
+			}
+
+			int given = 0;
+			if (cached != null) {
+				try (Fasl.Input in = cached) {
+					for (Expression e; (e = in.next()) != null; given++) {
+						queue.put(e);
+					}
+					queue.put(END);
+					return;
+				} catch (IOException | RuntimeException e) {
+					// broken cache, the forms after the ones given out are read from the file.
+				}
+			}
+			read(source, given);
+		} catch (InterruptedException e) {
+			// closed.
+		}
+	}
+
+	// reads the file and writes the cache of a source on the way. Skipped forms are only written to the cache.
+	private void read(boolean source, int skip) throws InterruptedException {
+		MappedForms forms;
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			forms = MappedForms.open(path);
+		} catch (IOException e) {
+			queue.put(new Failure(e, true));
+			return;
+		}
+
+		MessageDigest digest = source ? Fasl.digest() : null;
+		try (MappedForms f = forms; Fasl.Output cache = source ? Fasl.create(path, attributes) : null) {
+			Fasl.Output out = cache;
+			Iterator<Expression> iterator = source ? f.iterator(digest) : f.iterator();
+			for (int i = 0; iterator.hasNext(); i++) {
+				Expression e = iterator.next();
+				// before the form is given out, evaluating it may change it.
+				out = write(out, e);
+				if (i >= skip) {
+					queue.put(e);
+				}
+			}
+			if (source) {
+				commit(out, digest.digest());
+			}
+			queue.put(END);
+		} catch (IOException | RuntimeException e) {
+			queue.put(new Failure(e, false));
+		}
+	}
+
+	// a cache that can not be written is dropped, reading goes on without it.
+	private static Fasl.Output write(Fasl.Output cache, Expression e) {
+		if (cache != null) {
+			try {
+				cache.write(e);
+			} catch (IOException ex) {
+				return null;
+			}
+		}
+		return cache;
+	}
+
+	private static void commit(Fasl.Output cache, byte[] hash) {
+		if (cache != null) {
+			try {
+				cache.commit(hash);
+			} catch (IOException e) {
+				// the next run reads the file again.
+			}
+		}
+	}
+
+	private static final class Failure {
+		final Throwable error;
+
+		// the file could not be opened, there is no form to point at.
+		final boolean opening;
+
+		Failure(Throwable error, boolean opening) {
+			this.error = error;
+			this.opening = opening;
+		}
+	}
+}
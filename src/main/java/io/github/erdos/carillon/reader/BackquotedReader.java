@@ -1,6 +1,7 @@
 package io.github.erdos.carillon.reader;
 
 import io.github.erdos.carillon.eval.RT;
+import io.github.erdos.carillon.objects.Channel;
 import io.github.erdos.carillon.objects.Character;
 import io.github.erdos.carillon.objects.Expression;
 import io.github.erdos.carillon.objects.ExpressionVisitor;
@@ -45,7 +46,7 @@ final class BackquotedReader {
 		}
 	}
 
-	private static Expression walk(Expression e) {
+	static Expression walk(Expression e) {
 		if (e == null) return null; // TODO: remove nul values!
 		return e.apply(new ExpressionVisitor<Expression>() {
 			@Override
@@ -81,6 +82,11 @@ final class BackquotedReader {
 			public Expression character(Character character) {
 				return character;
 			}
+
+			@Override
+			public Expression channel(Channel channel) {
+				return channel;
+			}
 		});
 	}
 }
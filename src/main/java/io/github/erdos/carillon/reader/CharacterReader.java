@@ -30,6 +30,16 @@ final class CharacterReader {
 			if (read == -1) {
 				throw new EOFException("EOF while reading character. There is a '\\' at the end of the file!");
 			} else {
+				int codePoint = read;
+				if (java.lang.Character.isHighSurrogate((char) read)) {
+					int low = pbr.read();
+					if (low != -1 && java.lang.Character.isLowSurrogate((char) low)) {
+						codePoint = java.lang.Character.toCodePoint((char) read, (char) low);
+					} else if (low != -1) {
+						pbr.unread(low);
+					}
+				}
+
 				String wordTail;
 				try {
 					wordTail = readUntilDelimiter(pbr);
@@ -38,9 +48,9 @@ final class CharacterReader {
 				}
 
 				if (wordTail == null) {
-					return Character.character((char) read);
+					return Character.character(codePoint);
 				} else {
-					final String word = ((char) read) + wordTail;
+					final String word = new String(java.lang.Character.toChars(codePoint)) + wordTail;
 					final Character result = charactersByName.get(word);
 					if (result == null) {
 						throw new IllegalArgumentException("Could not find character with name" + word);
@@ -0,0 +1,296 @@
+package io.github.erdos.carillon.reader;
+
+import io.github.erdos.carillon.objects.Character;
+import io.github.erdos.carillon.objects.Expression;
+import io.github.erdos.carillon.objects.Pair;
+import io.github.erdos.carillon.objects.Text;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static io.github.erdos.carillon.eval.RT.list;
+import static io.github.erdos.carillon.eval.RT.pair;
+import static io.github.erdos.carillon.eval.RT.quote;
+import static io.github.erdos.carillon.objects.Symbol.NIL;
+import static io.github.erdos.carillon.objects.Symbol.symbol;
+import static io.github.erdos.carillon.reader.BackquotedReader.UNQUOTE;
+import static io.github.erdos.carillon.reader.BackquotedReader.UNQUOTE_SLICING;
+import static io.github.erdos.carillon.reader.SymbolReader.identifierPart;
+import static io.github.erdos.carillon.reader.SymbolReader.identifierStart;
+import static java.lang.Character.isWhitespace;
+
+/**
+ * Reads the same expressions as Reader in a single pass over a buffer of characters. Every character is looked at
+ * once and lists are built from the front, so this is the one to use for loading files.
+ */
+public final class ExpressionScanner {
+
+	// null when all of the input is in the buffer.
+	private final java.io.Reader in;
+
+	private char[] buf;
+	private int pos, limit;
+
+	// pairs labelled with #n= in the top level expression being read.
+	private final Map<Integer, Pair> sharedPairs = new HashMap<>();
+
+	public ExpressionScanner(java.io.Reader in) {
+		this.in = in;
+		this.buf = new char[8192];
+	}
+
+	public ExpressionScanner(char[] chars, int offset, int length) {
+		this.in = null;
+		this.buf = chars;
+		this.pos = offset;
+		this.limit = offset + length;
+	}
+
+	public ExpressionScanner(String s) {
+		this(s.toCharArray(), 0, s.length());
+	}
+
+	// next top level expression or null at the end of the input.
+	public Expression next() throws IOException {
+		if (!skipBlank()) {
+			return null;
+		}
+		sharedPairs.clear();
+		return expression();
+	}
+
+	private Expression nextExpression() throws IOException {
+		if (!skipBlank()) {
+			throw new EOFException("End of input while reading expression!");
+		}
+		return expression();
+	}
+
+	// reads the expression starting at pos.
+	private Expression expression() throws IOException {
+		char c = buf[pos];
+		switch (c) {
+			case '\'':
+				pos++;
+				return quote(nextExpression());
+			case '"':
+				pos++;
+				return quote(Text.text(string()));
+			case '(':
+				pos++;
+				return readList();
+			case '[':
+				pos++;
+				return fnAbbreviation();
+			case '\\':
+				pos++;
+				return character();
+			case '`':
+				pos++;
+				return BackquotedReader.walk(nextExpression());
+			case ',':
+				pos++;
+				boolean spliced = peek() == '@';
+				if (spliced) {
+					pos++;
+				}
+				return pair(spliced ? UNQUOTE_SLICING : UNQUOTE, nextExpression());
+			default:
+				if (!identifierStart(c)) {
+					throw new IllegalStateException("Unexpected character: " + c);
+				}
+				String token = token();
+				if (SymbolReader.isLabel(token)) {
+					return Reader.readLabelled(token, sharedPairs, this::nextExpression);
+				} else {
+					return SymbolReader.split(token);
+				}
+		}
+	}
+
+	private Expression readList() throws IOException {
+		if (!skipBlank()) {
+			throw new EOFException("End of input while reading list!");
+		} else if (buf[pos] == ')') {
+			pos++;
+			return NIL;
+		}
+
+		Pair head = new Pair(expression(), NIL);
+		Pair last = head;
+		while (true) {
+			if (!skipBlank()) {
+				throw new EOFException("End of input while reading list!");
+			}
+
+			char c = buf[pos];
+			if (c == ')') {
+				pos++;
+				return head;
+			} else if (c == '.') {
+				pos++;
+				last.setCdr(nextExpression());
+				if (!skipBlank() || buf[pos] != ')') {
+					throw new IllegalStateException("Expecting ) parentheses!");
+				}
+				pos++;
+				return head;
+			} else {
+				Pair p = new Pair(expression(), NIL);
+				last.setCdr(p);
+				last = p;
+			}
+		}
+	}
+
+	// [f _ x] is (fn (_) (f _ x)).
+	private Expression fnAbbreviation() throws IOException {
+		Expression f = nextExpression();
+		Expression underscore = nextExpression();
+
+		Pair head = null, last = null;
+		while (true) {
+			if (!skipBlank()) {
+				throw new EOFException("End of input while reading fn abbreviation!");
+			} else if (buf[pos] == ']') {
+				pos++;
+				break;
+			}
+
+			Pair p = new Pair(expression(), NIL);
+			if (head == null) {
+				head = p;
+			} else {
+				last.setCdr(p);
+			}
+			last = p;
+		}
+
+		return list(symbol("fn"), list(symbol("_")), pair(f, pair(underscore, head == null ? NIL : head)));
+	}
+
+	private Character character() throws IOException {
+		int c = read();
+		if (c == -1) {
+			throw new EOFException("EOF while reading character. There is a '\\' at the end of the file!");
+		}
+
+		int codePoint = c;
+		if (java.lang.Character.isHighSurrogate((char) c)) {
+			int low = peek();
+			if (low != -1 && java.lang.Character.isLowSurrogate((char) low)) {
+				pos++;
+				codePoint = java.lang.Character.toCodePoint((char) c, (char) low);
+			}
+		}
+
+		int next = peek();
+		if (next == -1 || !identifierStart((char) next)) {
+			return Character.character(codePoint);
+		}
+
+		String word = new String(java.lang.Character.toChars(codePoint)) + token();
+		Character result = CharacterReader.charactersByName.get(word);
+		if (result == null) {
+			throw new IllegalArgumentException("Could not find character with name " + word);
+		}
+		return result;
+	}
+
+	// contents of a string after the opening quote. Runs without escapes are copied from the buffer at once.
+	private String string() throws IOException {
+		StringBuilder escaped = null;
+		int length = 0;
+		while (true) {
+			if (pos == limit && !refill(pos - length)) {
+				throw new EOFException("End of input while reading string!");
+			}
+
+			char c = buf[pos++];
+			if (c == '"') {
+				break;
+			} else if (c == '\\') {
+				if (escaped == null) {
+					escaped = new StringBuilder();
+				}
+				escaped.append(buf, pos - 1 - length, length);
+				int e = read();
+				if (e == -1) {
+					throw new EOFException("End of input while reading string!");
+				}
+				escaped.append((char) e);
+				length = 0;
+			} else {
+				length++;
+			}
+		}
+
+		if (escaped == null) {
+			return new String(buf, pos - 1 - length, length);
+		} else {
+			return escaped.append(buf, pos - 1 - length, length).toString();
+		}
+	}
+
+	private String token() throws IOException {
+		int length = 0;
+		while ((pos < limit || refill(pos - length)) && identifierPart(buf[pos])) {
+			pos++;
+			length++;
+		}
+		return new String(buf, pos - length, length);
+	}
+
+	// skips whitespace and comments, false at the end of the input.
+	private boolean skipBlank() throws IOException {
+		while (pos < limit || refill(pos)) {
+			char c = buf[pos];
+			if (c == ';') {
+				int i;
+				while ((i = read()) != -1 && i != '\n') ;
+			} else if (isWhitespace(c)) {
+				pos++;
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int peek() throws IOException {
+		return pos < limit || refill(pos) ? buf[pos] : -1;
+	}
+
+	private int read() throws IOException {
+		return pos < limit || refill(pos) ? buf[pos++] : -1;
+	}
+
+	/**
+	 * Reads more input after the characters from keep, which are moved to the front of the buffer first. False when
+	 * there is nothing more to read.
+	 */
+	private boolean refill(int keep) throws IOException {
+		if (in == null) {
+			return false;
+		}
+
+		int kept = limit - keep;
+		if (keep > 0) {
+			System.arraycopy(buf, keep, buf, 0, kept);
+		} else if (kept == buf.length) {
+			buf = Arrays.copyOf(buf, buf.length * 2);
+		}
+		pos -= keep;
+		limit = kept;
+
+		int n = in.read(buf, limit, buf.length - limit);
+		if (n <= 0) {
+			return false;
+		}
+		limit += n;
+		return true;
+	}
+}
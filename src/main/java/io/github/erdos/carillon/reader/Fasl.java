@@ -0,0 +1,457 @@
+package io.github.erdos.carillon.reader;
+
+import io.github.erdos.carillon.objects.Character;
+import io.github.erdos.carillon.objects.Expression;
+import io.github.erdos.carillon.objects.Number;
+import io.github.erdos.carillon.objects.Pair;
+import io.github.erdos.carillon.objects.Symbol;
+import io.github.erdos.carillon.objects.Text;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static io.github.erdos.carillon.objects.Symbol.NIL;
+
+/**
+ * Binary form of the expressions read from a source file, so the file does not have to be read again.
+ *
+ * The file starts with the size, the modification time and the SHA-256 hash of the source. While the size and the time
+ * stay the same the cache is used without reading the source, otherwise only when the hash still matches. Symbol
+ * names are written once, later occurrences refer to them by number. Pairs reached more than once in a form are
+ * labelled like in the printer, so shared and cyclic structure comes back the same.
+ */
+public final class Fasl {
+
+	private static final int MAGIC = 0x42454C46;
+	private static final int VERSION = 2;
+
+	// offsets of the modification time and the hash in the header.
+	private static final int MODIFIED = 16;
+	private static final int HASH = 24;
+	private static final int HASH_LENGTH = 32;
+
+	// a source changed this soon after the time it had may be changed again without getting another time.
+	private static final long RACY_MILLIS = 2000;
+
+	private static final int END = 0;
+	private static final int NEW_SYMBOL = 1;
+	private static final int SYMBOL = 2;
+	private static final int CHARACTER = 3;
+	private static final int PAIR = 4;
+	private static final int LABEL = 5;
+	private static final int REFERENCE = 6;
+	private static final int TEXT = 7;
+	private static final int NUMBER = 8;
+
+	private Fasl() {}
+
+	// where the forms of a source file are cached.
+	public static Path cacheOf(Path source) {
+		return source.resolveSibling(source.getFileName() + ".fasl");
+	}
+
+	public static byte[] hash(Path source) throws IOException {
+		MessageDigest digest = digest();
+		try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+			long size = channel.size();
+			for (long from = 0; from < size; from += Integer.MAX_VALUE) {
+				digest.update(channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(Integer.MAX_VALUE, size - from)));
+			}
+		}
+		return digest.digest();
+	}
+
+	// for the hash of a source read in some other way.
+	public static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Output for the cache of a source. It goes to a temporary file that only replaces the cache on commit, so a cache
+	 * is never seen half written. Null when the cache can not be written, for example in a read only directory.
+	 *
+	 * The attributes are those of the source before it is read, the hash of what was read is only given on commit.
+	 */
+	public static Output create(Path source, BasicFileAttributes attributes) {
+		Path target = cacheOf(source);
+		Path file = null;
+		try {
+			file = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName().toString(), ".tmp");
+			return new Output(Files.newOutputStream(file), attributes, file, target);
+		} catch (IOException e) {
+			if (file != null) {
+				try {
+					Files.deleteIfExists(file);
+				} catch (IOException ex) {
+					// nothing else to do.
+				}
+			}
+			return null;
+		}
+	}
+
+	// writes forms one after the other.
+	public static final class Output implements Closeable {
+		private final DataOutputStream out;
+		private final Path file, target;
+		private final Map<Symbol, Integer> symbols = new HashMap<>();
+
+		// pairs reached more than once in the current form, mapped to their label or -1 before they are written.
+		private final Map<Pair, Integer> labels = new IdentityHashMap<>();
+		private int nextLabel;
+
+		private Output(OutputStream stream, BasicFileAttributes attributes, Path file, Path target) throws IOException {
+			this.out = new DataOutputStream(new BufferedOutputStream(stream));
+			this.file = file;
+			this.target = target;
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(attributes.size());
+			out.writeLong(attributes.lastModifiedTime().toMillis());
+			// filled in on commit.
+			out.write(new byte[HASH_LENGTH]);
+		}
+
+		public void write(Expression form) throws IOException {
+			labels.clear();
+			nextLabel = 0;
+			findShared(form);
+
+			Deque<Expression> stack = new ArrayDeque<>();
+			stack.push(form);
+			while (!stack.isEmpty()) {
+				Expression e = stack.pop();
+				if (e instanceof Symbol) {
+					symbol((Symbol) e);
+				} else if (e instanceof Character) {
+					out.write(CHARACTER);
+					writeInt(((Character) e).getCodePoint());
+				} else if (e instanceof Pair) {
+					Pair p = (Pair) e;
+					Integer label = labels.isEmpty() ? null : labels.get(p);
+					if (label != null && label >= 0) {
+						out.write(REFERENCE);
+						writeInt(label);
+						continue;
+					} else if (label != null) {
+						out.write(LABEL);
+						labels.put(p, nextLabel++);
+					}
+
+					if (isNumber(p)) {
+						number((Number) p);
+					} else if (isText(p)) {
+						out.write(TEXT);
+						writeString(((Text) p).getString());
+					} else {
+						out.write(PAIR);
+						stack.push(p.cdr());
+						stack.push(p.car());
+					}
+				} else {
+					throw new IllegalArgumentException("Can not write " + e);
+				}
+			}
+		}
+
+		private void findShared(Expression form) {
+			Set<Pair> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+			Deque<Expression> stack = new ArrayDeque<>();
+			stack.push(form);
+			while (!stack.isEmpty()) {
+				Expression e = stack.pop();
+				while (e instanceof Pair) {
+					Pair p = (Pair) e;
+					if (!seen.add(p)) {
+						labels.put(p, -1);
+						break;
+					} else if (isNumber(p) || isText(p)) {
+						break;
+					}
+					if (p.car() instanceof Pair) {
+						stack.push(p.car());
+					}
+					e = p.cdr();
+				}
+			}
+		}
+
+		private void symbol(Symbol symbol) throws IOException {
+			Integer id = symbols.get(symbol);
+			if (id == null) {
+				symbols.put(symbol, symbols.size());
+				out.write(NEW_SYMBOL);
+				writeString(symbol.name);
+			} else {
+				out.write(SYMBOL);
+				writeInt(id);
+			}
+		}
+
+		private void number(Number n) throws IOException {
+			out.write(NUMBER);
+			writeBigInteger(n.getRealNumerator());
+			writeBigInteger(n.getRealDenominator());
+			writeBigInteger(n.getImaginaryNumerator());
+			writeBigInteger(n.getImaginaryDenominator());
+		}
+
+		private void writeBigInteger(BigInteger i) throws IOException {
+			byte[] bytes = i.toByteArray();
+			writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+		// chars as variable length integers, one byte each for ASCII.
+		private void writeString(String s) throws IOException {
+			writeInt(s.length());
+			for (int i = 0; i < s.length(); i++) {
+				writeInt(s.charAt(i));
+			}
+		}
+
+		// seven bits at a time, the high bit tells that more bytes follow.
+		private void writeInt(int i) throws IOException {
+			while ((i & ~0x7F) != 0) {
+				out.write((i & 0x7F) | 0x80);
+				i >>>= 7;
+			}
+			out.write(i);
+		}
+
+		// finishes the file with the hash of the source and puts it in the place of the cache.
+		public void commit(byte[] hash) throws IOException {
+			out.write(END);
+			out.close();
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+				channel.write(ByteBuffer.wrap(hash), HASH);
+			}
+			try {
+				Files.move(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+
+		// drops what was written, the cache stays as it was.
+		@Override
+		public void close() throws IOException {
+			out.close();
+			Files.deleteIfExists(file);
+		}
+	}
+
+	public static final class Input implements Closeable {
+		private final DataInputStream in;
+		private final List<Symbol> symbols = new ArrayList<>();
+		private final List<Pair> labels = new ArrayList<>();
+		private boolean done;
+
+		// car of a pair that is still being read.
+		private static final Pair HOLE = new Pair(NIL, NIL);
+
+		private Input(DataInputStream in) {
+			this.in = in;
+		}
+
+		/**
+		 * Opens the cache of a source. Null when there is no cache or it was written for another version of the source.
+		 *
+		 * The source is only hashed when its size matches but its time does not, or when the time is too close to the
+		 * time of the cache to tell a later change apart. When the hash matches, the time is updated in the cache.
+		 */
+		public static Input open(Path source) throws IOException {
+			BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+			Path cache = cacheOf(source);
+			long written;
+			DataInputStream in;
+			try {
+				written = Files.getLastModifiedTime(cache).toMillis();
+				in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cache)));
+			} catch (NoSuchFileException | AccessDeniedException e) {
+				return null;
+			}
+
+			long modified = attributes.lastModifiedTime().toMillis();
+			byte[] hash = null;
+			try {
+				if (in.readInt() == MAGIC && in.readInt() == VERSION && in.readLong() == attributes.size()) {
+					long cachedModified = in.readLong();
+					hash = new byte[HASH_LENGTH];
+					in.readFully(hash);
+					if (cachedModified == modified && written - modified >= RACY_MILLIS) {
+						return new Input(in);
+					}
+				}
+			} catch (IOException e) {
+				// too short, not a cache.
+				hash = null;
+			}
+
+			boolean valid = false;
+			try {
+				valid = hash != null && Arrays.equals(hash, hash(source));
+			} finally {
+				if (!valid) {
+					in.close();
+				}
+			}
+			if (!valid) {
+				return null;
+			}
+			touch(cache, modified);
+			return new Input(in);
+		}
+
+		// the time of a source that did not change, writing it also moves on the time of the cache.
+		private static void touch(Path cache, long modified) {
+			try (FileChannel channel = FileChannel.open(cache, StandardOpenOption.WRITE)) {
+				ByteBuffer time = ByteBuffer.allocate(Long.BYTES).putLong(0, modified);
+				channel.write(time, MODIFIED);
+			} catch (IOException e) {
+				// the source is hashed again next time.
+			}
+		}
+
+		// next form or null after the last one.
+		public Expression next() throws IOException {
+			if (done) {
+				return null;
+			}
+
+			int tag = in.readUnsignedByte();
+			if (tag == END) {
+				done = true;
+				return null;
+			}
+
+			labels.clear();
+			Deque<Pair> open = new ArrayDeque<>();
+			Expression result = null;
+			while (true) {
+				boolean labelled = tag == LABEL;
+				if (labelled) {
+					tag = in.readUnsignedByte();
+				}
+
+				Expression value;
+				switch (tag) {
+					case NEW_SYMBOL:
+						value = Symbol.symbol(readString());
+						symbols.add((Symbol) value);
+						break;
+					case SYMBOL:
+						value = symbols.get(readInt());
+						break;
+					case CHARACTER:
+						value = Character.character(readInt());
+						break;
+					case REFERENCE:
+						value = labels.get(readInt());
+						break;
+					case TEXT:
+						value = Text.text(readString());
+						break;
+					case NUMBER:
+						value = Number.number(readBigInteger(), readBigInteger(), readBigInteger(), readBigInteger());
+						break;
+					case PAIR:
+						value = new Pair(HOLE, NIL);
+						break;
+					default:
+						throw new IOException("Unknown tag in fasl: " + tag);
+				}
+				if (labelled) {
+					labels.add((Pair) value);
+				}
+
+				// a cdr replaces its pair on the stack, so long lists do not make it grow.
+				if (open.isEmpty()) {
+					result = value;
+				} else if (open.peek().car() == HOLE) {
+					open.peek().setCar(value);
+				} else {
+					open.pop().setCdr(value);
+				}
+				if (tag == PAIR) {
+					open.push((Pair) value);
+				}
+
+				if (open.isEmpty()) {
+					return result;
+				}
+				tag = in.readUnsignedByte();
+			}
+		}
+
+		private BigInteger readBigInteger() throws IOException {
+			byte[] bytes = new byte[readInt()];
+			in.readFully(bytes);
+			return new BigInteger(bytes);
+		}
+
+		private String readString() throws IOException {
+			char[] chars = new char[readInt()];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = (char) readInt();
+			}
+			return new String(chars);
+		}
+
+		private int readInt() throws IOException {
+			int result = 0;
+			for (int shift = 0; ; shift += 7) {
+				int b = in.readUnsignedByte();
+				result |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return result;
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	private static boolean isText(Pair p) {
+		return p instanceof Text && ((Text) p).isIntact();
+	}
+
+	private static boolean isNumber(Pair p) {
+		return p instanceof Number && !((Number) p).isExpanded();
+	}
+}
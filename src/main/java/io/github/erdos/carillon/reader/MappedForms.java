@@ -0,0 +1,314 @@
+package io.github.erdos.carillon.reader;
+
+import io.github.erdos.carillon.objects.Expression;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static io.github.erdos.carillon.reader.SymbolReader.identifierStart;
+
+/**
+ * Top level forms of a UTF-8 file that is memory mapped a window at a time, so the file can be larger than the heap.
+ * Forms are read when they are asked for.
+ *
+ * The ends of forms are found on the bytes by counting parentheses and skipping strings, characters and comments.
+ * This is safe in UTF-8 because every byte of a multi-byte character is outside the ASCII range. The spliterator
+ * splits at these ends, so the parts can be read in parallel.
+ */
+public final class MappedForms implements Iterable<Expression>, Closeable {
+
+	private static final long WINDOW = 64L << 20;
+
+	// smaller parts are not split any further.
+	private static final long MIN_SPLIT = 64L << 10;
+
+	private final FileChannel channel;
+	private final long size;
+
+	private MappedForms(FileChannel channel) throws IOException {
+		this.channel = channel;
+		this.size = channel.size();
+	}
+
+	public static MappedForms open(Path path) throws IOException {
+		return new MappedForms(FileChannel.open(path, StandardOpenOption.READ));
+	}
+
+	@Override
+	public Iterator<Expression> iterator() {
+		return Spliterators.iterator(spliterator());
+	}
+
+	// like iterator(), the bytes read are also given to the digest. It has seen the whole file once hasNext() is false.
+	public Iterator<Expression> iterator(MessageDigest digest) {
+		Forms forms = new Forms(0, size);
+		forms.digest = digest;
+		return Spliterators.iterator(forms);
+	}
+
+	@Override
+	public Spliterator<Expression> spliterator() {
+		return new Forms(0, size);
+	}
+
+	public Stream<Expression> stream() {
+		return StreamSupport.stream(spliterator(), false);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	// forms starting in a range of the file. Every part has its own window because buffers are not thread safe.
+	private final class Forms implements Spliterator<Expression> {
+		private long pos;
+		private final long end;
+
+		private MappedByteBuffer window;
+		private long windowStart, windowEnd;
+
+		// read but not yet given out, the part of the file before pos can hold more than one form.
+		private final Deque<Expression> pending = new ArrayDeque<>();
+
+		// gets the bytes up to pos, null when nobody asked for them.
+		private MessageDigest digest;
+
+		Forms(long pos, long end) {
+			this.pos = pos;
+			this.end = end;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super Expression> action) {
+			while (pending.isEmpty()) {
+				long formEnd = skipForm(pos);
+				if (formEnd < 0) {
+					digest(pos, end);
+					pos = end;
+					return false;
+				}
+				parse(pos, formEnd);
+				digest(pos, formEnd);
+				pos = formEnd;
+			}
+			action.accept(pending.poll());
+			return true;
+		}
+
+		@Override
+		public Spliterator<Expression> trySplit() {
+			if (!pending.isEmpty() || end - pos < MIN_SPLIT) {
+				return null;
+			}
+
+			long middle = pos + (end - pos) / 2;
+			long p = pos;
+			while (p < middle) {
+				p = skipForm(p);
+				if (p < 0 || p >= end) {
+					return null;
+				}
+			}
+
+			Forms prefix = new Forms(pos, p);
+			pos = p;
+			return prefix;
+		}
+
+		@Override
+		public long estimateSize() {
+			return end - pos;
+		}
+
+		@Override
+		public int characteristics() {
+			return ORDERED | NONNULL | IMMUTABLE;
+		}
+
+		private void parse(long from, long to) {
+			if (to - from > Integer.MAX_VALUE) {
+				throw new IllegalStateException("Form is too long at " + from);
+			} else if (from < windowStart || to > windowEnd) {
+				map(from, Math.max(WINDOW, to - from));
+			}
+
+			ByteBuffer bytes = window.duplicate();
+			((Buffer) bytes).position((int) (from - windowStart));
+			((Buffer) bytes).limit((int) (to - windowStart));
+			CharBuffer chars = StandardCharsets.UTF_8.decode(bytes);
+
+			ExpressionScanner scanner = new ExpressionScanner(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining());
+			try {
+				for (Expression e; (e = scanner.next()) != null; ) {
+					pending.add(e);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private void digest(long from, long to) {
+			if (digest == null) {
+				return;
+			}
+			for (long p = from; p < to; ) {
+				if (p < windowStart || p >= windowEnd) {
+					map(p, WINDOW);
+				}
+				ByteBuffer bytes = window.duplicate();
+				((Buffer) bytes).position((int) (p - windowStart));
+				((Buffer) bytes).limit((int) (Math.min(to, windowEnd) - windowStart));
+				digest.update(bytes);
+				p = Math.min(to, windowEnd);
+			}
+		}
+
+		// end of the first form after p, or -1 when there are only blanks until the end of the range.
+		private long skipForm(long p) {
+			while (p < end) {
+				byte b = at(p);
+				if (b == ';') {
+					p = skipComment(p);
+				} else if (isBlank(b)) {
+					p++;
+				} else {
+					return skipDatum(p);
+				}
+			}
+			return -1;
+		}
+
+		private long skipDatum(long p) {
+			int depth = 0;
+			while (p < size) {
+				byte b = at(p);
+				if (b == '(' || b == '[') {
+					depth++;
+					p++;
+				} else if (b == ')' || b == ']') {
+					p++;
+					if (--depth <= 0) {
+						return p;
+					}
+				} else if (b == '"') {
+					p = skipString(p + 1);
+					if (depth == 0) {
+						return p;
+					}
+				} else if (b == '\\') {
+					p = skipToken(skipChar(p + 1));
+					if (depth == 0) {
+						return p;
+					}
+				} else if (b == ';') {
+					p = skipComment(p);
+				} else if (isBlank(b) || !isToken(b)) {
+					// quotes, commas and @ are followed by the rest of the form.
+					p++;
+				} else {
+					long start = p;
+					p = skipToken(p);
+					if (depth == 0 && !isLabelDefinition(start, p)) {
+						return p;
+					}
+				}
+			}
+			return size;
+		}
+
+		private long skipString(long p) {
+			while (p < size) {
+				byte b = at(p++);
+				if (b == '"') {
+					return p;
+				} else if (b == '\\') {
+					p++;
+				}
+			}
+			return size;
+		}
+
+		// one UTF-8 encoded character.
+		private long skipChar(long p) {
+			if (p >= size) {
+				return size;
+			}
+			int lead = at(p) & 0xFF;
+			int length = lead < 0xC0 ? 1 : lead < 0xE0 ? 2 : lead < 0xF0 ? 3 : 4;
+			return Math.min(size, p + length);
+		}
+
+		private long skipToken(long p) {
+			while (p < size && isToken(at(p))) {
+				p++;
+			}
+			return p;
+		}
+
+		private long skipComment(long p) {
+			while (p < size && at(p) != '\n') {
+				p++;
+			}
+			return p;
+		}
+
+		// #n= is followed by the labelled form.
+		private boolean isLabelDefinition(long from, long to) {
+			if (to - from < 3 || at(from) != '#' || at(to - 1) != '=') {
+				return false;
+			}
+			for (long i = from + 1; i < to - 1; i++) {
+				if (at(i) < '0' || at(i) > '9') {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private byte at(long p) {
+			if (p < windowStart || p >= windowEnd) {
+				map(p, WINDOW);
+			}
+			return window.get((int) (p - windowStart));
+		}
+
+		private void map(long from, long length) {
+			try {
+				long mapped = Math.min(length, size - from);
+				window = channel.map(FileChannel.MapMode.READ_ONLY, from, mapped);
+				windowStart = from;
+				windowEnd = from + mapped;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	private static boolean isBlank(byte b) {
+		return b >= 0 && Character.isWhitespace((char) b);
+	}
+
+	// bytes of multi-byte characters belong to tokens too.
+	private static boolean isToken(byte b) {
+		return b < 0 || identifierStart((char) b);
+	}
+}
@@ -4,6 +4,7 @@ import io.github.erdos.carillon.eval.RT;
 import io.github.erdos.carillon.objects.Character;
 import io.github.erdos.carillon.objects.Expression;
 import io.github.erdos.carillon.objects.Pair;
+import io.github.erdos.carillon.objects.Text;
 
 import java.io.EOFException;
 import java.io.IOException;
@@ -25,9 +26,25 @@ import static java.lang.Character.isWhitespace;
 
 public final class Reader {
 
+	// state of the top level expression being read on this thread.
+	private static final ThreadLocal<Reader> current = new ThreadLocal<>();
+
+	// pairs labelled with #n= so far, see Printer.
 	private final Map<Integer, Pair> sharedPairs = new HashMap<>();
 
 	public static Expression read(PushbackReader pbr) throws IOException {
+		if (current.get() != null) {
+			return readExpression(pbr);
+		}
+		current.set(new Reader());
+		try {
+			return readExpression(pbr);
+		} finally {
+			current.remove();
+		}
+	}
+
+	private static Expression readExpression(PushbackReader pbr) throws IOException {
 		if (!canReadExpr(pbr)) {
 			return null;
 		}
@@ -75,6 +92,41 @@ public final class Reader {
 		return null;
 	}
 
+	static Expression readLabelled(String label, PushbackReader pbr) throws IOException {
+		return readLabelled(label, current.get().sharedPairs, () -> read(pbr));
+	}
+
+	// reads the next expression of the input.
+	interface Next {
+		Expression read() throws IOException;
+	}
+
+	/**
+	 * Reads the expression after a #n= label or returns the pair labelled earlier for #n#. A labelled pair is made
+	 * before its contents are read so references from inside it can point to it.
+	 */
+	static Expression readLabelled(String label, Map<Integer, Pair> sharedPairs, Next next) throws IOException {
+		Integer n = Integer.valueOf(label.substring(1, label.length() - 1));
+
+		if (label.endsWith("#")) {
+			Pair p = sharedPairs.get(n);
+			if (p == null) {
+				throw new IllegalStateException("Undefined label: " + label);
+			}
+			return p;
+		}
+
+		Pair placeholder = new Pair(NIL, NIL);
+		sharedPairs.put(n, placeholder);
+		Expression e = next.read();
+		if (!(e instanceof Pair)) {
+			throw new IllegalStateException("Only pairs can be labelled: " + label);
+		}
+		placeholder.setCar(((Pair) e).car());
+		placeholder.setCdr(((Pair) e).cdr());
+		return placeholder;
+	}
+
 	private static Expression readString(PushbackReader pbr) throws IOException {
 		if (expectCharacter(pbr, '"')) {
 
@@ -95,7 +147,7 @@ public final class Reader {
 				}
 			}
 
-			return quote(content.toString().chars().mapToObj(x-> Character.character((char) x)).collect(Pair.collectPairOrNil()));
+			return quote(Text.text(content.toString()));
 		} else {
 			return null;
 		}
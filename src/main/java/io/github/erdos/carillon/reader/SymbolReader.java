@@ -2,19 +2,19 @@ package io.github.erdos.carillon.reader;
 
 import io.github.erdos.carillon.eval.RT;
 import io.github.erdos.carillon.objects.Expression;
+import io.github.erdos.carillon.objects.Number;
 import io.github.erdos.carillon.objects.Pair;
 import io.github.erdos.carillon.objects.Symbol;
 
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.PushbackReader;
-import java.util.regex.Pattern;
-import java.util.stream.IntStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
 
 import static io.github.erdos.carillon.eval.RT.list;
 import static io.github.erdos.carillon.eval.RT.pair;
-import static io.github.erdos.carillon.objects.Pair.collectPairOrNil;
-import static io.github.erdos.carillon.objects.Symbol.LIT;
 import static io.github.erdos.carillon.objects.Symbol.NIL;
 import static io.github.erdos.carillon.objects.Symbol.T;
 import static io.github.erdos.carillon.objects.Symbol.symbol;
@@ -27,20 +27,20 @@ final class SymbolReader {
 		String read = readUntilDelimiter(pbr);
 		if (read == null) {
 			return null;
+		} else if (isLabel(read)) {
+			return Reader.readLabelled(read, pbr);
 		} else {
 			return split(read);
 		}
 	}
 
-	private static Pair toInteger(String read) {
-		int number = Integer.parseInt(read);
-		Symbol sign = number < 0 ? symbol("-") : symbol("+");
-
-		Expression nth = IntStream.range(0, Math.abs(number)).mapToObj(x -> T).collect(collectPairOrNil());
-
-		Pair realPart = list(sign, nth, list(T));
-		Pair complexPart = list(symbol("+"), NIL, list(T));
-		return list(LIT, symbol("num"), realPart, complexPart);
+	private static Pair toNumber(String read) {
+		int slash = read.indexOf('/');
+		if (slash < 0) {
+			return Number.number(new BigInteger(read));
+		} else {
+			return Number.number(new BigInteger(read.substring(0, slash)), new BigInteger(read.substring(slash + 1)));
+		}
 	}
 
 	static String readUntilDelimiter(PushbackReader pbr) throws IOException {
@@ -68,60 +68,88 @@ final class SymbolReader {
 		}
 	}
 
-	private static boolean intrac(char c) {
-		return c == '.' || c == '!';
-	}
-
-	private static boolean signc(char c) {
-		return c == '+' || c == '-';
-	}
-
-	private static Expression split(String cs) {
-		if (cs.contains("|")) {
-			String[] parts = cs.split("\\|");
-
-			Expression c = intrasymbolColons(parts[0]);
-			Expression e = split(parts[1]);
-			return list(T, c, e);
-		} else if (cs.contains(".") || cs.contains("!")) {
-			String[] parts = cs.split("(\\.|\\!)", 2);
-
-			Expression head = intrasymbolColons(parts[0]);
+	// symbol, number or intrasymbol form of a token.
+	static Expression split(String cs) {
+		int bar = cs.indexOf('|');
+		if (bar >= 0) {
+			// only the part up to the next bar is used, like String.split would do.
+			int end = cs.indexOf('|', bar + 1);
+			String type = cs.substring(bar + 1, end < 0 ? cs.length() : end);
+			if (type.isEmpty() && !hasNonBar(cs, bar + 1)) {
+				throw new IllegalArgumentException("Missing type after | in " + cs);
+			}
+			return list(T, intrasymbolColons(cs.substring(0, bar)), split(type));
+		}
 
+		int sep = indexOfIntrac(cs, 0);
+		if (sep >= 0) {
+			String rest = cs.substring(sep + 1);
 
+			Expression head = intrasymbolColons(cs.substring(0, sep));
 
 			Expression tail;
-			if (parts[1].contains(".") || parts[1].contains("!")) {
-				tail = split(parts[1]);
+			if (indexOfIntrac(rest, 0) >= 0) {
+				tail = split(rest);
 			} else {
-				tail = list(intrasymbolColons(parts[1]));
+				tail = list(intrasymbolColons(rest));
 			}
 
-			if (cs.indexOf("!") != -1 && cs.indexOf("!") <= parts[0].length()) {
-				tail = pair( RT.quote(((Pair)tail).car()), ((Pair)tail).cdr());
+			if (cs.charAt(sep) == '!') {
+				tail = pair(RT.quote(((Pair) tail).car()), ((Pair) tail).cdr());
 			}
 
-
 			return pair(head, tail);
-
 		} else {
 			return intrasymbolColons(cs);
 		}
 	}
 
-	private static Expression intrasymbolColons(String s) {
-		if (s.contains(":")) {
-			String[] parts = s.split("\\:");
+	private static int indexOfIntrac(String s, int from) {
+		for (int i = from; i < s.length(); i++) {
+			if (s.charAt(i) == '.' || s.charAt(i) == '!') {
+				return i;
+			}
+		}
+		return -1;
+	}
 
-			Expression tail = NIL;
-			for (int i = parts.length - 1; i >= 0; i--) {
-				tail = pair(prependedTildes(parts[i]), tail);
+	private static boolean hasNonBar(String s, int from) {
+		for (int i = from; i < s.length(); i++) {
+			if (s.charAt(i) != '|') {
+				return true;
 			}
-			return RT.pair(symbol("compose"), tail);
+		}
+		return false;
+	}
 
-		} else {
+	private static Expression intrasymbolColons(String s) {
+		int colon = s.indexOf(':');
+		if (colon < 0) {
 			return prependedTildes(s);
 		}
+
+		// empty parts at the end are dropped.
+		int end = s.length();
+		while (end > 0 && s.charAt(end - 1) == ':') {
+			end--;
+		}
+
+		List<Expression> parts = new ArrayList<>();
+		int from = 0;
+		while (from < end) {
+			int to = s.indexOf(':', from);
+			if (to < 0) {
+				to = end;
+			}
+			parts.add(prependedTildes(s.substring(from, to)));
+			from = to + 1;
+		}
+
+		Expression tail = NIL;
+		for (int i = parts.size() - 1; i >= 0; i--) {
+			tail = pair(parts.get(i), tail);
+		}
+		return RT.pair(symbol("compose"), tail);
 	}
 
 	private static Expression prependedTildes(String s) {
@@ -133,13 +161,56 @@ final class SymbolReader {
 	}
 
 	private static Expression handle(String read) {
-		if (Pattern.matches("[\\+\\-]?\\d+", read)) {
-			return toInteger(read);
+		if (isNumber(read)) {
+			return toNumber(read);
 		} else {
 			return symbol(read);
 		}
 	}
 
+	// an optional sign, digits and an optional /denominator that does not start with 0.
+	private static boolean isNumber(String s) {
+		int i = 0, n = s.length();
+		if (i < n && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+			i++;
+		}
+		int digits = i;
+		while (i < n && isDigit(s.charAt(i))) {
+			i++;
+		}
+		if (i == digits) {
+			return false;
+		} else if (i == n) {
+			return true;
+		} else if (s.charAt(i) != '/' || i + 1 == n || s.charAt(i + 1) == '0') {
+			return false;
+		}
+		for (i++; i < n; i++) {
+			if (!isDigit(s.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	// #n= or #n# written by the printer for shared pairs.
+	static boolean isLabel(String read) {
+		int last = read.length() - 1;
+		if (last < 2 || read.charAt(0) != '#' || (read.charAt(last) != '=' && read.charAt(last) != '#')) {
+			return false;
+		}
+		for (int i = 1; i < last; i++) {
+			if (!java.lang.Character.isDigit(read.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	static boolean identifierStart(char read) {
 		return ! (java.lang.Character.isWhitespace(read) || read == '"' || read == '`' || read == '\'' || read == '@' || read == ',' || read == '(' || read == '[' || read == ')' || read == ']' || read == ';' || read == '\\');
 	}
@@ -0,0 +1,106 @@
+package io.github.erdos.carillon.eval;
+
+import io.github.erdos.carillon.objects.Expression;
+import io.github.erdos.carillon.objects.Pair;
+import io.github.erdos.carillon.reader.Reader;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.StringReader;
+
+import static io.github.erdos.carillon.eval.RT.list;
+import static io.github.erdos.carillon.eval.RT.pair;
+import static io.github.erdos.carillon.objects.Symbol.NIL;
+import static io.github.erdos.carillon.objects.Symbol.symbol;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompilerTest {
+
+	private static int thresholdBefore;
+
+	@BeforeAll
+	static void enable() {
+		thresholdBefore = CompilerOptions.threshold;
+		CompilerOptions.threshold = 2;
+		RT.setCompilerEnabled(true);
+	}
+
+	@AfterAll
+	static void disable() {
+		RT.setCompilerEnabled(false);
+		CompilerOptions.threshold = thresholdBefore;
+	}
+
+	@Test
+	public void testCompilesSimpleBody() {
+		Node body = Analyzer.closureBody(read("(xs)"), read("(if xs (car (cdr xs)) (join 'a 'b))"), null).node;
+		assertTrue(Compiler.compile(body) instanceof CompiledNode);
+	}
+
+	@Test
+	public void testCompiledTailRecursion() {
+		eval("(def compiled-walk (xs n) (if xs (compiled-walk (cdr xs) (join 't n)) (car n)))");
+
+		Expression xs = NIL;
+		for (int i = 0; i < 1_000_000; i++) {
+			xs = pair(symbol("x"), xs);
+		}
+
+		for (int i = 0; i < 3; i++) {
+			assertEquals(symbol("t"), RT.eval(list(symbol("compiled-walk"), RT.quote(xs), RT.quote(list(symbol("t"))))));
+		}
+
+		Pair fn = (Pair) eval("compiled-walk");
+		assertTrue(Analyzer.closureBody(fn.cadddr(), fn.caddddr(), null).node instanceof CompiledNode);
+	}
+
+	@Test
+	public void testCompiledMacroCallSeesRedefinition() {
+		eval("(mac compiled-m (x) `(join ,x nil))");
+		eval("(def compiled-f (x) (compiled-m x))");
+
+		for (int i = 0; i < 5; i++) {
+			assertEquals(read("(a)"), eval("(compiled-f 'a)"));
+		}
+
+		eval("(mac compiled-m (x) `(join ,x (join ,x nil)))");
+		assertEquals(read("(a a)"), eval("(compiled-f 'a)"));
+	}
+
+	@Test
+	public void testWhereInCompiledClosure() {
+		eval("(def compiled-where (p) (where (cdr p)))");
+		Pair p = (Pair) read("(a b)");
+
+		for (int i = 0; i < 5; i++) {
+			assertEquals(list(p, symbol("d")), RT.eval(list(symbol("compiled-where"), RT.quote(p))));
+		}
+	}
+
+	@Test
+	public void testCompiledErrorsAreTheSame() {
+		eval("(def compiled-car (x) (car x))");
+
+		for (int i = 0; i < 5; i++) {
+			assertThrows(EvaluationException.class, () -> eval("(compiled-car 'a)"));
+		}
+		assertThrows(EvaluationException.UnboundSymbolException.class, () -> eval("((fn (x) undefined-symbol) 'a)"));
+	}
+
+	private static Expression eval(String s) {
+		return RT.eval(read(s));
+	}
+
+	private static Expression read(String s) {
+		try {
+			return Reader.read(new PushbackReader(new StringReader(s)));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
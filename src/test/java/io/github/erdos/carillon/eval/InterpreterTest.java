@@ -0,0 +1,302 @@
+package io.github.erdos.carillon.eval;
+
+import io.github.erdos.carillon.objects.Expression;
+import io.github.erdos.carillon.objects.Pair;
+import io.github.erdos.carillon.reader.ExpressionScanner;
+import io.github.erdos.carillon.reader.Reader;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.StringReader;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static io.github.erdos.carillon.objects.Symbol.symbol;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InterpreterTest {
+
+	@Test
+	public void testGlobalsAreIsolated() {
+		Interpreter a = new Interpreter();
+		Interpreter b = new Interpreter();
+
+		a.eval(read("(set isolated 'a)"));
+		b.eval(read("(set isolated 'b)"));
+
+		assertEquals(symbol("a"), a.eval(read("isolated")));
+		assertEquals(symbol("b"), b.eval(read("isolated")));
+		assertThrows(EvaluationException.UnboundSymbolException.class, () -> RT.eval(read("isolated")));
+	}
+
+	@Test
+	public void testMacrosAreIsolated() {
+		Interpreter a = new Interpreter();
+		Interpreter b = new Interpreter();
+		Expression call = read("(isolated-m)");
+
+		a.eval(read("(mac isolated-m () ''a)"));
+		b.eval(read("(mac isolated-m () ''b)"));
+
+		// the same form evaluated in both runtimes must not reuse the expansion of the other.
+		for (int i = 0; i < 3; i++) {
+			assertEquals(symbol("a"), a.eval(call));
+			assertEquals(symbol("b"), b.eval(call));
+		}
+	}
+
+	@Test
+	public void testForkCopiesGlobals() {
+		Interpreter template = new Interpreter();
+		template.eval(read("(set forked 'template)"));
+
+		Interpreter a = template.fork();
+		Interpreter b = template.fork();
+		a.eval(read("(set forked 'a)"));
+
+		assertEquals(symbol("a"), a.eval(read("forked")));
+		assertEquals(symbol("template"), b.eval(read("forked")));
+		assertEquals(symbol("template"), template.eval(read("forked")));
+
+		template.eval(read("(set forked 'changed)"));
+		assertEquals(symbol("template"), b.eval(read("forked")));
+	}
+
+	@Test
+	public void testForkCopiesLists() {
+		Interpreter template = new Interpreter();
+		template.eval(read("(set forked-list '(a b))"));
+		template.eval(read("(set forked-alias forked-list)"));
+
+		Interpreter fork = template.fork();
+		fork.eval(read("(xar forked-list 'x)"));
+		assertEquals(read("(a b)"), template.eval(read("forked-list")));
+		assertEquals(read("(x b)"), fork.eval(read("forked-alias")));
+
+		template.eval(read("(xdr forked-list nil)"));
+		assertEquals(read("(x b)"), fork.eval(read("forked-list")));
+		assertEquals(read("(a)"), template.eval(read("forked-alias")));
+	}
+
+	@Test
+	public void testForkCopiesClosedOverVariables() {
+		Interpreter template = new Interpreter();
+		template.eval(read("(def make-box (x) (join (fn () x) (fn (y) (set x y))))"));
+		template.eval(read("(set box (make-box 'a))"));
+
+		Interpreter fork = template.fork();
+		fork.eval(read("((cdr box) 'b)"));
+		assertEquals(symbol("b"), fork.eval(read("((car box))")));
+		assertEquals(symbol("a"), template.eval(read("((car box))")));
+
+		template.eval(read("((cdr box) 'c)"));
+		assertEquals(symbol("c"), template.eval(read("((car box))")));
+		assertEquals(symbol("b"), fork.eval(read("((car box))")));
+	}
+
+	@Test
+	public void testForkSharesCode() {
+		Interpreter template = new Interpreter();
+		template.eval(read("(def make-adder (n) (fn (x) (join n x)))"));
+		template.eval(read("(set add-a (make-adder 'a))"));
+		template.eval(read("(add-a 'b)"));
+		Pair body = (Pair) ((Pair) template.eval(read("add-a"))).nth(4);
+		Object analyzed = body.getAnalyzed();
+
+		// the body and its analysis are shared, the captured frame is copied.
+		Interpreter fork = template.fork();
+		assertEquals(read("(a . c)"), fork.eval(read("(add-a 'c)")));
+		assertSame(body, ((Pair) fork.eval(read("add-a"))).nth(4));
+		assertSame(analyzed, body.getAnalyzed());
+	}
+
+	@Test
+	public void testForkAgainKeepsCells() {
+		Interpreter template = new Interpreter();
+		template.eval(read("(set forked '(a))"));
+		Interpreter a = template.fork();
+		Expression cell = template.eval(read("(car (where forked))"));
+
+		// nothing changed since the last fork.
+		Interpreter b = template.fork();
+		assertSame(cell, template.eval(read("(car (where forked))")));
+		assertEquals(read("(a)"), b.eval(read("forked")));
+
+		template.eval(read("(xar forked 'c)"));
+		Interpreter c = template.fork();
+		assertEquals(read("(c)"), c.eval(read("forked")));
+		assertEquals(read("(a)"), a.eval(read("forked")));
+		assertEquals(read("(a)"), b.eval(read("forked")));
+	}
+
+	@Test
+	public void testMacroExpansionsOfOtherThreadsCounted() {
+		Interpreter interpreter = new Interpreter();
+		interpreter.eval(read("(mac counted-m () ''a)"));
+		interpreter.eval(read("(def counted-f (x) (counted-m))"));
+		long before = interpreter.getMacroExpansionHits() + interpreter.getMacroExpansionMisses();
+
+		assertEquals(read("(a a a a a a a a)"), interpreter.eval(read("(pmap counted-f '(1 2 3 4 5 6 7 8))")));
+		assertEquals(before + 8, interpreter.getMacroExpansionHits() + interpreter.getMacroExpansionMisses());
+
+		interpreter.eval(read("(set counted-c (chan))"));
+		interpreter.eval(read("(thread (chput counted-c (counted-f nil)))"));
+		assertEquals(symbol("a"), interpreter.eval(read("(chtake counted-c)")));
+		assertEquals(before + 9, interpreter.getMacroExpansionHits() + interpreter.getMacroExpansionMisses());
+	}
+
+	@Test
+	public void testForkKeepsMacroExpansions() {
+		Interpreter template = new Interpreter();
+		Expression call = read("(forked-m)");
+		template.eval(read("(mac forked-m () ''a)"));
+		template.eval(call);
+
+		Interpreter fork = template.fork();
+		assertEquals(symbol("a"), fork.eval(call));
+		assertEquals(1, fork.getMacroExpansionHits());
+
+		fork.eval(read("(mac forked-m () ''b)"));
+		assertEquals(symbol("b"), fork.eval(call));
+		assertEquals(symbol("a"), template.eval(call));
+	}
+
+	@Test
+	public void testParallelRuntimes() throws InterruptedException, ExecutionException {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Expression>> results = new ArrayList<>();
+			for (int i = 0; i < 8; i++) {
+				String name = "tenant" + i;
+				results.add(executor.submit(() -> {
+					Interpreter interpreter = new Interpreter();
+					interpreter.eval(read("(set counter nil)"));
+					for (int j = 0; j < 100; j++) {
+						interpreter.eval(read("(set counter (join '" + name + " counter))"));
+					}
+					return interpreter.eval(read("(car counter)"));
+				}));
+			}
+			for (int i = 0; i < 8; i++) {
+				assertEquals(symbol("tenant" + i), results.get(i).get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testAtomicUpdatesFromThreads() throws InterruptedException {
+		Interpreter interpreter = new Interpreter();
+		interpreter.eval(read("(set counter nil done nil)"));
+		interpreter.eval(read("(def bump (n) (if n (do-bump n) (atomic (set done (join t done)))))"));
+		interpreter.eval(read("(def do-bump (n) (let _ (atomic (set counter (join t counter))) (bump (cdr n))))"));
+
+		for (int i = 0; i < 8; i++) {
+			interpreter.eval(read("(thread (bump '(a b c d e f g h i j)))"));
+		}
+
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (length(interpreter.eval(read("done"))) < 8 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+
+		assertEquals(80, length(interpreter.eval(read("counter"))));
+		assertTrue(interpreter.getLockAcquisitions() >= 88);
+	}
+
+	@Test
+	public void testCompareAndSetFromThreads() throws InterruptedException {
+		Interpreter interpreter = new Interpreter();
+		interpreter.eval(read("(set cell (join nil nil) done (join nil nil))"));
+		interpreter.eval(read("(def push (c x) (let old (vcdr c) (if (casd c old (join x old)) t (push c x))))"));
+		interpreter.eval(read("(def push-all (n) (if n (let _ (push cell (car n)) (push-all (cdr n))) (push done t)))"));
+
+		for (int i = 0; i < 8; i++) {
+			interpreter.eval(read("(thread (push-all '(a b c d e f g h i j)))"));
+		}
+
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (length(interpreter.eval(read("(vcdr done)"))) < 8 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+
+		assertEquals(80, length(interpreter.eval(read("(vcdr cell)"))));
+		assertEquals(0, interpreter.getLockAcquisitions());
+	}
+
+	@Test
+	public void testNestedLock() {
+		Interpreter interpreter = new Interpreter();
+		assertEquals(symbol("a"), interpreter.eval(read("(atomic (atomic 'a))")));
+		assertEquals(1, interpreter.getLockAcquisitions());
+		assertEquals(0, interpreter.getLockContentions());
+	}
+
+	@Test
+	public void testClosuresWithoutAsm() throws Exception {
+		// only the classes of the interpreter, the asm jar is not there.
+		URL classes = Interpreter.class.getProtectionDomain().getCodeSource().getLocation();
+		try (IsolatedLoader loader = new IsolatedLoader(classes)) {
+			Class<?> interpreter = loader.loadClass(Interpreter.class.getName());
+			Class<?> scanner = loader.loadClass(ExpressionScanner.class.getName());
+			Method eval = interpreter.getMethod("eval", loader.loadClass(Expression.class.getName()));
+			Object instance = interpreter.getConstructor().newInstance();
+
+			// more calls than the compile threshold.
+			StringBuilder source = new StringBuilder("(def twice (x) (join x x)) (def walk (xs) (if xs (walk (cdr (car (twice xs))))))");
+			source.append(" (walk '(");
+			for (int i = 0; i < 1500; i++) {
+				source.append("x ");
+			}
+			source.append(")) (twice 'a)");
+
+			Object scan = scanner.getConstructor(String.class).newInstance(source.toString());
+			Object result = null;
+			for (Object form; (form = scanner.getMethod("next").invoke(scan)) != null; ) {
+				result = eval.invoke(instance, form);
+			}
+
+			assertEquals("(a . a)", result.toString());
+			assertFalse(loader.isLoaded(Compiler.class.getName()));
+		}
+	}
+
+	private static final class IsolatedLoader extends URLClassLoader {
+		IsolatedLoader(URL classes) {
+			super(new URL[] {classes}, null);
+		}
+
+		boolean isLoaded(String name) {
+			return findLoadedClass(name) != null;
+		}
+	}
+
+	private static int length(Expression list) {
+		int n = 0;
+		for (Expression e = list; e instanceof Pair; e = ((Pair) e).cdr()) {
+			n++;
+		}
+		return n;
+	}
+
+	private static Expression read(String s) {
+		try {
+			return Reader.read(new PushbackReader(new StringReader(s)));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -1,16 +1,19 @@
 package io.github.erdos.carillon.eval;
 
+import com.sun.management.ThreadMXBean;
 import io.github.erdos.carillon.eval.EvaluationException.WrongArityException;
 import io.github.erdos.carillon.objects.Expression;
 import io.github.erdos.carillon.objects.Pair;
 import io.github.erdos.carillon.objects.Symbol;
 import io.github.erdos.carillon.reader.Reader;
-import jdk.nashorn.internal.ir.annotations.Ignore;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
 import java.io.PushbackReader;
 import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import static io.github.erdos.carillon.eval.RT.list;
 import static io.github.erdos.carillon.eval.RT.pair;
@@ -19,6 +22,7 @@ import static io.github.erdos.carillon.objects.Symbol.NIL;
 import static io.github.erdos.carillon.objects.Symbol.symbol;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class RTTest {
 
@@ -174,7 +178,6 @@ class RTTest {
 		assertEquals(read("nil"), read("()"));
 	}
 
-	@Ignore
 	@Test
 	public void testFunctionReturnsFunction() {
 		eval(read("(def a (x) (join join (join x nil)))")); // a (reduce join ns) teljesen valid scenario!
@@ -207,6 +210,393 @@ class RTTest {
 		assertEquals(read("x"), eval(read("((let a 'x (fn v a)) 'y)")));
 	}
 
+	@Test
+	public void testNestedLetsSeeOuterBindings() {
+		assertEquals(read("(a b c)"), eval(read("(let x 'a (let y 'b (let z 'c (join x (join y (join z nil))))))")));
+	}
+
+	@Test
+	public void testSetCapturedBinding() {
+		assertEquals(read("b"), eval(read("(let x 'a (let f (fn () (set x 'b)) ((fn (_) x) (f))))")));
+	}
+
+	@Test
+	public void testCalleeDoesNotSeeCallerLocals() {
+		eval(read("(def peek () secret)"));
+		assertThrows(EvaluationException.UnboundSymbolException.class, () -> eval(read("(let secret 'x (peek))")));
+	}
+
+	@Test
+	public void testScope() {
+		assertEquals(read("((x . a))"), eval(read("(let x 'a scope)")));
+		assertEquals(read("((y . b) (x . a))"), eval(read("(let x 'a (let y 'b scope))")));
+	}
+
+	@Test
+	public void testTailCallsDoNotGrowStack() {
+		eval(read("(def walk (xs) (if xs (walk (cdr xs)) 'done))"));
+
+		Expression xs = NIL;
+		for (int i = 0; i < 1_000_000; i++) {
+			xs = pair(symbol("x"), xs);
+		}
+
+		assertEquals(symbol("done"), eval(list(symbol("walk"), RT.quote(xs))));
+	}
+
+	@Test
+	public void testMutualTailCallsThroughLet() {
+		eval(read("(def even (xs) (if xs (let ys (cdr xs) (odd ys)) t))"));
+		eval(read("(def odd (xs) (if xs (even (cdr xs)) nil))"));
+
+		Expression xs = NIL;
+		for (int i = 0; i < 100_000; i++) {
+			xs = pair(symbol("x"), xs);
+		}
+
+		assertEquals(symbol("t"), eval(list(symbol("even"), RT.quote(xs))));
+	}
+
+	@Test
+	public void testMacroExpansionCached() {
+		eval(read("(mac twice (x) `(join ,x (join ,x)))"));
+		eval(read("(def pairs (a) (twice a))"));
+
+		assertEquals(read("(p p)"), eval(read("(pairs 'p)")));
+		long hits = RT.getMacroExpansionHits();
+		long misses = RT.getMacroExpansionMisses();
+
+		assertEquals(read("(q q)"), eval(read("(pairs 'q)")));
+		assertEquals(hits + 1, RT.getMacroExpansionHits());
+		assertEquals(misses, RT.getMacroExpansionMisses());
+
+		// redefinition drops the cached expansion.
+		eval(read("(mac twice (x) `(join ,x (join ,x (join ,x))))"));
+		misses = RT.getMacroExpansionMisses();
+		assertEquals(read("(r r r)"), eval(read("(pairs 'r)")));
+		assertEquals(misses + 1, RT.getMacroExpansionMisses());
+	}
+
+	@Test
+	public void testMacroExpansionDroppedOnXar() {
+		eval(read("(mac quoted (x) `',x)"));
+		eval(read("(set site '(quoted a))"));
+
+		Pair site = (Pair) eval(read("site"));
+		assertEquals(symbol("a"), eval(site));
+		assertEquals(symbol("a"), eval(site));
+		site.setCdr(list(symbol("b")));
+		assertEquals(symbol("b"), eval(site));
+	}
+
+	@Test
+	public void testMacroExpansionDroppedOnArgumentChange() {
+		eval(read("(mac first-quoted (xs) `',(car xs))"));
+		eval(read("(def first-site () (first-quoted (hello there)))"));
+		assertEquals(symbol("hello"), eval(read("(first-site)")));
+		assertEquals(symbol("hello"), eval(read("(first-site)")));
+
+		// the hello inside the argument becomes bye
+		eval(read("(xar (car (cdr (car (cdr (cdr (cdr (cdr first-site))))))) 'bye)"));
+		assertEquals(symbol("bye"), eval(read("(first-site)")));
+
+		// the whole argument is replaced
+		eval(read("(xar (cdr (car (cdr (cdr (cdr (cdr first-site)))))) '(hi))"));
+		assertEquals(symbol("hi"), eval(read("(first-site)")));
+	}
+
+	@Test
+	public void testNestedFormChangedInBody() {
+		eval(read("(def nested-body () (join (join 'p 'q) 'r))"));
+		assertEquals(pair(pair(symbol("p"), symbol("q")), symbol("r")), eval(read("(nested-body)")));
+
+		// the 'p of the inner join becomes 'a
+		eval(read("(xar (cdr (car (cdr (car (cdr (cdr (cdr (cdr nested-body)))))))) ''a)"));
+		assertEquals(pair(pair(symbol("a"), symbol("q")), symbol("r")), eval(read("(nested-body)")));
+
+		// the 'r of the outer join becomes 'b
+		eval(read("(xar (cdr (cdr (car (cdr (cdr (cdr (cdr nested-body))))))) ''b)"));
+		assertEquals(pair(pair(symbol("a"), symbol("q")), symbol("b")), eval(read("(nested-body)")));
+	}
+
+	@Test
+	public void testGlobalCellUpdatedInPlace() {
+		eval(read("(set cell-var 'a)"));
+		eval(read("(def read-cell-var () cell-var)"));
+		Pair cell = (Pair) eval(read("(car (where cell-var))"));
+
+		assertEquals(symbol("a"), eval(read("(read-cell-var)")));
+		eval(read("(set cell-var 'b)"));
+		assertEquals(symbol("b"), eval(read("(read-cell-var)")));
+		assertEquals(pair(symbol("cell-var"), symbol("b")), cell);
+
+		// the cell is the binding itself.
+		cell.setCdr(symbol("c"));
+		assertEquals(symbol("c"), eval(read("(read-cell-var)")));
+	}
+
+	@Test
+	public void testLoopDoesNotAllocate() {
+		eval(read("(def alloc-second (xs) (car (cdr xs)))"));
+		eval(read("(def alloc-walk (xs) (if (alloc-second xs) (alloc-walk (cdr xs)) 'done))"));
+
+		Expression xs = NIL;
+		for (int i = 0; i < 100_000; i++) {
+			xs = pair(symbol("x"), xs);
+		}
+		Expression call = list(symbol("alloc-walk"), RT.quote(xs));
+
+		// warm up
+		eval(call);
+		eval(call);
+
+		ThreadMXBean bean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long before = bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+		assertEquals(symbol("done"), eval(call));
+		long allocated = bean.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+		// far less than a byte per iteration.
+		assertTrue(allocated < 10_000, "Allocated " + allocated + " bytes");
+	}
+
+	@Test
+	public void testCapturedFrameNotReused() {
+		eval(read("(def make-getter (x) (fn () x))"));
+		eval(read("(set getter-a (make-getter 'a))"));
+		eval(read("(set getter-b (make-getter 'b))"));
+		assertEquals(symbol("a"), eval(read("(getter-a)")));
+		assertEquals(symbol("b"), eval(read("(getter-b)")));
+	}
+
+	@Test
+	public void testWhereOfParameterNotReused() {
+		eval(read("(def identity (x) x)"));
+		Pair location = (Pair) eval(read("(where (identity 'v))"));
+		eval(read("(identity 'w)"));
+		assertEquals(pair(symbol("x"), symbol("v")), location.car());
+	}
+
+	@Test
+	public void testWhereOfMacroExpandingToSymbol() {
+		eval(read("(set where-macro-var 'a)"));
+		eval(read("(mac where-macro () 'where-macro-var)"));
+		assertEquals(list(pair(symbol("where-macro-var"), symbol("a")), symbol("d")), eval(read("(where (where-macro))")));
+	}
+
+	@Test
+	public void testWhereOfParameterInsideCall() {
+		eval(read("(def where-param (x) (where x))"));
+		eval(read("(set where-param-location (where-param 'v))"));
+		eval(read("(where-param 'w)"));
+		assertEquals(list(pair(symbol("x"), symbol("v")), symbol("d")), eval(read("where-param-location")));
+	}
+
+	@Test
+	public void testNumberIndex() {
+		assertEquals(symbol("b"), eval(read("(2 '(a b c))")));
+		assertEquals(NIL, eval(read("(1000000000000 '(a b c))")));
+	}
+
+	@Test
+	public void testNumberStructure() {
+		assertEquals(read("(+ (t t) (t))"), eval(read("(car (cdr (cdr 2)))")));
+		assertEquals(symbol("num"), eval(read("(car (cdr 5))")));
+
+		// changing the list changes the number.
+		eval(read("(set changed-number 1)"));
+		eval(read("(xar (cdr (car (cdr (cdr changed-number)))) '(t t t))"));
+		assertEquals(symbol("c"), eval(read("(changed-number '(a b c))")));
+	}
+
+	@Test
+	public void testSymNom() {
+		assertEquals(symbol("foo"), eval(read("(sym \"foo\")")));
+		assertEquals(eval(read("\"bar\"")), eval(read("(nom 'bar)")));
+		assertEquals(symbol("xoo"), eval(read("(let s \"foo\" ((fn (_) (sym s)) (xar s \\x)))")));
+	}
+
+	@Test
+	public void testCcc() {
+		assertEquals(symbol("normal"), eval(read("(ccc (fn (k) 'normal))")));
+		assertEquals(symbol("b"), eval(read("(ccc (fn (k) (join 'a (k 'b))))")));
+		assertEquals(symbol("out"), eval(read("(ccc (fn (outer) (join 'x (ccc (fn (inner) (outer 'out))))))")));
+	}
+
+	@Test
+	public void testCccEarlyExit() {
+		eval(read("(def find-x (xs k) (if xs (if (id (car xs) 'x) (k xs) (find-x (cdr xs) k)) nil))"));
+		assertEquals(read("(x c)"), eval(read("(ccc (fn (k) (find-x '(a b x c) k)))")));
+		assertEquals(NIL, eval(read("(ccc (fn (k) (find-x '(a b c) k)))")));
+	}
+
+	@Test
+	public void testCccRestoresDynamicBindings() {
+		eval(read("(set ccc-dyn 'global)"));
+		assertEquals(NIL, eval(read("(ccc (fn (k) (dyn ccc-dyn 'dynamic (k nil))))")));
+		assertEquals(symbol("global"), eval(read("ccc-dyn")));
+	}
+
+	@Test
+	public void testCccAfterExit() {
+		// calling the continuation again assigns again.
+		eval(read("(set saved-k (ccc (fn (k) k)))"));
+		assertEquals(symbol("a"), eval(read("(saved-k 'a)")));
+		assertEquals(symbol("a"), eval(read("saved-k")));
+
+		// the continuation of a lock section is not kept after the section.
+		eval(read("(set atomic-k (atomic (ccc (fn (k) k))))"));
+		assertThrows(EvaluationException.ContinuationExpiredException.class, () -> eval(read("(atomic-k 'a)")));
+	}
+
+	@Test
+	public void testCccReentry() {
+		assertEquals(read("((x . b) (x . b) (x . a))"), eval(read("(let xs nil (let x (join 'x (ccc (fn (k) (let _ (set again k) 'a)))) (let _ (set xs (join x xs)) (if (cdr (cdr xs)) xs (again 'b)))))")));
+		assertEquals(read("(c b a)"), eval(read("(let out nil (let x (ccc (fn (k) (let _ (set walk-k k) '(a b c)))) (if x (let _ (set out (join (car x) out)) (walk-k (cdr x))) out)))")));
+	}
+
+	@Test
+	public void testCccGenerator() {
+		eval(read("(def each-yield (xs yield) (if xs (let _ (ccc (fn (back) (let _ (set gen-back back) (yield (car xs))))) (each-yield (cdr xs) yield)) (yield 'end)))"));
+		assertEquals(read("(end b a)"), eval(read("(let got nil (let x (ccc (fn (yield) (each-yield '(a b) yield))) (let _ (set got (join x got)) (if (id x 'end) got (gen-back nil)))))")));
+	}
+
+	@Test
+	public void testCccReentersDynamicBindings() {
+		eval(read("(set reentered-dyn 'global)"));
+		assertEquals(read("(global (second . inner) (first . inner))"), eval(read("(let seen nil (let x (dyn reentered-dyn 'inner (join (ccc (fn (k) (let _ (set dyn-k k) 'first))) reentered-dyn)) (let _ (set seen (join x seen)) (if (cdr seen) (join reentered-dyn seen) (dyn-k 'second)))))")));
+		assertEquals(symbol("global"), eval(read("reentered-dyn")));
+	}
+
+	@Test
+	public void testThread() {
+		eval(read("(set thread-result nil)"));
+		assertEquals(symbol("t"), eval(read("(let x 'a (thread (set thread-result (join x 'b))))")));
+		assertEquals(read("(a . b)"), await("thread-result"));
+	}
+
+	@Test
+	public void testThreadErrorGoesToUncaughtExceptionHandler() throws Exception {
+		CompletableFuture<Throwable> uncaught = new CompletableFuture<>();
+		Thread.UncaughtExceptionHandler before = Thread.getDefaultUncaughtExceptionHandler();
+		Thread.setDefaultUncaughtExceptionHandler((thread, ex) -> uncaught.complete(ex));
+		try {
+			eval(read("(thread (thread-unbound-fn))"));
+			assertTrue(uncaught.get(10, TimeUnit.SECONDS) instanceof EvaluationException.UnboundSymbolException);
+		} finally {
+			Thread.setDefaultUncaughtExceptionHandler(before);
+		}
+	}
+
+	@Test
+	public void testThreadInheritsDynamicBindings() {
+		eval(read("(set thread-dyn 'global thread-seen nil)"));
+		eval(read("(dyn thread-dyn 'dynamic (thread (set thread-seen thread-dyn)))"));
+		assertEquals(symbol("dynamic"), await("thread-seen"));
+		assertEquals(symbol("global"), eval(read("thread-dyn")));
+	}
+
+	@Test
+	public void testThreadDoesNotInheritLock() {
+		eval(read("(set lock nil thread-lock-seen nil)"));
+		eval(read("(dyn lock t (thread (set thread-lock-seen (join lock))))"));
+		assertEquals(read("(nil)"), await("thread-lock-seen"));
+
+		// the thread can still take the lock itself.
+		eval(read("(set thread-locked nil)"));
+		eval(read("(dyn lock t (thread (dyn lock t (set thread-locked lock))))"));
+		assertEquals(symbol("t"), await("thread-locked"));
+	}
+
+	@Test
+	public void testManyThreads() {
+		eval(read("(def thread-walk (xs n) (if xs (thread-walk (cdr xs) (join 't n)) n))"));
+		for (int i = 0; i < 16; i++) {
+			eval(read("(thread (set thread-" + i + " (thread-walk '(a b c d e f g h) nil)))"));
+		}
+		for (int i = 0; i < 16; i++) {
+			assertEquals(read("(t t t t t t t t)"), await("thread-" + i));
+		}
+	}
+
+	@Test
+	public void testChannel() {
+		eval(read("(set ch (chan 2))"));
+		assertEquals(symbol("channel"), eval(read("(type ch)")));
+		assertEquals(NIL, eval(read("(chpoll ch)")));
+		assertEquals(symbol("a"), eval(read("(chput ch 'a)")));
+		eval(read("(chput ch 'b)"));
+		assertEquals(symbol("t"), eval(read("(chcls ch)")));
+		assertThrows(EvaluationException.class, () -> eval(read("(chput ch 'c)")));
+		assertEquals(symbol("a"), eval(read("(chtake ch)")));
+		assertEquals(symbol("b"), eval(read("(chpoll ch)")));
+		assertEquals(symbol("eof"), eval(read("(chpoll ch)")));
+		assertEquals(symbol("eof"), eval(read("(chtake ch)")));
+		assertThrows(EvaluationException.class, () -> eval(read("(chan 0)")));
+	}
+
+	@Test
+	public void testChannelPipeline() {
+		eval(read("(set numbers (chan 1) pairs (chan 1) pipeline-result nil)"));
+		eval(read("(def produce (xs) (if xs (let _ (chput numbers (car xs)) (produce (cdr xs))) (chcls numbers)))"));
+		eval(read("(def transform (x) (if (id x 'eof) (chcls pairs) (let _ (chput pairs (join x x)) (transform (chtake numbers)))))"));
+		eval(read("(def collect (acc x) (if (id x 'eof) (set pipeline-result acc) (collect (join x acc) (chtake pairs))))"));
+
+		eval(read("(thread (collect nil (chtake pairs)))"));
+		eval(read("(thread (transform (chtake numbers)))"));
+		eval(read("(thread (produce '(a b c)))"));
+
+		assertEquals(read("((c . c) (b . b) (a . a))"), await("pipeline-result"));
+	}
+
+	@Test
+	public void testPmap() {
+		assertEquals(NIL, eval(read("(pmap car nil)")));
+		assertEquals(read("((a . a) (b . b) (c . c))"), eval(read("(pmap (fn (x) (join x x)) '(a b c))")));
+
+		StringBuilder list = new StringBuilder("(");
+		StringBuilder expected = new StringBuilder("(");
+		for (int i = 0; i < 1000; i++) {
+			list.append("(x").append(i).append(") ");
+			expected.append("x").append(i).append(' ');
+		}
+		assertEquals(read(expected + ")"), eval(read("(pmap car '" + list + "))")));
+	}
+
+	@Test
+	public void testPreduce() {
+		assertEquals(NIL, eval(read("(preduce join nil)")));
+		assertEquals(symbol("a"), eval(read("(preduce join '(a))")));
+		assertEquals(read("(a . b)"), eval(read("(preduce join '(a b))")));
+
+		// first true value, associative so the chunks can be combined in any grouping.
+		assertEquals(symbol("c"), eval(read("(preduce (fn (x y) (if x x y)) '(nil nil nil c nil d nil nil nil))")));
+	}
+
+	@Test
+	public void testPall() {
+		assertEquals(symbol("t"), eval(read("(pall (fn (x) (id x 'a)) '(a a a a a a a a))")));
+		assertEquals(NIL, eval(read("(pall (fn (x) (id x 'a)) '(a a a b a a a a))")));
+		assertEquals(symbol("t"), eval(read("(pall car nil)")));
+	}
+
+	// value of a global set by another thread.
+	private static Expression await(String name) {
+		long deadline = System.currentTimeMillis() + 10_000;
+		Expression variable = read(name);
+		while (System.currentTimeMillis() < deadline) {
+			try {
+				Expression value = eval(variable);
+				if (value != NIL) {
+					return value;
+				}
+			} catch (EvaluationException.UnboundSymbolException e) {
+				// not set yet.
+			}
+			Thread.yield();
+		}
+		throw new AssertionError("Thread did not set " + name);
+	}
+
 	@Test
 	public void testLambdaArg() {
 		assertEquals(read("y"), eval(read("(let ((nil)) 'x 'y)")));
@@ -239,6 +629,13 @@ class RTTest {
 		assertThrows(WrongArityException.class, () -> eval(read("(nom 'asdf 'xyze)")));
 	}
 
+	@Test
+	public void testNomSupplementary() {
+		Symbol s = symbol("a\uD83D\uDE00");
+		assertEquals(list(character('a'), io.github.erdos.carillon.objects.Character.character(0x1F600)), eval(list(symbol("nom"), RT.quote(s))));
+		assertEquals(s, eval(list(symbol("sym"), list(symbol("nom"), RT.quote(s)))));
+	}
+
 
 	@Test
 	public void complexArgs() {
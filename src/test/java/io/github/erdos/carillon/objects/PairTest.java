@@ -3,10 +3,13 @@ package io.github.erdos.carillon.objects;
 import io.github.erdos.carillon.eval.EvaluationException;
 import org.junit.jupiter.api.Test;
 
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Stream;
 
 import static io.github.erdos.carillon.eval.RT.list;
@@ -15,7 +18,10 @@ import static io.github.erdos.carillon.eval.RT.quote;
 import static io.github.erdos.carillon.objects.Symbol.NIL;
 import static io.github.erdos.carillon.objects.Symbol.symbol;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class PairTest {
 
@@ -78,4 +84,173 @@ class PairTest {
 
 		assertEquals(NIL, new ArrayList<Expression>().stream().collect(Pair.collectPairOrNil()));
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testCompareAndSet() {
+		Pair p = pair(symbol("a"), NIL);
+
+		assertFalse(p.compareAndSetCar(symbol("b"), symbol("c")));
+		assertTrue(p.compareAndSetCar(symbol("a"), symbol("c")));
+		assertTrue(p.compareAndSetCdr(NIL, symbol("d")));
+		assertEquals(pair(symbol("c"), symbol("d")), p);
+	}
+
+	@Test
+	public void testVolatileReads() {
+		Pair p = pair(symbol("a"), NIL);
+		assertTrue(p.compareAndSetCdr(NIL, symbol("b")));
+		assertEquals(symbol("a"), p.getCarVolatile());
+		assertEquals(symbol("b"), p.getCdrVolatile());
+
+		// the lazy tail is built before it is read.
+		Pair text = (Pair) Text.text("ab");
+		assertEquals(Text.text("b"), text.getCdrVolatile());
+	}
+
+	@Test
+	public void testCompareAndSetText() {
+		Pair text = (Pair) Text.text("ab");
+
+		assertTrue(text.compareAndSetCdr(text.cdr(), NIL));
+		assertEquals("\"a\"", text.toString());
+	}
+
+	@Test
+	public void testEqualsLongList() {
+		Expression a = NIL, b = NIL;
+		for (int i = 0; i < 100_000; i++) {
+			a = pair(symbol("x"), a);
+			b = pair(symbol("x"), b);
+		}
+		assertEquals(a, b);
+		assertEquals(a.hashCode(), b.hashCode());
+
+		((Pair) b).setCar(symbol("y"));
+		assertNotEquals(a, b);
+	}
+
+	@Test
+	public void testEqualsDeepCar() {
+		Expression a = NIL, b = NIL;
+		for (int i = 0; i < 100_000; i++) {
+			a = pair(a, NIL);
+			b = pair(b, NIL);
+		}
+		assertEquals(a, b);
+		assertEquals(a.hashCode(), b.hashCode());
+	}
+
+	@Test
+	public void testNumberEqualsWithoutExpanding() {
+		Number large = Number.number(BigInteger.TEN.pow(12));
+		assertEquals(Number.number(BigInteger.TEN.pow(12)), large);
+		assertEquals(Number.number(BigInteger.TEN.pow(12)).hashCode(), large.hashCode());
+		assertNotEquals(large, Text.text("abc"));
+		assertNotEquals(Text.text("abc"), large);
+		assertNotEquals(list(Symbol.LIT, Symbol.NUM), large);
+		assertFalse(large.isExpanded());
+
+		// (lit num (+ (t t t) (t)) (+ nil (t)))
+		Pair one = list(Symbol.T);
+		Pair three = list(Symbol.LIT, Symbol.NUM,
+				list(symbol("+"), list(Symbol.T, Symbol.T, Symbol.T), one), list(symbol("+"), NIL, one));
+		Number number = Number.number(3);
+		assertEquals(three, number);
+		assertEquals(number, three);
+		assertEquals(three.hashCode(), number.hashCode());
+		assertNotEquals(Number.number(2), three);
+		assertFalse(number.isExpanded());
+	}
+
+	@Test
+	public void testNumberWithChangedCar() {
+		Number changed = Number.number(3);
+		changed.setCar(symbol("x"));
+		assertNotEquals(Number.number(3), changed);
+		assertNotEquals(changed, Number.number(3));
+		assertTrue(changed.isExpanded());
+
+		// (x num (+ (t t t) (t)) (+ nil (t)))
+		Pair one = list(Symbol.T);
+		Pair list = list(symbol("x"), Symbol.NUM,
+				list(symbol("+"), list(Symbol.T, Symbol.T, Symbol.T), one), list(symbol("+"), NIL, one));
+		assertEquals(list, changed);
+		assertEquals(changed, list);
+		assertEquals(list.hashCode(), changed.hashCode());
+
+		// large numbers can not be expanded, the car is compared with the parts.
+		Number large = Number.number(BigInteger.TEN.pow(12));
+		Number other = Number.number(BigInteger.TEN.pow(12));
+		assertTrue(large.compareAndSetCar(Symbol.LIT, symbol("x")));
+		assertNotEquals(Number.number(BigInteger.TEN.pow(12)), large);
+		other.setCar(symbol("x"));
+		assertEquals(other, large);
+		assertEquals(other.hashCode(), large.hashCode());
+	}
+
+	@Test
+	public void testLazyPairsAsKeys() {
+		Map<Expression, String> map = new HashMap<>();
+		map.put(Number.number(BigInteger.TEN.pow(12)), "large");
+		map.put(Number.number(1_000_000), "million");
+		map.put(Text.text("abc"), "text");
+
+		assertEquals("large", map.get(Number.number(BigInteger.TEN.pow(12))));
+		assertEquals("million", map.get(Number.number(1_000_000)));
+		assertEquals("text", map.get(list(Character.character('a'), Character.character('b'), Character.character('c'))));
+
+		for (Expression key : map.keySet()) {
+			assertFalse(key instanceof Number && ((Number) key).isExpanded());
+		}
+	}
+
+	@Test
+	public void testEqualsCyclic() {
+		// (x x x ...) made of a cycle of two and a cycle of three pairs.
+		Pair a = list(symbol("x"), symbol("x"));
+		a.next().setCdr(a);
+		Pair b = list(symbol("x"), symbol("x"), symbol("x"));
+		b.next().next().setCdr(b);
+
+		assertEquals(a, b);
+		assertEquals(a.hashCode(), b.hashCode());
+
+		Pair c = list(symbol("x"), symbol("y"));
+		c.next().setCdr(c);
+		assertNotEquals(a, c);
+	}
+
+	@Test
+	public void testToStringShared() {
+		Pair shared = list(symbol("a"), symbol("b"));
+		assertEquals("(#0=(a b) #0#)", list(shared, shared).toString());
+		assertEquals("(x a b)", pair(symbol("x"), shared).toString());
+		assertEquals("(#0=(a b) x . #0#)", pair(shared, pair(symbol("x"), shared)).toString());
+	}
+
+	@Test
+	public void testToStringCyclic() {
+		Pair a = list(symbol("x"), symbol("y"));
+		a.next().setCdr(a);
+		assertEquals("#0=(x y . #0#)", a.toString());
+
+		Pair b = pair(NIL, NIL);
+		b.setCar(b);
+		assertEquals("#0=(#0#)", b.toString());
+	}
+
+	@Test
+	public void testToStringDeepCar() {
+		Expression a = NIL;
+		for (int i = 0; i < 100_000; i++) {
+			a = pair(a, NIL);
+		}
+		assertEquals(2 * 100_000 + 3, a.toString().length());
+	}
+
+	@Test
+	public void testToStringEscapes() {
+		assertEquals("\"a\\\"b\"", Text.text("a\"b").toString());
+		assertEquals("\"a\\\"b\"", list(Character.character('a'), Character.character('"'), Character.character('b')).toString());
+	}
+}
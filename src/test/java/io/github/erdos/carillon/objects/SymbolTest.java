@@ -0,0 +1,37 @@
+package io.github.erdos.carillon.objects;
+
+import org.junit.jupiter.api.Test;
+
+import static io.github.erdos.carillon.objects.Symbol.symbol;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SymbolTest {
+
+	@Test
+	public void testInterned() {
+		assertSame(symbol("interned"), symbol(new String("interned")));
+		assertEquals("interned".hashCode(), symbol("interned").hashCode());
+	}
+
+	@Test
+	public void testCollectedSymbolsAreRemoved() throws InterruptedException {
+		long expungedBefore = Symbol.getExpungedCount();
+		for (int i = 0; i < 10_000; i++) {
+			symbol("transient-" + i);
+		}
+
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (Symbol.getExpungedCount() == expungedBefore && System.currentTimeMillis() < deadline) {
+			System.gc();
+			Thread.sleep(10);
+			symbol("trigger");
+		}
+
+		assertTrue(Symbol.getExpungedCount() > expungedBefore);
+
+		// symbols made again after they were collected are still unique.
+		assertSame(symbol("transient-1"), symbol("transient-1"));
+	}
+}
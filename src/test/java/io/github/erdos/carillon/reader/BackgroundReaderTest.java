@@ -0,0 +1,125 @@
+package io.github.erdos.carillon.reader;
+
+import io.github.erdos.carillon.objects.Expression;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BackgroundReaderTest {
+
+	@Test
+	public void testReadsInOrder(@TempDir Path dir) throws IOException {
+		StringBuilder source = new StringBuilder();
+		for (int i = 0; i < 5_000; i++) {
+			source.append("(form ").append(i).append(")\n");
+		}
+		Path file = dir.resolve("forms.bel");
+		Files.write(file, source.toString().getBytes(StandardCharsets.UTF_8));
+
+		try (BackgroundReader reader = BackgroundReader.start(file)) {
+			for (int i = 0; i < 5_000; i++) {
+				assertEquals(ReaderTest.read("(form " + i + ")"), reader.next());
+			}
+			assertNull(reader.next());
+			assertNull(reader.next());
+		}
+	}
+
+	@Test
+	public void testErrorAtItsForm(@TempDir Path dir) throws IOException {
+		Path file = dir.resolve("broken.bel");
+		Files.write(file, "(a) (b) (c".getBytes(StandardCharsets.UTF_8));
+
+		try (BackgroundReader reader = BackgroundReader.start(file)) {
+			assertEquals(ReaderTest.read("(a)"), reader.next());
+			assertEquals(ReaderTest.read("(b)"), reader.next());
+			IOException e = assertThrows(IOException.class, reader::next);
+			assertTrue(e.getMessage().startsWith("Could not read form 3 of "));
+		}
+	}
+
+	@Test
+	public void testCache(@TempDir Path dir) throws IOException {
+		Path file = dir.resolve("cached.bel");
+		Files.write(file, "(a \"b\") 3".getBytes(StandardCharsets.UTF_8));
+
+		assertEquals(ReaderTest.read("(a \"b\")"), readFirst(file));
+		assertTrue(Files.exists(Fasl.cacheOf(file)));
+		assertEquals(ReaderTest.read("(a \"b\")"), readFirst(file));
+
+		// a changed file is read again.
+		Files.write(file, "(c)".getBytes(StandardCharsets.UTF_8));
+		assertEquals(ReaderTest.read("(c)"), readFirst(file));
+
+		// the hash computed while reading is the hash of the file.
+		Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() - 60_000));
+		try (Fasl.Input in = Fasl.Input.open(file)) {
+			assertNotNull(in);
+			assertEquals(ReaderTest.read("(c)"), in.next());
+		}
+	}
+
+	@Test
+	public void testDataIsNotCached(@TempDir Path dir) throws IOException {
+		Path file = dir.resolve("data.txt");
+		Files.write(file, "(a) (b)".getBytes(StandardCharsets.UTF_8));
+
+		assertEquals(ReaderTest.read("(a)"), readFirst(file));
+		assertFalse(Files.exists(Fasl.cacheOf(file)));
+	}
+
+	@Test
+	public void testBrokenCache(@TempDir Path dir) throws IOException {
+		Path file = dir.resolve("broken-cache.bel");
+		Files.write(file, "(a) (b) (c)".getBytes(StandardCharsets.UTF_8));
+		readFirst(file);
+
+		// the header still matches, the last form is cut off.
+		Path cache = Fasl.cacheOf(file);
+		byte[] bytes = Files.readAllBytes(cache);
+		Files.write(cache, Arrays.copyOf(bytes, bytes.length - 3));
+
+		try (BackgroundReader reader = BackgroundReader.start(file)) {
+			assertEquals(ReaderTest.read("(a)"), reader.next());
+			assertEquals(ReaderTest.read("(b)"), reader.next());
+			assertEquals(ReaderTest.read("(c)"), reader.next());
+			assertNull(reader.next());
+		}
+
+		// written again as a whole.
+		try (Fasl.Input in = Fasl.Input.open(file)) {
+			assertEquals(ReaderTest.read("(a)"), in.next());
+			assertEquals(ReaderTest.read("(b)"), in.next());
+			assertEquals(ReaderTest.read("(c)"), in.next());
+			assertNull(in.next());
+		}
+	}
+
+	private static Expression readFirst(Path file) throws IOException {
+		try (BackgroundReader reader = BackgroundReader.start(file)) {
+			Expression first = reader.next();
+			while (reader.next() != null) ;
+			return first;
+		}
+	}
+
+	@Test
+	public void testMissingFile(@TempDir Path dir) {
+		BackgroundReader reader = BackgroundReader.start(dir.resolve("missing.bel"));
+		assertThrows(NoSuchFileException.class, reader::next);
+	}
+}
@@ -0,0 +1,79 @@
+package io.github.erdos.carillon.reader;
+
+import io.github.erdos.carillon.objects.Expression;
+import io.github.erdos.carillon.objects.Pair;
+import org.junit.jupiter.api.Test;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PushbackReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class ExpressionScannerTest {
+
+	private static final String FORMS = "a 'b \"c\\\"d\" (e . f) (g h ; comment\n i) [j _ k] \\l \\bel \\\uD83D\uDE00"
+			+ " `(m ,n ,@o) x|~f:g!a a:b: 2.x -2/4 12 +3 1/0 #a (#0=(p) #0#) (. q) ()";
+
+	@Test
+	public void testSameAsReader() throws IOException {
+		assertEquals(readAll(FORMS), scanAll(new ExpressionScanner(FORMS)));
+	}
+
+	@Test
+	public void testPrelude() throws IOException {
+		StringWriter prelude = new StringWriter();
+		try (InputStreamReader in = new InputStreamReader(getClass().getResourceAsStream("/prelude.bel"), StandardCharsets.UTF_8)) {
+			char[] chunk = new char[4096];
+			for (int n; (n = in.read(chunk)) != -1; ) {
+				prelude.write(chunk, 0, n);
+			}
+		}
+
+		assertEquals(readAll(prelude.toString()), scanAll(new ExpressionScanner(new StringReader(prelude.toString()))));
+	}
+
+	@Test
+	public void testTinyReads() throws IOException {
+		// tokens and strings cross the end of what was read every time.
+		ExpressionScanner scanner = new ExpressionScanner(new FilterReader(new StringReader(FORMS)) {
+			@Override
+			public int read(char[] cbuf, int off, int len) throws IOException {
+				return super.read(cbuf, off, Math.min(len, 1));
+			}
+		});
+		assertEquals(readAll(FORMS), scanAll(scanner));
+	}
+
+	@Test
+	public void testLabels() throws IOException {
+		Pair cyclic = (Pair) new ExpressionScanner("#1=(x . #1#)").next();
+		assertSame(cyclic, cyclic.cdr());
+		assertNull(new ExpressionScanner(" ; nothing here").next());
+	}
+
+	private static List<Expression> scanAll(ExpressionScanner scanner) throws IOException {
+		List<Expression> result = new ArrayList<>();
+		for (Expression e; (e = scanner.next()) != null; ) {
+			result.add(e);
+		}
+		return result;
+	}
+
+	private static List<Expression> readAll(String s) throws IOException {
+		PushbackReader pbr = new PushbackReader(new StringReader(s));
+		List<Expression> result = new ArrayList<>();
+		for (Expression e; (e = Reader.read(pbr)) != null; ) {
+			result.add(e);
+		}
+		return result;
+	}
+}
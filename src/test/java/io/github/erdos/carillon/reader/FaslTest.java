@@ -0,0 +1,117 @@
+package io.github.erdos.carillon.reader;
+
+import io.github.erdos.carillon.objects.Expression;
+import io.github.erdos.carillon.objects.Number;
+import io.github.erdos.carillon.objects.Pair;
+import io.github.erdos.carillon.objects.Text;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+import static io.github.erdos.carillon.eval.RT.list;
+import static io.github.erdos.carillon.eval.RT.pair;
+import static io.github.erdos.carillon.objects.Symbol.NIL;
+import static io.github.erdos.carillon.objects.Symbol.symbol;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FaslTest {
+
+	@Test
+	public void testRoundTrip(@TempDir Path dir) throws IOException {
+		Path source = dir.resolve("source.bel");
+		Files.write(source, "source".getBytes(StandardCharsets.UTF_8));
+		BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+
+		Expression forms = ReaderTest.read("(def f (x) (list x \"text\" \\a \\bel 12 -2/4 'q a.b))");
+		Pair shared = list(symbol("s"));
+		Pair cyclic = list(symbol("x"), symbol("y"));
+		cyclic.next().setCdr(cyclic);
+		Expression longList = NIL;
+		for (int i = 0; i < 100_000; i++) {
+			longList = pair(symbol("e"), longList);
+		}
+		Number complex = Number.number(BigInteger.ONE, BigInteger.valueOf(2), BigInteger.valueOf(-3), BigInteger.ONE);
+
+		try (Fasl.Output out = Fasl.create(source, attributes)) {
+			out.write(forms);
+			out.write(list(shared, shared));
+			out.write(cyclic);
+			out.write(longList);
+			out.write(complex);
+			out.commit(Fasl.hash(source));
+		}
+
+		try (Fasl.Input in = Fasl.Input.open(source)) {
+			assertEquals(forms, in.next());
+
+			Pair sharing = (Pair) in.next();
+			assertSame(sharing.car(), sharing.cadr());
+
+			Pair cycle = (Pair) in.next();
+			assertSame(cycle, cycle.next().cdr());
+			assertEquals(cyclic, cycle);
+
+			assertEquals(longList, in.next());
+
+			Expression number = in.next();
+			assertTrue(number instanceof Number);
+			assertEquals(complex, number);
+
+			assertNull(in.next());
+		}
+
+		// the text is read back as an unchanged string.
+		try (Fasl.Input in = Fasl.Input.open(source)) {
+			Expression text = ((Pair) ((Pair) in.next()).nth(3)).nth(2);
+			assertTrue(((Pair) text).cadr() instanceof Text);
+		}
+	}
+
+	@Test
+	public void testOtherSource(@TempDir Path dir) throws IOException {
+		Path source = dir.resolve("source.bel");
+		Files.write(source, "old".getBytes(StandardCharsets.UTF_8));
+
+		try (Fasl.Output out = Fasl.create(source, Files.readAttributes(source, BasicFileAttributes.class))) {
+			out.write(symbol("old"));
+			out.commit(Fasl.hash(source));
+		}
+
+		// the same size and maybe the same time, the hash tells them apart.
+		Files.write(source, "new".getBytes(StandardCharsets.UTF_8));
+		assertNull(Fasl.Input.open(source));
+	}
+
+	@Test
+	public void testTouchedSource(@TempDir Path dir) throws IOException {
+		Path source = dir.resolve("source.bel");
+		Files.write(source, "same".getBytes(StandardCharsets.UTF_8));
+
+		try (Fasl.Output out = Fasl.create(source, Files.readAttributes(source, BasicFileAttributes.class))) {
+			out.write(symbol("same"));
+			out.commit(Fasl.hash(source));
+		}
+
+		// only the time changed, the cache is still used and gets the new time.
+		FileTime touched = FileTime.fromMillis(Files.getLastModifiedTime(source).toMillis() - 60_000);
+		Files.setLastModifiedTime(source, touched);
+		try (Fasl.Input in = Fasl.Input.open(source)) {
+			assertEquals(symbol("same"), in.next());
+		}
+		try (DataInputStream header = new DataInputStream(Files.newInputStream(Fasl.cacheOf(source)))) {
+			header.skipBytes(16);
+			assertEquals(touched.toMillis(), header.readLong());
+		}
+	}
+}
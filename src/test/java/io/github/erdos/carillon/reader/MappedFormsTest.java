@@ -0,0 +1,68 @@
+package io.github.erdos.carillon.reader;
+
+import io.github.erdos.carillon.objects.Expression;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+class MappedFormsTest {
+
+	private static final String FORMS = "(a \"b)\" \\( c) ; (d\n'e `(f ,@g) #0=(h . #0#) \\bel [i _ j] \"\\\"\" k:l ";
+
+	@Test
+	public void testIterator(@TempDir Path dir) throws IOException {
+		Path file = write(dir, FORMS + "(x\n; )\ny)\n\n; the end");
+
+		List<Expression> forms = new ArrayList<>();
+		try (MappedForms mapped = MappedForms.open(file)) {
+			mapped.forEach(forms::add);
+		}
+		assertEquals(readAll(FORMS + "(x\n; )\ny)").toString(), forms.toString());
+	}
+
+	@Test
+	public void testParallel(@TempDir Path dir) throws IOException {
+		StringBuilder source = new StringBuilder();
+		for (int i = 0; i < 20_000; i++) {
+			source.append("(form ").append(i).append(" \"\u00e9)\" \\) ; comment (\n").append(i % 7).append(")\n");
+		}
+		Path file = write(dir, source.toString());
+
+		try (MappedForms mapped = MappedForms.open(file)) {
+			Spliterator<Expression> spliterator = mapped.spliterator();
+			assertNotNull(spliterator.trySplit());
+
+			List<Expression> parallel = StreamSupport.stream(mapped.spliterator(), true).collect(Collectors.toList());
+			assertEquals(readAll(source.toString()), parallel);
+		}
+	}
+
+	private static Path write(Path dir, String contents) throws IOException {
+		Path file = dir.resolve("forms.bel");
+		Files.write(file, contents.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	private static List<Expression> readAll(String s) throws IOException {
+		PushbackReader pbr = new PushbackReader(new StringReader(s));
+		List<Expression> result = new ArrayList<>();
+		for (Expression e; (e = Reader.read(pbr)) != null; ) {
+			result.add(e);
+		}
+		return result;
+	}
+}
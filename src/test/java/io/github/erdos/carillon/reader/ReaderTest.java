@@ -3,6 +3,7 @@ package io.github.erdos.carillon.reader;
 import io.github.erdos.carillon.objects.Character;
 import io.github.erdos.carillon.objects.Expression;
 import io.github.erdos.carillon.objects.Pair;
+import io.github.erdos.carillon.objects.Text;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
@@ -138,6 +139,45 @@ class ReaderTest {
 		assertEquals(read("'()"), read("\"\""));
 	}
 
+	@Test
+	public void readStringCompact() throws IOException {
+		Expression result = ((Pair) read("\"abc\"")).cadr();
+		assertTrue(result instanceof Text);
+		assertEquals("\"abc\"", result.toString());
+		assertEquals(read("\"abc\""), read("\"abc\""));
+
+		// changes are seen through the list.
+		((Pair) ((Pair) result).cdr()).setCar(character('x'));
+		assertFalse(((Text) result).isIntact());
+		assertEquals("\"axc\"", result.toString());
+		assertEquals(list(character('a'), character('x'), character('c')), result);
+	}
+
+	@Test
+	public void readSupplementaryCharacters() throws IOException {
+		Character smile = Character.character(0x1F600);
+		assertEquals(smile, read("\\\uD83D\uDE00"));
+		assertEquals("\\\uD83D\uDE00", smile.toString());
+
+		Expression text = ((Pair) read("\"a\uD83D\uDE00b\"")).cadr();
+		assertEquals(list(character('a'), smile, character('b')), text);
+		assertEquals("\"a\uD83D\uDE00b\"", text.toString());
+	}
+
+	@Test
+	public void readLabels() throws IOException {
+		Pair shared = (Pair) read("(#0=(a b) #0#)");
+		assertSame(shared.car(), shared.cadr());
+		assertEquals(list(symbol("a"), symbol("b")), shared.car());
+
+		Pair cyclic = (Pair) read("#1=(x y . #1#)");
+		assertSame(cyclic, ((Pair) cyclic.cdr()).cdr());
+		assertEquals("#0=(x y . #0#)", cyclic.toString());
+
+		assertEquals(symbol("#a#"), read("#a#"));
+		assertThrows(IllegalStateException.class, () -> read("(#2#)"));
+	}
+
 	static Expression read(String s) throws IOException {
 		return new Reader().read(new PushbackReader(new StringReader(s)));
 	}
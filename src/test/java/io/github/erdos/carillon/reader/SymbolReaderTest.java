@@ -1,6 +1,7 @@
 package io.github.erdos.carillon.reader;
 
 import io.github.erdos.carillon.objects.Expression;
+import io.github.erdos.carillon.objects.Number;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
@@ -8,6 +9,8 @@ import java.io.PushbackReader;
 import java.io.StringReader;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class SymbolReaderTest {
 
@@ -46,6 +49,20 @@ class SymbolReaderTest {
 		assertEquals(ReaderTest.read("(lit num (+ (t t t) (t)) (+ () (t)))\n"), read("3"));
 	}
 
+	@Test
+	public void testNumberLarge() throws IOException {
+		Expression result = read("123456789012345678901234567890");
+		assertTrue(result instanceof Number);
+		assertEquals("123456789012345678901234567890", result.toString());
+		assertFalse(((Number) result).isExpanded());
+	}
+
+	@Test
+	public void testNumberRational() throws IOException {
+		assertEquals(ReaderTest.read("(lit num (- (t) (t t)) (+ () (t)))\n"), read("-2/4"));
+		assertEquals("3/2", read("6/4").toString());
+	}
+
 	private static Expression read(String s) throws IOException {
 		return SymbolReader.readSymbol(new PushbackReader(new StringReader(s)));
 	}